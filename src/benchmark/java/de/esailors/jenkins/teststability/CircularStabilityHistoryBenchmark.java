@@ -0,0 +1,58 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.esailors.jenkins.teststability.StabilityTestData.Result;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CircularStabilityHistoryBenchmark {
+
+	@Param({ "30", "100", "500" })
+	int maxSize;
+
+	private CircularStabilityHistory history;
+	private int nextBuildNumber;
+
+	@Setup
+	public void createHistory() {
+		history = SyntheticResults.history(0, maxSize, maxSize);
+		nextBuildNumber = maxSize + 1;
+	}
+
+	/**
+	 * What recording does for every test with a history: continue the previous build's history.
+	 */
+	@Benchmark
+	public CircularStabilityHistory copyAndAdd() {
+		CircularStabilityHistory next = history.copy(maxSize);
+		next.add(nextBuildNumber, true);
+		return next;
+	}
+
+	@Benchmark
+	public Result[] getData() {
+		return history.getData();
+	}
+
+	@Benchmark
+	public boolean isAllPassed() {
+		return history.isAllPassed();
+	}
+}
@@ -0,0 +1,78 @@
+package de.esailors.jenkins.teststability;
+
+import hudson.model.TaskListener;
+import hudson.tasks.junit.TestResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording a build on top of a previous build with full histories for
+ * every {@value SyntheticResults#FLAKY_INTERVAL}th case.
+ * <p>
+ * Goes through {@link StabilityTestDataPublisher#record}, i.e. everything
+ * <code>contributeTestData</code> does except looking up the previous build
+ * and backfilling new failures, which need a Jenkins instance.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ContributeTestDataBenchmark {
+
+	private static final int BUILD_NUMBER = 1000;
+
+	@Param({ "1000", "10000", "100000" })
+	int cases;
+
+	@Param({ "30", "100", "500" })
+	int maxHistoryLength;
+
+	private File jobDir;
+	private StabilityTestDataPublisher publisher;
+	private TestResult testResult;
+	private StabilityTestData previousData;
+
+	@Setup
+	public void createBuilds() throws IOException {
+		jobDir = File.createTempFile("stability-benchmark", "job");
+		if (!jobDir.delete() || !jobDir.mkdir()) {
+			throw new IOException("Failed to create " + jobDir);
+		}
+		publisher = new StabilityTestDataPublisher();
+		testResult = SyntheticResults.create(new File(jobDir, "reports"), cases, BUILD_NUMBER);
+
+		// steady state: the previous build recorded full histories into the job's dictionary
+		StabilityTestData warm = new StabilityTestData(
+				SyntheticResults.histories(testResult, maxHistoryLength, BUILD_NUMBER - 2));
+		previousData = publisher.record(null, BUILD_NUMBER - 1, jobDir, testResult, warm,
+				maxHistoryLength, false, 0f, TaskListener.NULL, new StabilityRecordingAction(), null);
+	}
+
+	@TearDown
+	public void deleteJobDir() {
+		SyntheticResults.delete(jobDir);
+	}
+
+	@Benchmark
+	public StabilityTestData contributeTestData() {
+		return publisher.record(null, BUILD_NUMBER, jobDir, testResult, previousData,
+				maxHistoryLength, false, 0f, TaskListener.NULL, new StabilityRecordingAction(), null);
+	}
+}
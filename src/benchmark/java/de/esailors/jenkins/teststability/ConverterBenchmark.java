@@ -0,0 +1,99 @@
+package de.esailors.jenkins.teststability;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing and reading the stability data of a build with the given number of
+ * histories, keyed by the job's {@link TestIdDictionary} like recorded builds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConverterBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	int histories;
+
+	@Param({ "30", "500" })
+	int maxSize;
+
+	private File jobDir;
+	private TestIdDictionary dictionary;
+	private Map<String, CircularStabilityHistory> stability;
+	private StabilityTestData data;
+	private String xml;
+	private byte[] encoded;
+	private String lastId;
+
+	@Setup
+	public void createData() throws IOException {
+		jobDir = File.createTempFile("stability-benchmark", "job");
+		if (!jobDir.delete() || !jobDir.mkdir()) {
+			throw new IOException("Failed to create " + jobDir);
+		}
+		dictionary = TestIdDictionary.forJob(jobDir);
+
+		stability = new HashMap<String, CircularStabilityHistory>();
+		for (int i = 0; i < histories; i++) {
+			lastId = "junit/com.acme.p" + (i / 1000) + "/SyntheticClass" + (i / 10) + "Test/testCase" + (i % 10);
+			stability.put(lastId, SyntheticResults.history(i * SyntheticResults.FLAKY_INTERVAL, maxSize, maxSize));
+		}
+		// steady state: all ids are in the dictionary already
+		CompactFormat.Reader keyed = StabilityTestDataPublisher.encodeKeyed(dictionary, 0f, stability);
+		encoded = keyed.getData();
+		data = new StabilityTestData(new HashMap<String, CircularStabilityHistory>(), keyed, null, null, jobDir);
+		xml = Jenkins.XSTREAM2.toXML(data);
+	}
+
+	@TearDown
+	public void deleteJobDir() {
+		SyntheticResults.delete(jobDir);
+	}
+
+	@Benchmark
+	public CompactFormat.Reader encodeKeyed() throws IOException {
+		return StabilityTestDataPublisher.encodeKeyed(dictionary, 0f, stability);
+	}
+
+	@Benchmark
+	public String marshal() {
+		return Jenkins.XSTREAM2.toXML(data);
+	}
+
+	@Benchmark
+	public Object unmarshal() {
+		return Jenkins.XSTREAM2.fromXML(xml);
+	}
+
+	/**
+	 * Looking up a single test in the decoded blob of a loaded build, as the
+	 * test page does: its key in the dictionary, then {@link CompactFormat.Reader#get(int)}.
+	 */
+	@Benchmark
+	public CircularStabilityHistory getKeyedHistory() {
+		CompactFormat.Reader reader = new CompactFormat.Reader(encoded);
+		return reader.get(dictionary.getKey(reader.getEpoch(), lastId));
+	}
+}
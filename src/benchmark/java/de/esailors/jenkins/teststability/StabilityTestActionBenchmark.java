@@ -0,0 +1,39 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StabilityTestActionBenchmark {
+
+	@Param({ "30", "100", "500" })
+	int maxSize;
+
+	private CircularStabilityHistory history;
+
+	@Setup
+	public void createHistory() {
+		history = SyntheticResults.history(0, maxSize, maxSize);
+	}
+
+	@Benchmark
+	public StabilityTestAction create() {
+		return new StabilityTestAction(history);
+	}
+}
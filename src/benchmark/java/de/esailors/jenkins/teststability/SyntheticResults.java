@@ -0,0 +1,121 @@
+package de.esailors.jenkins.teststability;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.ClassResult;
+import hudson.tasks.junit.PackageResult;
+import hudson.tasks.junit.TestResult;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Synthetic test reports and histories for the benchmarks.
+ * <p>
+ * Every class has {@value #CASES_PER_CLASS} cases and every package
+ * {@value #CLASSES_PER_PACKAGE} classes. Every {@value #FLAKY_INTERVAL}th
+ * case is flaky and fails in every third build.
+ */
+final class SyntheticResults {
+
+	static final int CASES_PER_CLASS = 10;
+	static final int CLASSES_PER_PACKAGE = 100;
+	static final int FLAKY_INTERVAL = 20;
+
+	private SyntheticResults() {}
+
+	/**
+	 * Writes and parses a report with the given number of cases, as of the given build.
+	 */
+	static TestResult create(File dir, int cases, int buildNumber) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Failed to create " + dir);
+		}
+
+		TestResult result = new TestResult();
+		int classes = (cases + CASES_PER_CLASS - 1) / CASES_PER_CLASS;
+		int packages = (classes + CLASSES_PER_PACKAGE - 1) / CLASSES_PER_PACKAGE;
+		int caseIndex = 0;
+		for (int p = 0; p < packages; p++) {
+			File report = new File(dir, "TEST-com.acme.p" + p + ".xml");
+			Writer writer = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+			try {
+				writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuites>\n");
+				for (int c = 0; c < CLASSES_PER_PACKAGE && caseIndex < cases; c++) {
+					String className = "com.acme.p" + p + ".SyntheticClass" + c + "Test";
+					writer.write("<testsuite name=\"" + className + "\" time=\"0.1\">\n");
+					for (int t = 0; t < CASES_PER_CLASS && caseIndex < cases; t++, caseIndex++) {
+						writer.write("<testcase classname=\"" + className + "\" name=\"testCase" + t + "\" time=\"0.01\"");
+						if (isFailing(caseIndex, buildNumber)) {
+							writer.write("><failure message=\"flaky\" type=\"java.lang.AssertionError\">flaky</failure></testcase>\n");
+						} else {
+							writer.write("/>\n");
+						}
+					}
+					writer.write("</testsuite>\n");
+				}
+				writer.write("</testsuites>\n");
+			} finally {
+				writer.close();
+			}
+			result.parse(report);
+		}
+		result.tally();
+		return result;
+	}
+
+	static boolean isFlaky(int caseIndex) {
+		return caseIndex % FLAKY_INTERVAL == 0;
+	}
+
+	static boolean isFailing(int caseIndex, int buildNumber) {
+		return isFlaky(caseIndex) && (caseIndex / FLAKY_INTERVAL + buildNumber) % 3 == 0;
+	}
+
+	/**
+	 * Returns full histories up to the given build for all flaky cases of
+	 * <code>result</code> and their classes, as recorded in steady state.
+	 */
+	static Map<String, CircularStabilityHistory> histories(TestResult result, int maxHistoryLength, int lastBuildNumber) {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		int caseIndex = 0;
+		for (PackageResult packageResult : result.getChildren()) {
+			for (ClassResult classResult : packageResult.getChildren()) {
+				CircularStabilityHistory classHistory = null;
+				for (CaseResult caseResult : classResult.getChildren()) {
+					if (isFlaky(caseIndex)) {
+						histories.put(caseResult.getId(), history(caseIndex, maxHistoryLength, lastBuildNumber));
+						if (classHistory == null) {
+							classHistory = history(caseIndex, maxHistoryLength, lastBuildNumber);
+							histories.put(classResult.getId(), classHistory);
+						}
+					}
+					caseIndex++;
+				}
+			}
+		}
+		return histories;
+	}
+
+	static CircularStabilityHistory history(int caseIndex, int maxHistoryLength, int lastBuildNumber) {
+		CircularStabilityHistory history = new CircularStabilityHistory(maxHistoryLength);
+		for (int b = lastBuildNumber - maxHistoryLength + 1; b <= lastBuildNumber; b++) {
+			history.add(b, !isFailing(caseIndex, b));
+		}
+		return history;
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -23,8 +23,6 @@
  */
 package de.esailors.jenkins.teststability;
 
-import jenkins.model.Jenkins;
-
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
@@ -39,59 +37,518 @@ import javax.annotation.Nullable;
  * Circular history of test results.
  * <p>
  * Old records are dropped when <code>maxSize</code> is exceeded.
+ * <p>
+ * The results are stored packed instead of as {@link Result} objects: the
+ * pass/fail flags live in a <code>long[]</code> bitset and the build numbers
+ * are kept as the number of the oldest entry plus a <code>char</code> delta
+ * per entry. Should a delta not fit into a <code>char</code> (or be negative)
+ * the deltas are widened to an <code>int[]</code>.
+ * <p>
+ * The packed entries live in an append-only {@link Storage} which is shared by
+ * all histories derived from each other via {@link #copy(int)}. A history is
+ * just a window onto that storage, so the history of the next build only
+ * appends its new result instead of copying the whole window. Entries are
+ * only copied once the storage is full, or when a second history is appended
+ * to from the same entry.
+ * <p>
+ * The number of failures and of status changes within the retained entries
+ * are maintained on every {@link #add}, so that the stability metrics don't
+ * need to look at the entries at all.
+ * <p>
+ * Optionally, see {@link #trackEwma(float)}, a history instead keeps
+ * exponentially weighted moving averages of its failure and status change
+ * rates, which remember failures beyond any window. Such a history only
+ * retains its newest entry, the last result and build number the rates are
+ * updated from, so its memory doesn't depend on the history length. It is
+ * kept until the rates decayed, however many builds that takes. What is
+ * read from the entries, e.g. the trend graph, isn't available for it.
+ * <p>
+ * Approximate retained size per history on a 64-bit JVM with compressed oops:
+ * <table summary="memory comparison">
+ * <tr><th>maxSize</th><th><code>Result[]</code> layout</th><th>packed layout</th></tr>
+ * <tr><td>30</td><td>888 bytes (31 objects) per build</td><td>240 bytes (4 objects), 48 bytes per following build</td></tr>
+ * <tr><td>500</td><td>14 KB (501 objects) per build</td><td>2.2 KB (4 objects), 48 bytes per following build</td></tr>
+ * </table>
  * 
  * @author ckutz
  */
 public class CircularStabilityHistory {
 	
-	  private Result[] data;
-	  private int head; 
-	  private int tail;
-	  // number of elements in queue
-      private int size = 0; 
-
-      private CircularStabilityHistory() {}
-      
-	  public CircularStabilityHistory(int maxSize) {
-	    data = new Result[maxSize];
-	    head = 0;
-	    tail = 0;
-	  }
+	private static final int WORD_SHIFT = 6;
+	
+	/**
+	 * Exponentially weighted rates below this are as good as no failures.
+	 */
+	static final float EWMA_EPSILON = 0.005f;
+	
+	// scale of the rates when encoded
+	private static final int EWMA_SCALE = 0xffff;
+	
+	private Storage storage;
+	private int capacity;
+	// position of the oldest entry in storage
+	private int start;
+	// number of elements in queue
+	private int size = 0;
+	private int firstBuildNumber;
+	private int lastBuildNumber;
+	private int failed;
+	private int statusChanges;
+	// smoothing factor of the rates, 0 if they aren't tracked
+	private float ewmaAlpha;
+	private float failureRate;
+	private float changeRate;
+	private boolean readOnly;
+	
+	public CircularStabilityHistory(int maxSize) {
+		this.capacity = maxSize;
+		this.storage = new Storage(maxSize);
+	}
+	
+	private CircularStabilityHistory(CircularStabilityHistory other) {
+		this.storage = other.storage;
+		this.capacity = other.capacity;
+		this.start = other.start;
+		this.size = other.size;
+		this.firstBuildNumber = other.firstBuildNumber;
+		this.lastBuildNumber = other.lastBuildNumber;
+		this.failed = other.failed;
+		this.statusChanges = other.statusChanges;
+		this.ewmaAlpha = other.ewmaAlpha;
+		this.failureRate = other.failureRate;
+		this.changeRate = other.changeRate;
+	}
 
-	  public boolean add(Result value) {
-	      data[tail] = value;
-	      tail++;
-	      if (tail == data.length) {
-	        tail = 0;
-	      }
-	      
-	      if (size == data.length) {  
-                head = (head + 1) % data.length;  
-           } else {  
-                size++;  
-           }  
-	      return true;
-	  }
-	  
-	  public Result[] getData() {
-		  Result[] copy = new Result[size];
-		  
-		  for (int i = 0; i < size; i++) {
-			  copy[i] = data[(head + i) % data.length];
-		  }
-		  return copy;
-	  }
+	public boolean add(Result value) {
+		add(value.buildNumber, value.passed);
+		return true;
+	}
+	
+	public void add(int buildNumber, boolean passed) {
+		if (readOnly) {
+			throw new UnsupportedOperationException("History is read-only");
+		}
+		if (capacity == 0) {
+			throw new IllegalStateException("History has a max size of 0");
+		}
+		
+		if (ewmaAlpha > 0) {
+			updateRates(passed);
+		}
+		if (size == capacity) {
+			dropOldest();
+		}
+		
+		int delta = 0;
+		if (size > 0) {
+			delta = buildNumber - lastBuildNumber;
+			if (storage.isPassed(start + size - 1) != passed) {
+				statusChanges++;
+			}
+		} else {
+			firstBuildNumber = buildNumber;
+		}
+		if (!passed) {
+			failed++;
+		}
+		
+		if (!storage.tryAppend(start + size, delta, passed)) {
+			// another history already appended to our last entry, or the storage is full
+			Storage moved = new Storage(capacity);
+			moved.copyFrom(storage, start, size);
+			storage = moved;
+			start = 0;
+			storage.tryAppend(size, delta, passed);
+		}
+		lastBuildNumber = buildNumber;
+		size++;
+	}
+	
+	private void updateRates(boolean passed) {
+		float failure = passed ? 0f : 1f;
+		if (size == 0) {
+			failureRate = failure;
+			changeRate = 0f;
+		} else {
+			float change = storage.isPassed(start + size - 1) != passed ? 1f : 0f;
+			failureRate += ewmaAlpha * (failure - failureRate);
+			changeRate += ewmaAlpha * (change - changeRate);
+		}
+	}
+	
+	private void dropOldest() {
+		boolean oldestPassed = storage.isPassed(start);
+		if (!oldestPassed) {
+			failed--;
+		}
+		start++;
+		size--;
+		if (size > 0) {
+			firstBuildNumber += storage.delta(start);
+			if (storage.isPassed(start) != oldestPassed) {
+				statusChanges--;
+			}
+		}
+	}
+	
+	/**
+	 * Returns a modifiable history with the given max size, holding the newest
+	 * <code>maxSize</code> entries of this one. A history tracking the
+	 * weighted rates keeps its max size of 1.
+	 * <p>
+	 * The entries are shared, not copied. Adding to the returned history
+	 * doesn't change this history.
+	 */
+	public CircularStabilityHistory copy(int maxSize) {
+		CircularStabilityHistory copy = new CircularStabilityHistory(this);
+		copy.capacity = ewmaAlpha > 0 ? 1 : maxSize;
+		while (copy.size > maxSize) {
+			copy.dropOldest();
+		}
+		return copy;
+	}
+	
+	/**
+	 * Keeps exponentially weighted failure and status change rates with the
+	 * given smoothing factor from now on, updated in O(1) by every {@link #add}.
+	 * A history not tracking them so far starts from the rates of its
+	 * retained entries, and then only retains the newest one. A factor of 0
+	 * stops tracking them, the history then grows from its newest entry with
+	 * the next {@link #copy(int)}.
+	 */
+	public void trackEwma(float alpha) {
+		if (readOnly) {
+			throw new UnsupportedOperationException("History is read-only");
+		}
+		if (ewmaAlpha == 0 && alpha > 0 && size > 0) {
+			failureRate = (float) failed / size;
+			changeRate = size > 1 ? (float) statusChanges / (size - 1) : 0f;
+		}
+		ewmaAlpha = alpha;
+		if (alpha > 0 && capacity != 1) {
+			while (size > 1) {
+				dropOldest();
+			}
+			// not the storage of the window, which may have room for hundreds of entries
+			Storage moved = new Storage(1);
+			moved.copyFrom(storage, start, size);
+			storage = moved;
+			start = 0;
+			capacity = 1;
+		}
+	}
+	
+	/**
+	 * Whether the exponentially weighted rates are tracked, see {@link #trackEwma(float)}.
+	 */
+	public boolean isEwma() {
+		return ewmaAlpha > 0;
+	}
+	
+	/**
+	 * The smoothing factor of the weighted rates, 0 if they aren't tracked.
+	 */
+	float getEwmaAlpha() {
+		return ewmaAlpha;
+	}
+	
+	/**
+	 * Sets the weighted rates as stored elsewhere, e.g. in the {@link StabilityIndex}.
+	 */
+	void restoreEwma(float alpha, float failureRate, float changeRate) {
+		this.ewmaAlpha = alpha;
+		this.failureRate = failureRate;
+		this.changeRate = changeRate;
+	}
+	
+	/**
+	 * Exponentially weighted share of failed runs, between 0 and 1.
+	 */
+	public float getFailureRate() {
+		return failureRate;
+	}
+	
+	/**
+	 * Exponentially weighted share of runs whose status differs from the run before, between 0 and 1.
+	 */
+	public float getChangeRate() {
+		return changeRate;
+	}
+	
+	/**
+	 * Returns a view of this history which throws on {@link #add}.
+	 */
+	public CircularStabilityHistory asReadOnly() {
+		if (readOnly) {
+			return this;
+		}
+		CircularStabilityHistory view = new CircularStabilityHistory(this);
+		view.readOnly = true;
+		return view;
+	}
+	
+	public boolean isReadOnly() {
+		return this.readOnly;
+	}
+	
+	public Result[] getData() {
+		Result[] copy = new Result[size];
+		
+		int buildNumber = firstBuildNumber;
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				buildNumber += storage.delta(start + i);
+			}
+			copy[i] = new Result(buildNumber, storage.isPassed(start + i));
+		}
+		return copy;
+	}
 
 	public boolean isEmpty() {
-		return data.length == 0;
+		return capacity == 0;
 	}
 	
 	public int getMaxSize() {
-		return this.data.length;
+		return this.capacity;
+	}
+	
+	/**
+	 * Returns the number of retained entries.
+	 */
+	public int size() {
+		return this.size;
 	}
 	
-	static {
-		Jenkins.XSTREAM2.registerConverter(new ConverterImpl());
+	/**
+	 * Returns the number of failed runs among the retained entries.
+	 */
+	public int getFailed() {
+		return this.failed;
+	}
+	
+	/**
+	 * Returns how often the result changed from passed to failed or back
+	 * between consecutive retained entries.
+	 */
+	public int getStatusChanges() {
+		return this.statusChanges;
+	}
+	
+	int getFirstBuildNumber() {
+		return this.firstBuildNumber;
+	}
+	
+	/**
+	 * Returns whether the i-th oldest entry passed.
+	 */
+	boolean isPassed(int i) {
+		return storage.isPassed(start + i);
+	}
+	
+	/**
+	 * Returns the build number of the i-th oldest entry minus the one before it, 0 for the oldest.
+	 */
+	int getDelta(int i) {
+		return i == 0 ? 0 : storage.delta(start + i);
+	}
+	
+	/**
+	 * Writes this history as
+	 * <code>maxSize size [firstBuildNumber delta* firstPassed runLength*]</code>,
+	 * i.e. the build numbers delta encoded and the results run-length encoded.
+	 */
+	void writeCompact(CompactFormat.Output out) {
+		out.writeUnsigned(capacity);
+		out.writeUnsigned(size);
+		if (size == 0) {
+			return;
+		}
+		
+		out.writeSigned(firstBuildNumber);
+		for (int i = 1; i < size; i++) {
+			out.writeSigned(storage.delta(start + i));
+		}
+		
+		boolean current = storage.isPassed(start);
+		out.write(current ? 1 : 0);
+		int runLength = 0;
+		for (int i = 0; i < size; i++) {
+			if (storage.isPassed(start + i) == current) {
+				runLength++;
+			} else {
+				out.writeUnsigned(runLength);
+				current = !current;
+				runLength = 1;
+			}
+		}
+		out.writeUnsigned(runLength);
+	}
+	
+	static CircularStabilityHistory readCompact(CompactFormat.Input in) {
+		int maxSize = in.readUnsigned();
+		int size = in.readUnsigned();
+		if (size > maxSize) {
+			throw new IllegalArgumentException("History size " + size + " exceeds max size " + maxSize);
+		}
+		
+		CircularStabilityHistory history = new CircularStabilityHistory(maxSize);
+		if (size == 0) {
+			return history;
+		}
+		
+		int[] deltas = new int[size];
+		history.firstBuildNumber = in.readSigned();
+		history.lastBuildNumber = history.firstBuildNumber;
+		for (int i = 1; i < size; i++) {
+			deltas[i] = in.readSigned();
+			history.lastBuildNumber += deltas[i];
+		}
+		
+		boolean current = in.readByte() != 0;
+		int i = 0;
+		while (i < size) {
+			int runLength = in.readUnsigned();
+			if (runLength == 0 || runLength > size - i) {
+				throw new IllegalArgumentException("Malformed run length " + runLength);
+			}
+			for (int end = i + runLength; i < end; i++) {
+				history.storage.tryAppend(i, deltas[i], current);
+			}
+			if (!current) {
+				history.failed += runLength;
+			}
+			if (i < size) {
+				history.statusChanges++;
+			}
+			current = !current;
+		}
+		history.size = size;
+		
+		return history;
+	}
+	
+	/**
+	 * Moves <code>in</code> past a history written by {@link #writeCompact(CompactFormat.Output)}.
+	 */
+	static void skipCompact(CompactFormat.Input in) {
+		in.readUnsigned();
+		int size = in.readUnsigned();
+		if (size == 0) {
+			return;
+		}
+		
+		for (int i = 0; i < size; i++) {
+			in.readSigned();
+		}
+		in.readByte();
+		int i = 0;
+		while (i < size) {
+			int runLength = in.readUnsigned();
+			if (runLength == 0 || runLength > size - i) {
+				throw new IllegalArgumentException("Malformed run length " + runLength);
+			}
+			i += runLength;
+		}
+	}
+	
+	/**
+	 * Writes the weighted rates as <code>0</code> if they aren't tracked, else
+	 * as <code>failureRate+1 changeRate</code> in units of 1/{@value #EWMA_SCALE}.
+	 */
+	void writeEwma(CompactFormat.Output out) {
+		if (ewmaAlpha == 0) {
+			out.writeUnsigned(0);
+			return;
+		}
+		out.writeUnsigned(Math.round(failureRate * EWMA_SCALE) + 1);
+		out.writeUnsigned(Math.round(changeRate * EWMA_SCALE));
+	}
+	
+	/**
+	 * Reads the rates written by {@link #writeEwma(CompactFormat.Output)} into this history.
+	 */
+	void readEwma(CompactFormat.Input in, float alpha) {
+		int failure = in.readUnsigned();
+		if (failure == 0) {
+			return;
+		}
+		int change = in.readUnsigned();
+		if (failure > EWMA_SCALE + 1 || change > EWMA_SCALE) {
+			throw new IllegalArgumentException("Malformed rates " + failure + ", " + change);
+		}
+		this.ewmaAlpha = alpha;
+		this.failureRate = (float) (failure - 1) / EWMA_SCALE;
+		this.changeRate = (float) change / EWMA_SCALE;
+	}
+	
+	static void skipEwma(CompactFormat.Input in) {
+		if (in.readUnsigned() != 0) {
+			in.readUnsigned();
+		}
+	}
+	
+	/**
+	 * Append-only packed entries, shared between histories.
+	 * <p>
+	 * Entries below {@link #length} are never modified, so every history can
+	 * read its window without locking. Only the history whose window ends at
+	 * {@link #length} may append.
+	 */
+	private static final class Storage {
+		
+		// bit i is set if entry i passed
+		private final long[] passed;
+		// build number of entry i minus the build number of entry i - 1
+		private final char[] deltas;
+		// replaces deltas once a delta does not fit into a char
+		private volatile int[] wideDeltas;
+		private int length;
+		
+		Storage(int maxSize) {
+			// leave room for maxSize appends before the window has to be moved
+			int capacity = maxSize * 2;
+			this.passed = new long[(capacity + 63) >>> WORD_SHIFT];
+			this.deltas = new char[capacity];
+		}
+		
+		boolean isPassed(int i) {
+			return (passed[i >>> WORD_SHIFT] & (1L << i)) != 0;
+		}
+		
+		int delta(int i) {
+			int[] wide = wideDeltas;
+			return wide != null ? wide[i] : deltas[i];
+		}
+		
+		synchronized boolean tryAppend(int position, int delta, boolean value) {
+			if (position != length || length == deltas.length) {
+				return false;
+			}
+			
+			if (value) {
+				passed[length >>> WORD_SHIFT] |= 1L << length;
+			}
+			if (wideDeltas == null && (delta < 0 || delta > Character.MAX_VALUE)) {
+				int[] wide = new int[deltas.length];
+				for (int i = 0; i < length; i++) {
+					wide[i] = deltas[i];
+				}
+				wideDeltas = wide;
+			}
+			if (wideDeltas != null) {
+				wideDeltas[length] = delta;
+			} else {
+				deltas[length] = (char) delta;
+			}
+			length++;
+			return true;
+		}
+		
+		void copyFrom(Storage other, int from, int count) {
+			for (int i = 0; i < count; i++) {
+				tryAppend(i, other.delta(from + i), other.isPassed(from + i));
+			}
+		}
 	}
 	
 	public static class ConverterImpl implements Converter {
@@ -106,12 +563,13 @@ public class CircularStabilityHistory {
 				MarshallingContext context) {
 			CircularStabilityHistory b = (CircularStabilityHistory) source;
 			
+			// the entries are written in order, so the oldest one is always at index 0
 			writer.startNode("head");
-			writer.setValue(Integer.toString(b.head));
+			writer.setValue("0");
 			writer.endNode();
 			
 			writer.startNode("tail");
-			writer.setValue(Integer.toString(b.tail));
+			writer.setValue(Integer.toString(b.capacity == 0 ? 0 : b.size % b.capacity));
 			writer.endNode();
 
 			writer.startNode("size");
@@ -119,14 +577,15 @@ public class CircularStabilityHistory {
 			writer.endNode();
 			
 			writer.startNode("data");
-			writer.setValue(dataToString(b.data));
+			writer.setValue(dataToString(b.getData(), b.capacity));
 			writer.endNode();
 		}
 		
 		
-		private String dataToString(Result[] data) {
+		private String dataToString(Result[] data, int capacity) {
 			StringBuilder buf = new StringBuilder();
-			for (Result d : data) {
+			for (int i = 0; i < capacity; i++) {
+				Result d = i < data.length ? data[i] : null;
 				if(d == null) {
 					buf.append(",");
 					continue;
@@ -153,8 +612,8 @@ public class CircularStabilityHistory {
 			int head = Integer.parseInt(r.getValue());
 			r.moveUp();
 			
+			// tail is implied by head and size
 			r.moveDown();
-			int tail = Integer.parseInt(r.getValue());
 			r.moveUp();
 			
 			r.moveDown();
@@ -165,13 +624,11 @@ public class CircularStabilityHistory {
 			String data = r.getValue();
 			r.moveUp();
 			
-			CircularStabilityHistory buf = new CircularStabilityHistory();
 			Result[] b = stringToData(data);
-			
-			buf.data = b;
-			buf.head = head;
-			buf.size = size;
-			buf.tail = tail;
+			CircularStabilityHistory buf = new CircularStabilityHistory(b.length);
+			for (int i = 0; i < size; i++) {
+				buf.add(b[(head + i) % b.length]);
+			}
 			
 			return buf;
 		}
@@ -210,23 +667,17 @@ public class CircularStabilityHistory {
 		}
 	}
 
-	public void add(int buildNumber, boolean passed) {
-		add(new Result(buildNumber, passed));
-	}
-
 	public boolean isAllPassed() {
-		
-		if (size == 0) {
-			return true;
-		}
-		
-		for (Result r : data) {
-			if (r != null && !r.passed) {
-				return false;
-			}
-		}
-		
-		return true;
+		return failed == 0;
+	}
+	
+	/**
+	 * Whether the history doesn't have to be kept: all retained entries
+	 * passed and, if the weighted rates are tracked, they decayed.
+	 */
+	boolean isClean() {
+		return failed == 0 && (ewmaAlpha == 0
+				|| (failureRate < EWMA_EPSILON && changeRate < EWMA_EPSILON));
 	}
 	
 }
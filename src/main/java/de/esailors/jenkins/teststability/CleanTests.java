@@ -0,0 +1,343 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.util.Arrays;
+
+/**
+ * The tests of a build which passed in every build they ran in, without a
+ * {@link CircularStabilityHistory} each.
+ * <p>
+ * All clean tests which are clean since the same build share one entry, the
+ * "clean since build N" sentinel, and tests with consecutive keys in the job's
+ * {@link TestIdDictionary} are stored as a single run of keys. As the sentinel
+ * is never older than the oldest of the {@link #getRecentBuilds() recent builds},
+ * there are at most as many sentinels as builds in a history.
+ * <p>
+ * Together with the recent builds a clean test's history can be restored
+ * without looking at old builds, see {@link #restoreHistory(int, int)}.
+ * <p>
+ * Layout (all numbers are varints):
+ * <pre>
+ * version epoch recentCount { recentBuildDelta }* sentinelCount { sinceDelta }* runCount { startDelta length sentinel }*
+ * </pre>
+ * The epoch is the {@link TestIdDictionary}'s, written as 8 bytes. Runs are
+ * sorted by their first key, which is written as delta to the end of the
+ * previous run.
+ * 
+ * @author ckutz
+ */
+final class CleanTests {
+	
+	static final int VERSION = 1;
+	
+	private final byte[] data;
+	private final long epoch;
+	private final int[] recentBuilds;
+	private final int runsPosition;
+	
+	private volatile Runs runs;
+	
+	CleanTests(byte[] data) {
+		CompactFormat.Input in = new CompactFormat.Input(data);
+		int version = in.readUnsigned();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported clean tests version " + version);
+		}
+		this.data = data;
+		this.epoch = in.readLong();
+		this.recentBuilds = new int[in.readUnsigned()];
+		int previous = 0;
+		for (int i = 0; i < recentBuilds.length; i++) {
+			previous += in.readUnsigned();
+			recentBuilds[i] = previous;
+		}
+		this.runsPosition = in.position();
+	}
+	
+	/**
+	 * Returns the encoded data, as passed to the constructor.
+	 */
+	byte[] getData() {
+		return data;
+	}
+	
+	/**
+	 * The epoch of the {@link TestIdDictionary} the keys belong to.
+	 */
+	long getEpoch() {
+		return epoch;
+	}
+	
+	/**
+	 * The numbers of the last recorded builds, in ascending order and including the build itself.
+	 */
+	int[] getRecentBuilds() {
+		return recentBuilds.clone();
+	}
+	
+	/**
+	 * Returns the build since which the test with the given key passed, or -1 if it isn't clean.
+	 */
+	int getCleanSince(int key) {
+		Runs r = getRuns();
+		int i = Arrays.binarySearch(r.starts, key);
+		if (i < 0) {
+			// the run starting before the key
+			i = -i - 2;
+			if (i < 0 || key >= r.starts[i] + r.lengths[i]) {
+				return -1;
+			}
+		}
+		return r.sentinels[r.runSentinels[i]];
+	}
+	
+	/**
+	 * Number of clean tests.
+	 */
+	int size() {
+		Runs r = getRuns();
+		int size = 0;
+		for (int length : r.lengths) {
+			size += length;
+		}
+		return size;
+	}
+	
+	/**
+	 * Restores the history of a test clean since the given build: passed in all recent builds since then.
+	 */
+	CircularStabilityHistory restoreHistory(int cleanSince, int maxHistoryLength) {
+		CircularStabilityHistory history = new CircularStabilityHistory(maxHistoryLength);
+		for (int buildNumber : recentBuilds) {
+			if (buildNumber >= cleanSince) {
+				history.add(buildNumber, true);
+			}
+		}
+		return history;
+	}
+	
+	/**
+	 * Returns the clean tests of only the last <code>maxHistoryLength</code>
+	 * recent builds, with the sentinels older than them moved to the first one.
+	 */
+	CleanTests resize(int maxHistoryLength) {
+		if (recentBuilds.length <= maxHistoryLength) {
+			return this;
+		}
+		Builder builder = new Builder(Arrays.copyOfRange(recentBuilds,
+				recentBuilds.length - maxHistoryLength, recentBuilds.length));
+		Runs r = getRuns();
+		for (int i = 0; i < r.starts.length; i++) {
+			int since = r.sentinels[r.runSentinels[i]];
+			for (int key = r.starts[i]; key < r.starts[i] + r.lengths[i]; key++) {
+				builder.add(key, since);
+			}
+		}
+		return builder.build(epoch);
+	}
+	
+	/**
+	 * Passes all clean tests to the visitor with their restored history, in the order of their keys.
+	 * Tests clean since the same build share one read-only history.
+	 * Keys are resolved with the given dictionary, keys it doesn't know are skipped.
+	 * 
+	 * @return false if the visitor stopped
+	 */
+	boolean visit(TestIdDictionary dictionary, StabilityTestData.HistoryVisitor visitor) {
+		Runs r = getRuns();
+		CircularStabilityHistory[] histories = new CircularStabilityHistory[r.sentinels.length];
+		for (int i = 0; i < r.starts.length; i++) {
+			int sentinel = r.runSentinels[i];
+			if (histories[sentinel] == null) {
+				histories[sentinel] = restoreHistory(r.sentinels[sentinel], recentBuilds.length).asReadOnly();
+			}
+			for (int key = r.starts[i]; key < r.starts[i] + r.lengths[i]; key++) {
+				String id = dictionary.getId(epoch, key);
+				if (id != null && !visitor.visit(id, histories[sentinel])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private Runs getRuns() {
+		Runs r = runs;
+		if (r == null) {
+			r = new Runs(new CompactFormat.Input(data, runsPosition));
+			runs = r;
+		}
+		return r;
+	}
+	
+	private static final class Runs {
+		final int[] sentinels;
+		final int[] starts;
+		final int[] lengths;
+		final int[] runSentinels;
+		
+		Runs(CompactFormat.Input in) {
+			sentinels = new int[in.readUnsigned()];
+			int previous = 0;
+			for (int i = 0; i < sentinels.length; i++) {
+				previous += in.readUnsigned();
+				sentinels[i] = previous;
+			}
+			
+			int count = in.readUnsigned();
+			starts = new int[count];
+			lengths = new int[count];
+			runSentinels = new int[count];
+			int end = 0;
+			for (int i = 0; i < count; i++) {
+				starts[i] = end + in.readUnsigned();
+				lengths[i] = in.readUnsigned();
+				runSentinels[i] = in.readUnsigned();
+				if (runSentinels[i] >= sentinels.length) {
+					throw new IllegalArgumentException("Malformed clean tests, unknown sentinel " + runSentinels[i]);
+				}
+				end = starts[i] + lengths[i];
+			}
+		}
+	}
+	
+	/**
+	 * Collects the clean tests of a build.
+	 */
+	static final class Builder {
+		
+		private final int[] recentBuilds;
+		// key in the upper, clean since build in the lower half
+		private long[] entries = new long[64];
+		private int size;
+		
+		/**
+		 * @param recentBuilds the numbers of the last recorded builds in
+		 * ascending order, ending with the build being recorded
+		 */
+		Builder(int[] recentBuilds) {
+			if (recentBuilds.length == 0) {
+				throw new IllegalArgumentException("No recent builds");
+			}
+			this.recentBuilds = recentBuilds;
+		}
+		
+		void add(int key, int cleanSince) {
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, size * 2);
+			}
+			// all sentinels older than the recent builds restore the same history
+			int since = Math.max(cleanSince, recentBuilds[0]);
+			entries[size++] = ((long) key << 32) | since;
+		}
+		
+		/**
+		 * Adds the tests with the given keys, clean since the build they are
+		 * clean since in <code>previous</code>, or since <code>buildNumber</code>
+		 * if they aren't clean there. The keys are merged with the previous runs
+		 * in one pass instead of looking up each of them.
+		 * 
+		 * @param keys in ascending order, keyed like <code>previous</code>
+		 */
+		void addCarried(CleanTests previous, int[] keys, int buildNumber) {
+			Runs r = previous.getRuns();
+			int run = 0;
+			for (int key : keys) {
+				while (run < r.starts.length && r.starts[run] + r.lengths[run] <= key) {
+					run++;
+				}
+				boolean clean = run < r.starts.length && r.starts[run] <= key;
+				add(key, clean ? r.sentinels[r.runSentinels[run]] : buildNumber);
+			}
+		}
+		
+		CleanTests build(long epoch) {
+			long[] sorted = Arrays.copyOf(entries, size);
+			Arrays.sort(sorted);
+			// a test added twice keeps its oldest sentinel
+			int tests = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				if (tests == 0 || (sorted[i] >>> 32) != (sorted[tests - 1] >>> 32)) {
+					sorted[tests++] = sorted[i];
+				}
+			}
+			
+			int[] since = new int[tests];
+			for (int i = 0; i < tests; i++) {
+				since[i] = (int) sorted[i];
+			}
+			int[] sentinels = distinct(since.clone());
+			
+			CompactFormat.Output out = new CompactFormat.Output();
+			out.writeUnsigned(VERSION);
+			out.writeLong(epoch);
+			out.writeUnsigned(recentBuilds.length);
+			int previous = 0;
+			for (int buildNumber : recentBuilds) {
+				out.writeUnsigned(buildNumber - previous);
+				previous = buildNumber;
+			}
+			out.writeUnsigned(sentinels.length);
+			previous = 0;
+			for (int sentinel : sentinels) {
+				out.writeUnsigned(sentinel - previous);
+				previous = sentinel;
+			}
+			
+			CompactFormat.Output runs = new CompactFormat.Output();
+			int runCount = 0;
+			int end = 0;
+			int i = 0;
+			while (i < tests) {
+				int start = (int) (sorted[i] >>> 32);
+				int length = 1;
+				while (i + length < tests && (int) (sorted[i + length] >>> 32) == start + length
+						&& since[i + length] == since[i]) {
+					length++;
+				}
+				runs.writeUnsigned(start - end);
+				runs.writeUnsigned(length);
+				runs.writeUnsigned(Arrays.binarySearch(sentinels, since[i]));
+				end = start + length;
+				runCount++;
+				i += length;
+			}
+			out.writeUnsigned(runCount);
+			out.write(runs.toByteArray(), 0, runs.size());
+			return new CleanTests(out.toByteArray());
+		}
+		
+		private static int[] distinct(int[] values) {
+			Arrays.sort(values);
+			int n = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (n == 0 || values[i] != values[n - 1]) {
+					values[n++] = values[i];
+				}
+			}
+			return Arrays.copyOf(values, n);
+		}
+	}
+}
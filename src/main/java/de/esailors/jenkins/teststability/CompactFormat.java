@@ -0,0 +1,460 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Binary encoding of all stability histories of a build.
+ * <p>
+ * Layout (all numbers are varints, signed ones zig-zag encoded):
+ * <pre>
+ * 1 count { sharedPrefixLength suffixLength suffix history }*
+ * 2 epoch count { keyDelta history }*
+ * 3 epoch alpha count { keyDelta history rates }*
+ * </pre>
+ * Version 1 writes the test ids sorted and front coded against the previous id.
+ * Version 2 writes the sorted keys of the ids in the job's {@link TestIdDictionary}
+ * as deltas to the previous key, plus the dictionary's epoch as 8 bytes.
+ * Version 3 adds the exponentially weighted rates of the histories, see
+ * {@link CircularStabilityHistory#writeEwma(Output)}, and their smoothing factor
+ * as the bits of a float.
+ * See {@link CircularStabilityHistory#writeCompact(Output)} for the layout of a single history.
+ * <p>
+ * {@link Reader} decodes single histories on demand, without materializing the others.
+ *
+ * @author ckutz
+ */
+final class CompactFormat {
+
+	static final int VERSION = 1;
+	
+	static final int VERSION_KEYED = 2;
+	
+	static final int VERSION_EWMA = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private CompactFormat() {}
+
+	static byte[] encode(Map<String, CircularStabilityHistory> histories) {
+		List<String> ids = new ArrayList<String>(histories.keySet());
+		Collections.sort(ids);
+
+		Output out = new Output();
+		out.writeUnsigned(VERSION);
+		out.writeUnsigned(ids.size());
+
+		byte[] previous = new byte[0];
+		for (String id : ids) {
+			byte[] current = id.getBytes(UTF8);
+			writeId(out, previous, current);
+			histories.get(id).writeCompact(out);
+			previous = current;
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Encodes histories keyed by their keys in the {@link TestIdDictionary} with the given epoch.
+	 */
+	static byte[] encode(long epoch, SortedMap<Integer, CircularStabilityHistory> histories) {
+		return encode(epoch, 0f, histories);
+	}
+	
+	/**
+	 * Encodes keyed histories, with their exponentially weighted rates if
+	 * <code>ewmaAlpha</code>, the smoothing factor they are tracked with, isn't 0.
+	 */
+	static byte[] encode(long epoch, float ewmaAlpha, SortedMap<Integer, CircularStabilityHistory> histories) {
+		boolean ewma = ewmaAlpha > 0;
+		Output out = new Output();
+		out.writeUnsigned(ewma ? VERSION_EWMA : VERSION_KEYED);
+		out.writeLong(epoch);
+		if (ewma) {
+			out.writeUnsigned(Float.floatToIntBits(ewmaAlpha));
+		}
+		out.writeUnsigned(histories.size());
+		
+		int previous = 0;
+		for (Map.Entry<Integer, CircularStabilityHistory> entry : histories.entrySet()) {
+			out.writeUnsigned(entry.getKey() - previous);
+			entry.getValue().writeCompact(out);
+			if (ewma) {
+				entry.getValue().writeEwma(out);
+			}
+			previous = entry.getKey();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Random access to the histories of an encoded payload.
+	 * <p>
+	 * The first lookup scans the entries once and remembers the id or key and
+	 * the position of every {@value #RESTART_INTERVAL}th entry. Later lookups
+	 * binary search these restart points and decode the entries following the
+	 * nearest one until the id is found; only that history is decoded.
+	 */
+	static final class Reader {
+		
+		static final int RESTART_INTERVAL = 16;
+		
+		private final byte[] data;
+		private final boolean keyed;
+		private final long epoch;
+		// smoothing factor of the weighted rates, 0 if the payload has none
+		private final float ewmaAlpha;
+		private final int count;
+		private final int firstEntry;
+		
+		private volatile Restarts restarts;
+		
+		Reader(byte[] data) {
+			Input in = new Input(data);
+			int version = in.readUnsigned();
+			if (version != VERSION && version != VERSION_KEYED && version != VERSION_EWMA) {
+				throw new IllegalArgumentException("Unsupported stability data version " + version);
+			}
+			this.data = data;
+			this.keyed = version != VERSION;
+			this.epoch = keyed ? in.readLong() : 0;
+			this.ewmaAlpha = version == VERSION_EWMA ? Float.intBitsToFloat(in.readUnsigned()) : 0f;
+			if (version == VERSION_EWMA && !(ewmaAlpha > 0 && ewmaAlpha <= 1)) {
+				throw new IllegalArgumentException("Malformed smoothing factor " + ewmaAlpha);
+			}
+			this.count = in.readUnsigned();
+			this.firstEntry = in.position();
+		}
+		
+		/**
+		 * Returns the encoded payload, as passed to the constructor.
+		 */
+		byte[] getData() {
+			return data;
+		}
+		
+		/**
+		 * Whether the histories are keyed by {@link TestIdDictionary} keys instead of test ids.
+		 */
+		boolean isKeyed() {
+			return keyed;
+		}
+		
+		/**
+		 * The epoch of the {@link TestIdDictionary} the keys belong to.
+		 */
+		long getEpoch() {
+			return epoch;
+		}
+
+		/**
+		 * The smoothing factor of the histories' weighted rates, 0 if they have none.
+		 */
+		float getEwmaAlpha() {
+			return ewmaAlpha;
+		}
+		
+		/**
+		 * Decodes the history of the given test.
+		 * 
+		 * @return null if the payload has no history for the test, or is keyed
+		 * @throws IllegalArgumentException if the payload is malformed
+		 */
+		CircularStabilityHistory get(String testId) {
+			if (keyed) {
+				return null;
+			}
+			Restarts r = getRestarts();
+			int k = Arrays.binarySearch(r.ids, testId);
+			if (k >= 0) {
+				return readEntry(new Input(data, r.positions[k]));
+			}
+			k = -k - 2;
+			if (k < 0) {
+				return null;
+			}
+			
+			byte[] target = testId.getBytes(UTF8);
+			byte[] previous = r.ids[k].getBytes(UTF8);
+			Input in = new Input(data, r.positions[k]);
+			skipEntry(in);
+			int end = Math.min(count, (k + 1) * RESTART_INTERVAL);
+			for (int i = k * RESTART_INTERVAL + 1; i < end; i++) {
+				previous = readId(in, previous);
+				if (Arrays.equals(previous, target)) {
+					return readEntry(in);
+				}
+				skipEntry(in);
+			}
+			return null;
+		}
+		
+		/**
+		 * Decodes the history of the test with the given key.
+		 * 
+		 * @return null if the payload has no history for the key, or isn't keyed
+		 * @throws IllegalArgumentException if the payload is malformed
+		 */
+		CircularStabilityHistory get(int key) {
+			if (!keyed) {
+				return null;
+			}
+			Restarts r = getRestarts();
+			int k = Arrays.binarySearch(r.keys, key);
+			if (k >= 0) {
+				return readEntry(new Input(data, r.positions[k]));
+			}
+			k = -k - 2;
+			if (k < 0) {
+				return null;
+			}
+			
+			int current = r.keys[k];
+			Input in = new Input(data, r.positions[k]);
+			skipEntry(in);
+			int end = Math.min(count, (k + 1) * RESTART_INTERVAL);
+			for (int i = k * RESTART_INTERVAL + 1; i < end && current < key; i++) {
+				current += in.readUnsigned();
+				if (current == key) {
+					return readEntry(in);
+				}
+				skipEntry(in);
+			}
+			return null;
+		}
+		
+		/**
+		 * Passes all histories to the visitor in the order they are stored, decoding one at a time.
+		 * Keys are resolved with the given dictionary, keys it doesn't know are skipped.
+		 * 
+		 * @return false if the visitor stopped
+		 * @throws IllegalArgumentException if the payload is malformed
+		 */
+		boolean visit(StabilityTestData.HistoryVisitor visitor, @CheckForNull TestIdDictionary dictionary) {
+			if (keyed && dictionary == null) {
+				return true;
+			}
+			Input in = new Input(data, firstEntry);
+			byte[] previousId = new byte[0];
+			int previousKey = 0;
+			for (int i = 0; i < count; i++) {
+				String id;
+				if (keyed) {
+					previousKey += in.readUnsigned();
+					id = dictionary.getId(epoch, previousKey);
+				} else {
+					previousId = readId(in, previousId);
+					id = new String(previousId, UTF8);
+				}
+				if (id == null) {
+					skipEntry(in);
+				} else if (!visitor.visit(id, readEntry(in))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private CircularStabilityHistory readEntry(Input in) {
+			CircularStabilityHistory history = CircularStabilityHistory.readCompact(in);
+			if (ewmaAlpha > 0) {
+				history.readEwma(in, ewmaAlpha);
+			}
+			return history;
+		}
+		
+		private void skipEntry(Input in) {
+			CircularStabilityHistory.skipCompact(in);
+			if (ewmaAlpha > 0) {
+				CircularStabilityHistory.skipEwma(in);
+			}
+		}
+		
+		private Restarts getRestarts() {
+			Restarts r = restarts;
+			if (r == null) {
+				int restartCount = (count + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+				String[] ids = keyed ? null : new String[restartCount];
+				int[] keys = keyed ? new int[restartCount] : null;
+				int[] positions = new int[restartCount];
+				
+				Input in = new Input(data, firstEntry);
+				byte[] previousId = new byte[0];
+				int previousKey = 0;
+				for (int i = 0; i < count; i++) {
+					if (keyed) {
+						previousKey += in.readUnsigned();
+					} else {
+						previousId = readId(in, previousId);
+					}
+					if (i % RESTART_INTERVAL == 0) {
+						if (keyed) {
+							keys[i / RESTART_INTERVAL] = previousKey;
+						} else {
+							ids[i / RESTART_INTERVAL] = new String(previousId, UTF8);
+						}
+						positions[i / RESTART_INTERVAL] = in.position();
+					}
+					skipEntry(in);
+				}
+				r = new Restarts(ids, keys, positions);
+				restarts = r;
+			}
+			return r;
+		}
+		
+		private static final class Restarts {
+			final String[] ids;
+			final int[] keys;
+			final int[] positions;
+			
+			Restarts(String[] ids, int[] keys, int[] positions) {
+				this.ids = ids;
+				this.keys = keys;
+				this.positions = positions;
+			}
+		}
+	}
+	
+	/**
+	 * Writes <code>current</code> front coded against <code>previous</code>.
+	 */
+	static void writeId(Output out, byte[] previous, byte[] current) {
+		int shared = sharedPrefixLength(previous, current);
+		out.writeUnsigned(shared);
+		out.writeUnsigned(current.length - shared);
+		out.write(current, shared, current.length - shared);
+	}
+	
+	static byte[] readId(Input in, byte[] previous) {
+		int shared = in.readUnsigned();
+		int suffixLength = in.readUnsigned();
+		if (shared > previous.length || suffixLength < 0) {
+			throw new IllegalArgumentException("Malformed id at offset " + in.position());
+		}
+		byte[] current = new byte[shared + suffixLength];
+		System.arraycopy(previous, 0, current, 0, shared);
+		in.read(current, shared, suffixLength);
+		return current;
+	}
+
+	private static int sharedPrefixLength(byte[] a, byte[] b) {
+		int max = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < max && a[i] == b[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	static class Output extends ByteArrayOutputStream {
+
+		void writeUnsigned(int value) {
+			while ((value & ~0x7F) != 0) {
+				write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			write(value);
+		}
+
+		void writeSigned(int value) {
+			writeUnsigned((value << 1) ^ (value >> 31));
+		}
+
+		void writeLong(long value) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				write((int) (value >>> shift));
+			}
+		}
+	}
+
+	static class Input {
+
+		private final byte[] data;
+		private int pos;
+
+		Input(byte[] data) {
+			this(data, 0);
+		}
+
+		Input(byte[] data, int pos) {
+			this.data = data;
+			this.pos = pos;
+		}
+
+		int position() {
+			return pos;
+		}
+
+		int readUnsigned() {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				byte b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint at offset " + pos);
+		}
+
+		int readSigned() {
+			int value = readUnsigned();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		long readLong() {
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (readByte() & 0xff);
+			}
+			return value;
+		}
+
+		byte readByte() {
+			if (pos >= data.length) {
+				throw new IllegalArgumentException("Unexpected end of stability data");
+			}
+			return data[pos++];
+		}
+
+		void read(byte[] target, int offset, int length) {
+			if (pos + length > data.length) {
+				throw new IllegalArgumentException("Unexpected end of stability data");
+			}
+			System.arraycopy(data, pos, target, offset, length);
+			pos += length;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The flakiest and the least stable test cases of a build, computed when
+ * recording, so that job-wide queries don't have to load every test's action.
+ * <p>
+ * Only keeps the {@value #MAX_ENTRIES} flakiest and the {@value #MAX_ENTRIES}
+ * least stable cases. Tests without a history passed in all recorded builds
+ * and aren't ranked.
+ * 
+ * @author ckutz
+ */
+public final class FlakinessRanking {
+	
+	static final int MAX_ENTRIES = 1000;
+	
+	/**
+	 * Flakiest first, then least stable, then by id.
+	 */
+	static final Comparator<Entry> BY_FLAKINESS = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			if (a.flakiness != b.flakiness) {
+				return a.flakiness > b.flakiness ? -1 : 1;
+			}
+			if (a.stability != b.stability) {
+				return a.stability < b.stability ? -1 : 1;
+			}
+			return a.id.compareTo(b.id);
+		}
+	};
+	
+	/**
+	 * Least stable first, then flakiest, then by id.
+	 */
+	static final Comparator<Entry> BY_STABILITY = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			if (a.stability != b.stability) {
+				return a.stability < b.stability ? -1 : 1;
+			}
+			if (a.flakiness != b.flakiness) {
+				return a.flakiness > b.flakiness ? -1 : 1;
+			}
+			return a.id.compareTo(b.id);
+		}
+	};
+	
+	private final Entry[] byFlakiness;
+	private final Entry[] byStability;
+	private final boolean truncated;
+	
+	private FlakinessRanking(Entry[] byFlakiness, Entry[] byStability, boolean truncated) {
+		this.byFlakiness = byFlakiness;
+		this.byStability = byStability;
+		this.truncated = truncated;
+	}
+	
+	/**
+	 * Returns the <code>n</code> flakiest tests, flakiest first.
+	 */
+	public List<Entry> getTopFlaky(int n) {
+		return Collections.unmodifiableList(Arrays.asList(byFlakiness).subList(0, Math.max(0, Math.min(n, byFlakiness.length))));
+	}
+	
+	/**
+	 * Returns the tests with a stability below <code>percent</code>, least stable first.
+	 */
+	public List<Entry> getBelowStability(int percent) {
+		int end = 0;
+		while (end < byStability.length && byStability[end].stability < percent) {
+			end++;
+		}
+		return Collections.unmodifiableList(Arrays.asList(byStability).subList(0, end));
+	}
+	
+	/**
+	 * Whether tests were left out because there were more than {@value #MAX_ENTRIES}.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+	
+	public int getMaxEntries() {
+		return MAX_ENTRIES;
+	}
+	
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Entry {
+		
+		private final String id;
+		private final int flakiness;
+		private final int stability;
+		private final int failed;
+		private final int total;
+		
+		Entry(String id, CircularStabilityHistory history) {
+			this.id = id;
+			this.total = history.size();
+			this.failed = history.getFailed();
+			this.stability = total > 0 ? StabilityTestAction.computeStability(history) : 100;
+			this.flakiness = StabilityTestAction.computeFlakiness(history);
+		}
+		
+		/**
+		 * The id of the test case, e.g. <code>junit/com.acme/FooTest/testBar</code>.
+		 */
+		@Exported
+		public String getId() {
+			return id;
+		}
+		
+		/**
+		 * The URL of the test case relative to the build's test report.
+		 */
+		public String getUrl() {
+			// drop the "junit/" prefix
+			int slash = id.indexOf('/');
+			return slash >= 0 ? id.substring(slash + 1) : id;
+		}
+		
+		@Exported
+		public int getFlakiness() {
+			return flakiness;
+		}
+		
+		@Exported
+		public int getStability() {
+			return stability;
+		}
+		
+		@Exported
+		public int getFailed() {
+			return failed;
+		}
+		
+		@Exported
+		public int getTotal() {
+			return total;
+		}
+	}
+	
+	/**
+	 * Collects the entries with two bounded heaps, so that recording a huge
+	 * test result only keeps {@value #MAX_ENTRIES} entries per order.
+	 */
+	static final class Builder {
+		
+		private final int maxEntries;
+		
+		// the heads are the entries to drop first
+		private final PriorityQueue<Entry> flakiest;
+		private final PriorityQueue<Entry> leastStable;
+		
+		private boolean truncated;
+		
+		Builder() {
+			this(MAX_ENTRIES);
+		}
+		
+		Builder(int maxEntries) {
+			this.maxEntries = maxEntries;
+			this.flakiest = new PriorityQueue<Entry>(maxEntries + 1, Collections.reverseOrder(BY_FLAKINESS));
+			this.leastStable = new PriorityQueue<Entry>(maxEntries + 1, Collections.reverseOrder(BY_STABILITY));
+		}
+		
+		void add(String testId, CircularStabilityHistory history) {
+			if (history.size() == 0) {
+				return;
+			}
+			add(new Entry(testId, history));
+		}
+		
+		/**
+		 * Adds the entries of another ranking of the same build.
+		 */
+		void addAll(FlakinessRanking ranking) {
+			truncated |= ranking.truncated;
+			for (Entry entry : ranking.byFlakiness) {
+				offer(flakiest, entry);
+			}
+			for (Entry entry : ranking.byStability) {
+				offer(leastStable, entry);
+			}
+		}
+		
+		private void add(Entry entry) {
+			offer(flakiest, entry);
+			if (entry.stability < 100) {
+				offer(leastStable, entry);
+			}
+		}
+		
+		private void offer(PriorityQueue<Entry> heap, Entry entry) {
+			if (heap.size() < maxEntries) {
+				heap.add(entry);
+				return;
+			}
+			truncated = true;
+			if (heap.comparator().compare(entry, heap.peek()) > 0) {
+				heap.poll();
+				heap.add(entry);
+			}
+		}
+		
+		FlakinessRanking build() {
+			return new FlakinessRanking(sorted(flakiest, BY_FLAKINESS), sorted(leastStable, BY_STABILITY), truncated);
+		}
+		
+		private static Entry[] sorted(PriorityQueue<Entry> heap, Comparator<Entry> order) {
+			List<Entry> entries = new ArrayList<Entry>(heap);
+			Collections.sort(entries, order);
+			return entries.toArray(new Entry[entries.size()]);
+		}
+	}
+}
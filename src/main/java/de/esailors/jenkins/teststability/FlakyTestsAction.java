@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.model.TransientActionFactory;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Job page listing the flakiest and least stable tests of the last build
+ * with a {@link FlakinessRanking}.
+ * <p>
+ * Answers from the ranking recorded with that build, without loading any test report.
+ * 
+ * @author ckutz
+ */
+public class FlakyTestsAction implements Action {
+	
+	// how far to look back for a build with a ranking, e.g. past builds without tests
+	private static final int MAX_BUILDS_TO_SEARCH = 10;
+	
+	static final int DEFAULT_TOP = 25;
+	
+	static final int DEFAULT_BELOW = 50;
+	
+	private final Job<?, ?> job;
+	
+	FlakyTestsAction(Job<?, ?> job) {
+		this.job = job;
+	}
+	
+	public Job<?, ?> getJob() {
+		return job;
+	}
+	
+	/**
+	 * The build whose ranking is shown.
+	 */
+	public @CheckForNull Run<?, ?> getBuild() {
+		Run<?, ?> run = job.getLastCompletedBuild();
+		for (int i = 0; run != null && i < MAX_BUILDS_TO_SEARCH; i++, run = run.getPreviousCompletedBuild()) {
+			if (run.getAction(StabilityRankingAction.class) != null) {
+				return run;
+			}
+		}
+		return null;
+	}
+	
+	public @CheckForNull FlakinessRanking getRanking() {
+		Run<?, ?> run = getBuild();
+		return run != null ? run.getAction(StabilityRankingAction.class).getRanking() : null;
+	}
+	
+	/**
+	 * Returns the <code>n</code> flakiest tests of the last ranked build.
+	 */
+	public List<FlakinessRanking.Entry> getTopFlaky(int n) {
+		FlakinessRanking ranking = getRanking();
+		return ranking != null ? ranking.getTopFlaky(n) : Collections.<FlakinessRanking.Entry>emptyList();
+	}
+	
+	/**
+	 * Returns the tests of the last ranked build with a stability below <code>percent</code>.
+	 */
+	public List<FlakinessRanking.Entry> getBelowStability(int percent) {
+		FlakinessRanking ranking = getRanking();
+		return ranking != null ? ranking.getBelowStability(percent) : Collections.<FlakinessRanking.Entry>emptyList();
+	}
+	
+	/**
+	 * Number of flakiest tests to show, from the <code>top</code> request parameter.
+	 */
+	public int getTop() {
+		return intParameter("top", DEFAULT_TOP);
+	}
+	
+	/**
+	 * Stability in percent below which tests are shown, from the <code>below</code> request parameter.
+	 */
+	public int getBelow() {
+		return intParameter("below", DEFAULT_BELOW);
+	}
+	
+	private static int intParameter(String name, int defaultValue) {
+		StaplerRequest request = Stapler.getCurrentRequest();
+		String value = request != null ? request.getParameter(name) : null;
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	public String getIconFileName() {
+		return "clipboard.png";
+	}
+	
+	public String getDisplayName() {
+		return "Flaky tests";
+	}
+	
+	public String getUrlName() {
+		return "flakyTests";
+	}
+	
+	@Extension
+	public static class Factory extends TransientActionFactory<Job> {
+		
+		@Override
+		public Class<Job> type() {
+			return Job.class;
+		}
+		
+		@Override
+		public @Nonnull Collection<? extends Action> createFor(@Nonnull Job target) {
+			Run<?, ?> last = target.getLastCompletedBuild();
+			if (last == null || last.getAction(StabilityRankingAction.class) == null) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new FlakyTestsAction((Job<?, ?>) target));
+		}
+	}
+}
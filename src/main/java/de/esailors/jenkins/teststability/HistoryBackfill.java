@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.ClassResult;
+import hudson.tasks.junit.PackageResult;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the histories of tests which failed without a previous history
+ * (e.g. because the publisher wasn't enabled before) from older builds.
+ * <p>
+ * All pending tests are looked up in one sweep over the previous builds, so
+ * every older test report is loaded at most once. The sweep stops after
+ * <code>maxBuilds</code> builds with test results, once the time budget is
+ * used up, or as soon as no pending test is found in a build anymore.
+ * <p>
+ * Tests are only scheduled while the estimated memory of the sweep fits into
+ * the memory budget: per test the bookkeeping of the sweep, i.e. the id and
+ * the {@link BitSet} of found results, plus the entries of its history.
+ * 
+ * @author ckutz
+ */
+class HistoryBackfill {
+	
+	// object headers and references on a 64-bit JVM with compressed oops
+	private static final int PENDING_SIZE = 40;
+	private static final int BIT_SET_SIZE = 24;
+	private static final int STRING_SIZE = 24;
+	private static final int ARRAY_SIZE = 16;
+	
+	private final int maxBuilds;
+	private final long timeBudgetMillis;
+	private final long memoryBudget;
+	
+	private final List<Pending> pending = new ArrayList<Pending>();
+	
+	private long estimatedSize;
+	private int skipped;
+	
+	/**
+	 * @param maxBuilds number of previous builds with test results to look at
+	 * @param timeBudgetMillis time after which the sweep is stopped, 0 for no limit
+	 * @param memoryBudget bytes the scheduled tests may take at most, 0 for no limit
+	 */
+	HistoryBackfill(int maxBuilds, long timeBudgetMillis, long memoryBudget) {
+		this.maxBuilds = maxBuilds;
+		this.timeBudgetMillis = timeBudgetMillis;
+		this.memoryBudget = memoryBudget;
+	}
+	
+	/**
+	 * Schedules the given, still empty, history of a class or case result to be filled.
+	 * 
+	 * @return false if the test wasn't scheduled, because the memory budget was used up
+	 */
+	// NB: abstract TestResult
+	boolean add(hudson.tasks.test.TestResult result, CircularStabilityHistory history) {
+		String id = result.getId();
+		long size = estimateSize(id, history);
+		if (memoryBudget > 0 && estimatedSize + size > memoryBudget) {
+			skipped++;
+			return false;
+		}
+		
+		if (result instanceof ClassResult) {
+			ClassResult classResult = (ClassResult) result;
+			pending.add(new Pending(history, id, classResult.getParent().getName(), classResult.getName(), null));
+		} else if (result instanceof CaseResult) {
+			ClassResult classResult = ((CaseResult) result).getParent();
+			pending.add(new Pending(history, id, classResult.getParent().getName(), classResult.getName(),
+					result.getSafeName()));
+		} else {
+			return false;
+		}
+		estimatedSize += size;
+		return true;
+	}
+	
+	/**
+	 * Estimates the memory a scheduled test takes until the sweep is done:
+	 * its id, the bits of the results found in up to <code>maxBuilds</code>
+	 * builds, which the {@link BitSet} may have doubled, and the storage of
+	 * its history, with room for twice its capacity.
+	 */
+	private long estimateSize(String id, CircularStabilityHistory history) {
+		int foundWords = 2 * ((maxBuilds + 63) >>> 6);
+		int entries = 2 * history.getMaxSize();
+		return PENDING_SIZE + STRING_SIZE + ARRAY_SIZE + 2L * id.length()
+				+ BIT_SET_SIZE + ARRAY_SIZE + 8L * foundWords
+				+ ARRAY_SIZE + 8L * ((entries + 63) >>> 6) + ARRAY_SIZE + 2L * entries;
+	}
+	
+	boolean isEmpty() {
+		return pending.isEmpty();
+	}
+	
+	/**
+	 * Looks up all scheduled tests in the builds before <code>run</code> and
+	 * adds the found results to their histories, oldest first.
+	 * <p>
+	 * The stability data of builds recorded with the publisher tells which
+	 * tests ran in them, so their test reports are only loaded if one of the
+	 * scheduled tests did.
+	 * 
+	 * @param testResult the test result of <code>run</code>, used to find the data of the previous builds
+	 */
+	void run(Run<?, ?> run, TestResult testResult, TaskListener listener) {
+		if (skipped > 0) {
+			listener.getLogger().println("[Test stability] Not backfilling the history of "
+					+ skipped + " more failed tests (memory budget of " + (memoryBudget >> 10) + " KB used up)");
+		}
+		
+		long start = System.currentTimeMillis();
+		List<Integer> buildNumbers = new ArrayList<Integer>(maxBuilds);
+		List<Pending> searching = new ArrayList<Pending>(pending);
+		
+		for (Run<?, ?> previous = run.getPreviousBuild();
+				previous != null && buildNumbers.size() < maxBuilds && !searching.isEmpty();
+				previous = previous.getPreviousBuild()) {
+			
+			if (timeBudgetMillis > 0 && System.currentTimeMillis() - start > timeBudgetMillis) {
+				listener.getLogger().println("[Test stability] Stopped backfilling test histories after "
+						+ buildNumbers.size() + " builds, time budget of " + timeBudgetMillis + "ms exceeded");
+				break;
+			}
+			
+			TestResultAction action = previous.getAction(TestResultAction.class);
+			if (action == null) {
+				continue;
+			}
+			if (removeNotRun(searching, StabilityTestData.getAll(action, testResult), previous)) {
+				// like below, but without loading the report
+				continue;
+			}
+			TestResult previousResult = action.getResult();
+			if (previousResult == null) {
+				continue;
+			}
+			
+			int depth = buildNumbers.size();
+			buildNumbers.add(previous.getNumber());
+			
+			for (Iterator<Pending> it = searching.iterator(); it.hasNext();) {
+				Pending p = it.next();
+				// NB: abstract TestResult
+				hudson.tasks.test.TestResult result = p.find(previousResult);
+				if (result == null) {
+					// like getPreviousResult(), the history ends with the first build without the test
+					it.remove();
+					continue;
+				}
+				if (result.isPassed()) {
+					p.passed.set(depth);
+				}
+				p.found++;
+			}
+		}
+		
+		for (Pending p : pending) {
+			for (int i = p.found - 1; i >= 0; i--) {
+				p.history.add(buildNumbers.get(i), p.passed.get(i));
+			}
+		}
+		pending.clear();
+	}
+	
+	/**
+	 * Stops searching the tests which didn't run in a build recorded with
+	 * the publisher: they neither have a history nor are clean there.
+	 * Skipped tests aren't tracked either, like when recording.
+	 * 
+	 * @return true if no test is left to search, or none of the remaining ran in the build
+	 */
+	private static boolean removeNotRun(List<Pending> searching, List<StabilityTestData> recorded, Run<?, ?> build) {
+		if (recorded.isEmpty()) {
+			return false;
+		}
+		List<StabilityTestData.Lookup> lookups = new ArrayList<StabilityTestData.Lookup>(recorded.size());
+		for (StabilityTestData data : recorded) {
+			// doesn't wait for another build still recording, which may wait for this one
+			if (!data.awaitComputed(0, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+			// recorded before clean tests were kept, passed tests weren't tracked at all
+			if (data.getCleanTests() == null) {
+				return false;
+			}
+			data.attach(build.getParent());
+			lookups.add(data.lookup());
+		}
+		
+		boolean anyRan = false;
+		for (Iterator<Pending> it = searching.iterator(); it.hasNext();) {
+			String id = it.next().id;
+			boolean ran = false;
+			for (StabilityTestData.Lookup lookup : lookups) {
+				// a false positive of the filter only costs loading the report
+				if (lookup.mightHaveHistory(id) || lookup.getCleanSince(id) >= 0) {
+					ran = true;
+					break;
+				}
+			}
+			if (ran) {
+				anyRan = true;
+			} else {
+				it.remove();
+			}
+		}
+		return !anyRan;
+	}
+	
+	private static class Pending {
+		final CircularStabilityHistory history;
+		final String id;
+		final String packageName;
+		final String className;
+		final String caseName;
+		// results found so far, from newest to oldest
+		final BitSet passed = new BitSet();
+		int found;
+		
+		Pending(CircularStabilityHistory history, String id, String packageName, String className, String caseName) {
+			this.history = history;
+			this.id = id;
+			this.packageName = packageName;
+			this.className = className;
+			this.caseName = caseName;
+		}
+		
+		// NB: abstract TestResult
+		hudson.tasks.test.TestResult find(TestResult testResult) {
+			PackageResult pkgResult = testResult.byPackage(packageName);
+			if (pkgResult == null) {
+				return null;
+			}
+			ClassResult classResult = pkgResult.getClassResult(className);
+			if (classResult == null || caseName == null) {
+				return classResult;
+			}
+			return classResult.getCaseResult(caseName);
+		}
+	}
+}
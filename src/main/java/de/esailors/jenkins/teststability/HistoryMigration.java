@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Rewrites the recorded histories of all jobs after the max history length
+ * was shrunk, so that the histories the next builds continue free memory
+ * right away. Growing it needs no migration, the histories grow with the
+ * next builds.
+ * <p>
+ * Only the newest completed build with histories of every job is rewritten,
+ * as the next build only reads the histories of that one. Older builds keep
+ * the histories they were recorded with, they are only read when shown or
+ * backfilled from, and are dropped with the builds. Builds still running are
+ * skipped, they record with the new length anyway.
+ * <p>
+ * Jobs are migrated by a fixed number of threads. Builds are loaded one at a
+ * time, newest first, until the one with histories, and the thread pauses
+ * after every loaded build and longer after every rewritten build record, to
+ * leave the disk to running builds.
+ * <p>
+ * Changing the length again cancels a running migration.
+ * 
+ * @author ckutz
+ */
+final class HistoryMigration {
+	
+	static final int THREADS = 2;
+	
+	static final long PAUSE_MILLIS = 20;
+	
+	static final long LOAD_PAUSE_MILLIS = 2;
+	
+	private static final Logger LOGGER = Logger.getLogger(HistoryMigration.class.getName());
+	
+	private static HistoryMigration current;
+	
+	private final int maxHistoryLength;
+	private final ExecutorService executor;
+	private final int totalJobs;
+	private final AtomicInteger migratedJobs = new AtomicInteger();
+	private final AtomicInteger rewrittenBuilds = new AtomicInteger();
+	private final AtomicInteger failedBuilds = new AtomicInteger();
+	private final long started = System.currentTimeMillis();
+	private volatile boolean cancelled;
+	
+	private HistoryMigration(int maxHistoryLength, List<? extends Job<?, ?>> jobs) {
+		this.maxHistoryLength = maxHistoryLength;
+		this.totalJobs = jobs.size();
+		this.executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			private final AtomicInteger threads = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Test stability history migration #" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		for (final Job<?, ?> job : jobs) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					migrate(job);
+				}
+			});
+		}
+		executor.shutdown();
+	}
+	
+	/**
+	 * Starts migrating the histories of all jobs to the given max history length,
+	 * cancelling the migration still running.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static synchronized HistoryMigration start(int maxHistoryLength) {
+		if (current != null) {
+			current.cancel();
+		}
+		List<Job> jobs = Jenkins.getActiveInstance().getAllItems(Job.class);
+		LOGGER.log(Level.INFO, "Migrating the test stability histories of {0} jobs to a length of {1}",
+				new Object[] { jobs.size(), maxHistoryLength });
+		current = new HistoryMigration(maxHistoryLength, (List) jobs);
+		return current;
+	}
+	
+	/**
+	 * Cancels the migration still running, if any.
+	 */
+	static synchronized void cancelCurrent() {
+		if (current != null) {
+			current.cancel();
+		}
+	}
+	
+	/**
+	 * Returns the last started migration, null if none was started since startup.
+	 */
+	static synchronized @CheckForNull HistoryMigration getCurrent() {
+		return current;
+	}
+	
+	private void migrate(Job<?, ?> job) {
+		// not job.getBuilds(), which loads all builds up front
+		for (Run<?, ?> run = job.getLastBuild(); run != null; run = run.getPreviousBuild()) {
+			if (cancelled) {
+				return;
+			}
+			try {
+				if (migrate(job, run)) {
+					break;
+				}
+				Thread.sleep(LOAD_PAUSE_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		
+		if (migratedJobs.incrementAndGet() == totalJobs) {
+			LOGGER.log(Level.INFO, "Migrated the test stability histories of {0} builds in {1} ms",
+					new Object[] { rewrittenBuilds.get(), System.currentTimeMillis() - started });
+		}
+	}
+	
+	/**
+	 * Rewrites the histories of the given build, if it has any.
+	 * 
+	 * @return whether the build has histories, i.e. the builds before it don't need to be migrated
+	 */
+	private boolean migrate(Job<?, ?> job, Run<?, ?> run) throws InterruptedException {
+		if (run.isBuilding()) {
+			return false;
+		}
+		TestResultAction action = run.getAction(TestResultAction.class);
+		if (action == null) {
+			return false;
+		}
+		// an empty result only asks the build's data, doesn't load the test report
+		StabilityTestData data = StabilityTestData.get(action, new TestResult());
+		if (data == null) {
+			return false;
+		}
+		data.attach(job);
+		
+		try {
+			if (data.resize(maxHistoryLength, run.getNumber(), run.getRootDir().getParentFile())) {
+				run.save();
+				rewrittenBuilds.incrementAndGet();
+				Thread.sleep(PAUSE_MILLIS);
+			}
+		} catch (IOException e) {
+			failedBuilds.incrementAndGet();
+			LOGGER.log(Level.WARNING, "Failed to migrate the test stability histories of " + run, e);
+		}
+		return true;
+	}
+	
+	/**
+	 * Stops the migration after the builds being rewritten.
+	 */
+	void cancel() {
+		cancelled = true;
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Waits for all jobs to be migrated.
+	 * 
+	 * @return false if the timeout elapsed before
+	 */
+	boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+	
+	int getMaxHistoryLength() {
+		return maxHistoryLength;
+	}
+	
+	int getTotalJobs() {
+		return totalJobs;
+	}
+	
+	int getMigratedJobs() {
+		return migratedJobs.get();
+	}
+	
+	int getRewrittenBuilds() {
+		return rewrittenBuilds.get();
+	}
+	
+	int getFailedBuilds() {
+		return failedBuilds.get();
+	}
+	
+	boolean isCancelled() {
+		return cancelled;
+	}
+	
+	boolean isDone() {
+		return executor.isTerminated();
+	}
+	
+	@Override
+	public String toString() {
+		if (cancelled) {
+			return String.format("Migration to a history length of %d cancelled after %d of %d jobs",
+					maxHistoryLength, migratedJobs.get(), totalJobs);
+		}
+		return String.format("Migrated %d of %d jobs to a history length of %d, %d build records rewritten, %d failed",
+				migratedJobs.get(), totalJobs, maxHistoryLength, rewrittenBuilds.get(), failedBuilds.get());
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.TransientActionFactory;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Build level REST endpoint streaming the stability of all tests of the build as JSON.
+ * <p>
+ * <code>testStability/json</code> writes
+ * <pre>
+ * {"build":12,"offset":0,"limit":1000,"tests":[
+ *   {"id":"junit/foo/BarTest/testA","stability":50,"flakiness":100,"failed":1,"runs":2,"builds":[11,12],"passed":"10"},
+ *   ...],"more":false}
+ * </pre>
+ * where <code>passed</code> holds one digit per entry of <code>builds</code>,
+ * <code>1</code> for passed and <code>0</code> for failed. Tests which only
+ * keep weighted rates, see {@link StabilityTestDataPublisher.MetricMode#EWMA},
+ * have <code>"weighted":true</code> instead of <code>failed</code>,
+ * <code>runs</code>, <code>builds</code> and <code>passed</code>.
+ * <p>
+ * Request parameters: <code>offset</code> and <code>limit</code> page through
+ * the matching tests, <code>minFlakiness</code>, <code>maxStability</code> and
+ * the id <code>prefix</code> filter them. <code>more</code> tells whether
+ * there are matching tests after the page.
+ * <p>
+ * The histories are written as they are decoded from the build's
+ * {@link StabilityTestData}, one at a time, so the memory needed doesn't
+ * depend on the number of tests. Tests without failures are only visited
+ * when the filters let them through.
+ * 
+ * @author ckutz
+ */
+public class StabilityExportAction implements Action {
+	
+	static final int DEFAULT_LIMIT = 1000;
+	
+	private final Run<?, ?> run;
+	
+	StabilityExportAction(Run<?, ?> run) {
+		this.run = run;
+	}
+	
+	public Run<?, ?> getRun() {
+		return run;
+	}
+	
+	public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		StabilityTestData data = getData();
+		if (data == null) {
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		Filter filter = new Filter(
+				intParameter(req, "offset", 0),
+				intParameter(req, "limit", DEFAULT_LIMIT),
+				intParameter(req, "minFlakiness", 0),
+				intParameter(req, "maxStability", 100),
+				req.getParameter("prefix"));
+		rsp.setContentType("application/json;charset=UTF-8");
+		Writer writer = rsp.getWriter();
+		write(data, run.getNumber(), filter, writer);
+		writer.flush();
+	}
+	
+	private @CheckForNull StabilityTestData getData() {
+		TestResultAction action = run.getAction(TestResultAction.class);
+		if (action == null) {
+			return null;
+		}
+		// an empty result, so that the build's test report isn't loaded
+		StabilityTestData data = StabilityTestData.get(action, new TestResult());
+		if (data != null) {
+			data.attach(run.getParent());
+		}
+		return data;
+	}
+	
+	/**
+	 * Writes the page of tests matching the filter.
+	 */
+	static void write(StabilityTestData data, int buildNumber, Filter filter, Writer writer) throws IOException {
+		writer.write("{\"build\":" + buildNumber + ",\"offset\":" + filter.offset + ",\"limit\":" + filter.limit + ",\"tests\":[");
+		JsonVisitor visitor = new JsonVisitor(filter, writer);
+		boolean complete = data.visit(visitor, filter.acceptsClean());
+		if (visitor.failure != null) {
+			throw visitor.failure;
+		}
+		writer.write("],\"more\":" + !complete + "}");
+	}
+	
+	private static int intParameter(StaplerRequest req, String name, int defaultValue) {
+		String value = req.getParameter(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(0, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Which tests to write.
+	 */
+	static final class Filter {
+		final int offset;
+		final int limit;
+		final int minFlakiness;
+		final int maxStability;
+		final @CheckForNull String prefix;
+		
+		Filter(int offset, int limit, int minFlakiness, int maxStability, @CheckForNull String prefix) {
+			this.offset = offset;
+			this.limit = limit;
+			this.minFlakiness = minFlakiness;
+			this.maxStability = maxStability;
+			this.prefix = prefix;
+		}
+		
+		/**
+		 * Whether tests without failures can match at all.
+		 */
+		boolean acceptsClean() {
+			return minFlakiness == 0 && maxStability >= 100;
+		}
+		
+		boolean accepts(String testId, int stability, int flakiness) {
+			return flakiness >= minFlakiness && stability <= maxStability
+					&& (prefix == null || testId.startsWith(prefix));
+		}
+	}
+	
+	private static final class JsonVisitor implements StabilityTestData.HistoryVisitor {
+		
+		private final Filter filter;
+		private final Writer writer;
+		private int matched;
+		private int written;
+		private IOException failure;
+		
+		JsonVisitor(Filter filter, Writer writer) {
+			this.filter = filter;
+			this.writer = writer;
+		}
+		
+		@Override
+		public boolean visit(String testId, CircularStabilityHistory history) {
+			int total = history.size();
+			if (total == 0) {
+				return true;
+			}
+			int stability = StabilityTestAction.computeStability(history);
+			int flakiness = StabilityTestAction.computeFlakiness(history);
+			if (!filter.accepts(testId, stability, flakiness) || matched++ < filter.offset) {
+				return true;
+			}
+			if (written == filter.limit) {
+				// there is another matching test
+				return false;
+			}
+			
+			try {
+				if (written++ > 0) {
+					writer.write(',');
+				}
+				writer.write("{\"id\":");
+				writeString(testId);
+				if (history.isEwma()) {
+					writer.write(",\"stability\":" + stability + ",\"flakiness\":" + flakiness + ",\"weighted\":true}");
+					return true;
+				}
+				writer.write(",\"stability\":" + stability + ",\"flakiness\":" + flakiness
+						+ ",\"failed\":" + history.getFailed() + ",\"runs\":" + total + ",\"builds\":[");
+				int buildNumber = history.getFirstBuildNumber();
+				for (int i = 0; i < total; i++) {
+					buildNumber += history.getDelta(i);
+					if (i > 0) {
+						writer.write(',');
+					}
+					writer.write(Integer.toString(buildNumber));
+				}
+				writer.write("],\"passed\":\"");
+				for (int i = 0; i < total; i++) {
+					writer.write(history.isPassed(i) ? '1' : '0');
+				}
+				writer.write("\"}");
+				return true;
+			} catch (IOException e) {
+				// e.g. the client went away
+				failure = e;
+				return false;
+			}
+		}
+		
+		private void writeString(String value) throws IOException {
+			writer.write('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\') {
+					writer.write('\\');
+					writer.write(c);
+				} else if (c < 0x20) {
+					writer.write(String.format("\\u%04x", (int) c));
+				} else {
+					writer.write(c);
+				}
+			}
+			writer.write('"');
+		}
+	}
+	
+	public String getIconFileName() {
+		return null;
+	}
+	
+	public String getDisplayName() {
+		return "Test stability export";
+	}
+	
+	public String getUrlName() {
+		return "testStability";
+	}
+	
+	@Extension
+	public static class Factory extends TransientActionFactory<Run> {
+		
+		@Override
+		public Class<Run> type() {
+			return Run.class;
+		}
+		
+		@Override
+		public @Nonnull Collection<? extends Action> createFor(@Nonnull Run target) {
+			if (target.getAction(TestResultAction.class) == null) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new StabilityExportAction((Run<?, ?>) target));
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * The recent recordings of a job's builds ordered by build number, so that
+ * concurrent builds continue each other's histories in the order of their
+ * numbers, no matter which one records first.
+ * <p>
+ * A build records from the closest earlier recording. Once its own recording
+ * is published, every later build which recorded from an older one is
+ * recorded again, in ascending order. Publishing before checking for later
+ * builds means that of two overlapping builds at least one sees the other.
+ * <p>
+ * Each recording has a read-write lock instead of one lock for the job: a
+ * build records from an earlier one under its read lock, and is recorded
+ * again under its own write lock. Locks are always taken from later to
+ * earlier builds.
+ * <p>
+ * Builds recorded before the controller started aren't in the store, they are
+ * found through the {@link Recorder}. The same goes for builds {@link #prune pruned}
+ * once no earlier build is still building, which can't be recorded again, so
+ * that the store only holds on to the recorders, and through them the builds,
+ * while they are needed.
+ * 
+ * @author ckutz
+ */
+final class StabilityHistoryStore {
+	
+	static final int MAX_RECORDINGS = 50;
+	
+	private static final ConcurrentMap<File, StabilityHistoryStore> STORES = new ConcurrentHashMap<File, StabilityHistoryStore>();
+	
+	private final ConcurrentSkipListMap<Integer, Recording> recordings = new ConcurrentSkipListMap<Integer, Recording>();
+	
+	// tells the recordings and their versions apart, without referencing the recordings
+	private final AtomicLong stamps = new AtomicLong();
+	
+	StabilityHistoryStore() {
+	}
+	
+	/**
+	 * Returns the store of the job with the given root directory.
+	 */
+	static StabilityHistoryStore forJob(File jobDir) {
+		StabilityHistoryStore store = STORES.get(jobDir);
+		if (store == null) {
+			StabilityHistoryStore created = new StabilityHistoryStore();
+			store = STORES.putIfAbsent(jobDir, created);
+			if (store == null) {
+				store = created;
+			}
+		}
+		return store;
+	}
+	
+	/**
+	 * Returns the store of the job with the given root directory, null if
+	 * none of its builds recorded since the controller started.
+	 */
+	static @CheckForNull StabilityHistoryStore getIfPresent(File jobDir) {
+		return STORES.get(jobDir);
+	}
+	
+	/**
+	 * Drops the stores of jobs whose directory doesn't exist any more, e.g.
+	 * as they were deleted or renamed, see {@link StabilityItemListener}.
+	 */
+	static void forgetMissingJobs() {
+		for (Iterator<File> it = STORES.keySet().iterator(); it.hasNext();) {
+			if (!it.next().exists()) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Drops the recordings of builds before the given one, which is the
+	 * first build of the job still building: they can't be recorded again,
+	 * and later builds find their data through the {@link Recorder}.
+	 * 
+	 * @param firstBuildInProgress {@link Integer#MAX_VALUE} if no build is building
+	 */
+	void prune(int firstBuildInProgress) {
+		recordings.headMap(firstBuildInProgress).clear();
+	}
+	
+	/**
+	 * Records a build from the closest earlier recording, and records the
+	 * later builds again which started from an older one.
+	 * 
+	 * @param target if not null, takes over the recorded histories and is
+	 * returned instead, e.g. the placeholder of an asynchronous recording
+	 * @return the recorded data, which is {@link StabilityTestData#complete completed}
+	 * in place if the build is recorded again
+	 */
+	StabilityTestData record(int buildNumber, Recorder recorder, @CheckForNull StabilityTestData target) {
+		Recording recording = new Recording(buildNumber, recorder, stamps.incrementAndGet());
+		StabilityTestData data = recordFrom(recording);
+		if (target != null) {
+			target.complete(data);
+			data = target;
+		}
+		recording.data = data;
+		
+		// a later test result of the build covers the earlier ones, see StabilityTestDataPublisher
+		if (recordings.put(buildNumber, recording) == null) {
+			// a build which records after all of these is too late to be continued by them
+			while (recordings.size() > MAX_RECORDINGS) {
+				recordings.pollFirstEntry();
+			}
+		}
+		
+		// not an iterator, which would miss a later build published while repairing the current one
+		for (Integer later = buildNumber; later != null; later = recordings.higherKey(later)) {
+			Recording laterRecording = recordings.get(later);
+			if (laterRecording != null) {
+				repair(laterRecording);
+			}
+		}
+		return data;
+	}
+	
+	/**
+	 * Records the build from its closest earlier build, under the read lock of its recording.
+	 */
+	private @CheckForNull StabilityTestData recordFrom(Recording recording) {
+		Recording base = getBase(recording);
+		if (base == null) {
+			recording.baseStamp = 0;
+			return recording.recorder.record(recording.recorder.getPreviousData());
+		}
+		
+		base.lock.readLock().lock();
+		try {
+			recording.baseStamp = base.stamp;
+			return recording.recorder.record(base.data);
+		} finally {
+			base.lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Records the build again if its closest earlier build changed since it was recorded.
+	 */
+	private void repair(Recording recording) {
+		recording.lock.writeLock().lock();
+		try {
+			Recording base = getBase(recording);
+			if ((base != null ? base.stamp : 0) == recording.baseStamp) {
+				return;
+			}
+			StabilityTestData data = recordFrom(recording);
+			if (data == null) {
+				// keeps the histories it has
+				return;
+			}
+			recording.data.complete(data);
+			recording.stamp = stamps.incrementAndGet();
+		} finally {
+			recording.lock.writeLock().unlock();
+		}
+		// not under the lock, saving the build waits for the build, which may be recording another test result
+		recording.recorder.recordedAgain(recording.data);
+	}
+	
+	/**
+	 * Returns the recording the build continues, null for the
+	 * {@link Recorder#getPreviousData() previous data} outside the store.
+	 */
+	private @CheckForNull Recording getBase(Recording recording) {
+		Map.Entry<Integer, Recording> lower = recordings.lowerEntry(recording.buildNumber);
+		if (lower != null && lower.getKey() >= recording.recorder.getPreviousBuildNumber()) {
+			return lower.getValue();
+		}
+		return null;
+	}
+	
+	/**
+	 * Records the histories of one build for the store.
+	 */
+	interface Recorder {
+		
+		/**
+		 * The number of the closest earlier build with test results, -1 if there is none.
+		 */
+		int getPreviousBuildNumber();
+		
+		/**
+		 * The data of the {@link #getPreviousBuildNumber() previous build}, used
+		 * if it isn't in the store, e.g. as it was recorded before a restart.
+		 */
+		@CheckForNull StabilityTestData getPreviousData();
+		
+		/**
+		 * Records the build's histories continuing the given data, may be called
+		 * again for the same build.
+		 * 
+		 * @return null if the build's test result isn't available any more, only
+		 * when recording again
+		 */
+		@CheckForNull StabilityTestData record(@CheckForNull StabilityTestData previousData);
+		
+		/**
+		 * Called after the histories were recorded again and completed into the
+		 * data, without holding any of the store's locks.
+		 */
+		void recordedAgain(StabilityTestData data);
+	}
+	
+	private static final class Recording {
+		
+		final int buildNumber;
+		final Recorder recorder;
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+		
+		// written before publishing, then under the write lock
+		volatile StabilityTestData data;
+		// changes whenever the data is recorded again
+		volatile long stamp;
+		
+		// stamp of the recording this one continues, 0 if it continues the data outside the store;
+		// not the recording itself, which would keep all earlier recordings reachable
+		long baseStamp;
+		
+		Recording(int buildNumber, Recorder recorder, long stamp) {
+			this.buildNumber = buildNumber;
+			this.recorder = recorder;
+			this.stamp = stamp;
+		}
+	}
+}
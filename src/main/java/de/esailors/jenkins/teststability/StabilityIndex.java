@@ -0,0 +1,799 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Append-only file in a job's directory holding the stability histories of
+ * all its builds, as an alternative to embedding them in every build record.
+ * <p>
+ * Every build appends one segment of fixed-width records, sorted by the hash
+ * of the test id, and only keeps the segment's offset plus the file's epoch.
+ * Reading a history binary searches the memory-mapped segment.
+ * <p>
+ * Each segment is mapped on its own, the first time a pointer to it is read:
+ * only the segments appended since the last read are mapped then, the ones
+ * mapped before are kept. Mappings are released right away when the file is
+ * compacted or replaced, or the job is gone, instead of waiting for garbage
+ * collection. Readers hold a read lock while they read a mapped segment, so
+ * a released mapping is never read.
+ * <p>
+ * File layout: <code>magic epoch segment*</code>, where a segment is
+ * <pre>
+ * magic buildNumber count maxSize recordSize stringsLength offset
+ * { hash idOffset idLength firstBuildNumber size bits[words] deltas[maxSize] ewmaAlpha failureRate changeRate }*
+ * ids
+ * </pre>
+ * The weighted rates are stored in units of 1/65535, records of segments
+ * written before they were tracked end after the deltas.
+ * The offset of a segment is where it was appended, pointers keep it when
+ * compaction moves the segment. Segments written before compaction existed
+ * have no offset field, their offset is their position.
+ * <p>
+ * Once the file doubled since the last compaction, the next append compacts
+ * it by dropping the segments of deleted builds. The file doesn't grow beyond
+ * 2 GB, which bounds the address space a job's mappings take. Histories which
+ * don't fit into it any more
+ * stay in the build record, like the ones which don't fit into a record
+ * (build number deltas beyond a <code>char</code>, or a different max size).
+ * 
+ * @author ckutz
+ */
+final class StabilityIndex {
+	
+	static final String FILE_NAME = "test-stability.idx";
+	
+	// also the limit of a single segment, which is mapped into one buffer
+	static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+	
+	// compacting smaller files isn't worth rewriting them
+	static final long MIN_COMPACTION_SIZE = 64L << 20;
+	
+	private static final Logger LOGGER = Logger.getLogger(StabilityIndex.class.getName());
+	
+	private static final long FILE_MAGIC = 0x5354414249445831L; // STABIDX1
+	private static final int SEGMENT_MAGIC = 0x53454731; // SEG1, without offset
+	private static final int MOVABLE_SEGMENT_MAGIC = 0x53454732; // SEG2
+	private static final int FILE_HEADER_SIZE = 16;
+	private static final int SEGMENT_HEADER_SIZE = 24;
+	private static final int MOVABLE_SEGMENT_HEADER_SIZE = 32;
+	private static final int RECORD_HEADER_SIZE = 24;
+	// smoothing factor and the two rates at the end of a record
+	private static final int RATES_SIZE = 8;
+	private static final int RATES_SCALE = 0xffff;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final ConcurrentMap<File, StabilityIndex> INDEXES = new ConcurrentHashMap<File, StabilityIndex>();
+	
+	private final File file;
+	private final long maxFileSize;
+	private final long minCompactionSize;
+	// replaced as a whole under the index's monitor, set to null only under the write lock of unmapLock
+	private volatile @CheckForNull Mapping mapping;
+	// held for reading while reading a mapped segment, for writing while releasing the mappings
+	private final ReadWriteLock unmapLock = new ReentrantReadWriteLock();
+	// size of the file after the last compaction since startup
+	private long compactedSize;
+	
+	private StabilityIndex(File file) {
+		this(file, MAX_FILE_SIZE, MIN_COMPACTION_SIZE);
+	}
+	
+	StabilityIndex(File file, long maxFileSize, long minCompactionSize) {
+		this.file = file;
+		this.maxFileSize = maxFileSize;
+		this.minCompactionSize = minCompactionSize;
+	}
+	
+	/**
+	 * Returns the index of the job with the given root directory.
+	 */
+	static StabilityIndex forJob(File jobDir) {
+		File file = new File(jobDir, FILE_NAME);
+		StabilityIndex index = INDEXES.get(file);
+		if (index == null) {
+			StabilityIndex created = new StabilityIndex(file);
+			index = INDEXES.putIfAbsent(file, created);
+			if (index == null) {
+				index = created;
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Drops the indexes of jobs whose directory doesn't exist any more, e.g.
+	 * as they were deleted or renamed, so that their mappings can be released.
+	 */
+	static void forgetMissingJobs() {
+		for (Iterator<Map.Entry<File, StabilityIndex>> it = INDEXES.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<File, StabilityIndex> entry = it.next();
+			if (!entry.getKey().getParentFile().exists()) {
+				it.remove();
+				entry.getValue().release();
+			}
+		}
+	}
+	
+	/**
+	 * Position of a build's segment.
+	 */
+	static final class Pointer {
+		final long epoch;
+		final long offset;
+		
+		Pointer(long epoch, long offset) {
+			this.epoch = epoch;
+			this.offset = offset;
+		}
+	}
+	
+	/**
+	 * Appends the histories that fit into a record as a new segment and
+	 * removes them from <code>histories</code>, so that only the ones to
+	 * keep in the build record remain.
+	 * 
+	 * @param buildsDir the directory holding the job's builds, which tells the
+	 * builds to keep when compacting; null to not compact
+	 * @return the position of the new segment
+	 * @throws IOException if writing failed, or the file reached its maximum
+	 * size; all histories are left in <code>histories</code> then
+	 */
+	synchronized Pointer append(int buildNumber, int maxSize, Map<String, CircularStabilityHistory> histories,
+			@CheckForNull File buildsDir) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>(histories.size());
+		int stringsLength = 0;
+		for (Map.Entry<String, CircularStabilityHistory> e : histories.entrySet()) {
+			if (fits(e.getValue(), maxSize)) {
+				Entry entry = new Entry(e.getKey(), e.getValue());
+				entry.idOffset = stringsLength;
+				stringsLength += entry.id.length;
+				entries.add(entry);
+			}
+		}
+		Collections.sort(entries, Entry.BY_HASH);
+		
+		int words = words(maxSize);
+		int recordSize = RECORD_HEADER_SIZE + 8 * words + 2 * maxSize + RATES_SIZE;
+		long segmentSize = MOVABLE_SEGMENT_HEADER_SIZE + (long) entries.size() * recordSize + stringsLength;
+		if (segmentSize > maxFileSize - FILE_HEADER_SIZE) {
+			throw new IOException("The histories of build " + buildNumber + " are too large for " + file);
+		}
+		
+		long size = file.length();
+		if (buildsDir != null && size > FILE_HEADER_SIZE
+				&& size + segmentSize > Math.max(minCompactionSize, 2 * compactedSize)) {
+			try {
+				compact(retainedBuilds(buildsDir));
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to compact " + file, e);
+				// not again before the file doubled
+				compactedSize = size;
+			}
+		}
+		
+		ByteBuffer segment = ByteBuffer.allocate((int) segmentSize);
+		segment.putInt(MOVABLE_SEGMENT_MAGIC).putInt(buildNumber).putInt(entries.size())
+				.putInt(maxSize).putInt(recordSize).putInt(stringsLength).putLong(0);
+		for (Entry entry : entries) {
+			CircularStabilityHistory history = entry.history;
+			segment.putLong(entry.hash).putInt(entry.idOffset).putInt(entry.id.length)
+					.putInt(history.getFirstBuildNumber()).putInt(history.size());
+			long[] bits = new long[words];
+			for (int i = 0; i < history.size(); i++) {
+				if (history.isPassed(i)) {
+					bits[i >>> 6] |= 1L << i;
+				}
+			}
+			for (long word : bits) {
+				segment.putLong(word);
+			}
+			for (int i = 0; i < maxSize; i++) {
+				segment.putChar(i < history.size() ? (char) history.getDelta(i) : 0);
+			}
+			segment.putFloat(history.getEwmaAlpha())
+					.putChar((char) Math.round(history.getFailureRate() * RATES_SCALE))
+					.putChar((char) Math.round(history.getChangeRate() * RATES_SCALE));
+		}
+		for (Entry entry : entries) {
+			segment.put(entry.id);
+		}
+		segment.flip();
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			long epoch;
+			if (channel.size() < FILE_HEADER_SIZE) {
+				epoch = new SecureRandom().nextLong();
+				ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+				header.putLong(FILE_MAGIC).putLong(epoch).flip();
+				channel.truncate(0);
+				writeFully(channel, header, 0);
+				// a mapping of the former file must not be read any more
+				release();
+			} else {
+				epoch = readEpoch(channel);
+			}
+			
+			List<Segment> segments = scan(channel);
+			long end = FILE_HEADER_SIZE;
+			long offset = FILE_HEADER_SIZE;
+			if (!segments.isEmpty()) {
+				Segment last = segments.get(segments.size() - 1);
+				end = last.position + last.length;
+				offset = last.offset + last.length;
+			}
+			if (end + segmentSize > maxFileSize) {
+				LOGGER.log(Level.WARNING, "{0} reached its maximum size, keeping the histories of build {1} in its build record",
+						new Object[] { file, buildNumber });
+				throw new IOException(file + " reached its maximum size");
+			}
+			if (end < channel.size()) {
+				// an interrupted append, overwritten by this one
+				LOGGER.log(Level.WARNING, "Ignoring the truncated end of {0}", file);
+				channel.truncate(end);
+			}
+			segment.putLong(SEGMENT_HEADER_SIZE, offset);
+			writeFully(channel, segment, end);
+			
+			// only once written, else they stay in the build record
+			for (Entry entry : entries) {
+				histories.remove(entry.key);
+			}
+			return new Pointer(epoch, offset);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Rewrites the file without the segments of builds not in <code>retainedBuilds</code>.
+	 * The last segment is always kept, so that the offsets of new segments keep increasing.
+	 * Pointers to the kept segments stay valid.
+	 */
+	synchronized void compact(Set<Integer> retainedBuilds) throws IOException {
+		File compacted = new File(file.getPath() + ".tmp");
+		long before;
+		long after;
+		RandomAccessFile source = new RandomAccessFile(file, "r");
+		try {
+			FileChannel in = source.getChannel();
+			before = in.size();
+			long epoch = readEpoch(in);
+			List<Segment> segments = scan(in);
+			
+			RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+			try {
+				FileChannel out = target.getChannel();
+				out.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+				header.putLong(FILE_MAGIC).putLong(epoch).flip();
+				writeFully(out, header, 0);
+				after = FILE_HEADER_SIZE;
+				
+				for (int i = 0; i < segments.size(); i++) {
+					Segment segment = segments.get(i);
+					if (i < segments.size() - 1 && !retainedBuilds.contains(segment.buildNumber)) {
+						continue;
+					}
+					ByteBuffer segmentHeader = ByteBuffer.allocate(MOVABLE_SEGMENT_HEADER_SIZE);
+					readFully(in, segmentHeader, segment.position);
+					segmentHeader.putInt(0, MOVABLE_SEGMENT_MAGIC).putLong(SEGMENT_HEADER_SIZE, segment.offset);
+					segmentHeader.clear();
+					writeFully(out, segmentHeader, after);
+					
+					long body = segment.length - segment.headerSize;
+					long copied = 0;
+					while (copied < body) {
+						out.position(after + MOVABLE_SEGMENT_HEADER_SIZE + copied);
+						copied += in.transferTo(segment.position + segment.headerSize + copied, body - copied, out);
+					}
+					after += MOVABLE_SEGMENT_HEADER_SIZE + body;
+				}
+			} finally {
+				target.close();
+			}
+		} catch (IOException e) {
+			compacted.delete();
+			throw e;
+		} finally {
+			source.close();
+		}
+		
+		try {
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			compacted.delete();
+			throw e;
+		}
+		// the segments moved
+		release();
+		compactedSize = after;
+		LOGGER.log(Level.FINE, "Compacted {0} from {1} to {2} bytes", new Object[] { file, before, after });
+	}
+	
+	/**
+	 * Reads the history of the given test from the segment at <code>pointer</code>.
+	 * 
+	 * @return null if the test has no history in the segment, or the segment isn't available anymore
+	 */
+	@CheckForNull CircularStabilityHistory read(Pointer pointer, String testId) {
+		byte[] id = testId.getBytes(UTF8);
+		long hash = hash(id);
+		Lock lock = unmapLock.readLock();
+		for (int attempt = 0; attempt < 2; attempt++) {
+			lock.lock();
+			try {
+				ByteBuffer segment = getMapped(pointer);
+				if (segment != null) {
+					return read(segment, id, hash);
+				}
+			} finally {
+				lock.unlock();
+			}
+			// not under the read lock, mapping may release the former mappings
+			if (attempt == 0 && !mapAppended(pointer)) {
+				return null;
+			}
+		}
+		return null;
+	}
+	
+	private static @CheckForNull CircularStabilityHistory read(ByteBuffer segment, byte[] id, long hash) {
+		int count = segment.getInt(8);
+		int maxSize = segment.getInt(12);
+		int recordSize = segment.getInt(16);
+		int records = headerSize(segment);
+		int strings = records + count * recordSize;
+		
+		// find the first record with the hash
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (segment.getLong(records + middle * recordSize) < hash) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		
+		for (int i = low; i < count; i++) {
+			int record = records + i * recordSize;
+			if (segment.getLong(record) != hash) {
+				break;
+			}
+			if (idEquals(segment, strings + segment.getInt(record + 8), segment.getInt(record + 12), id)) {
+				return readRecord(segment, record, maxSize, recordSize);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Passes all histories of the segment at <code>pointer</code> to the visitor, in the order of their hashes.
+	 * The visitor is called without holding any lock.
+	 * 
+	 * @return false if the visitor stopped
+	 */
+	boolean visit(Pointer pointer, StabilityTestData.HistoryVisitor visitor) {
+		Lock lock = unmapLock.readLock();
+		int count = -1;
+		for (int attempt = 0; attempt < 2 && count < 0; attempt++) {
+			lock.lock();
+			try {
+				ByteBuffer segment = getMapped(pointer);
+				if (segment != null) {
+					count = segment.getInt(8);
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (count < 0 && (attempt > 0 || !mapAppended(pointer))) {
+				return true;
+			}
+		}
+		
+		for (int i = 0; i < count; i++) {
+			String id;
+			CircularStabilityHistory history;
+			lock.lock();
+			try {
+				ByteBuffer segment = getMapped(pointer);
+				if (segment == null) {
+					// released meanwhile, e.g. by compaction, which dropped the segment or moved it
+					return true;
+				}
+				int maxSize = segment.getInt(12);
+				int recordSize = segment.getInt(16);
+				int records = headerSize(segment);
+				int record = records + i * recordSize;
+				byte[] bytes = new byte[segment.getInt(record + 12)];
+				int offset = records + count * recordSize + segment.getInt(record + 8);
+				for (int j = 0; j < bytes.length; j++) {
+					bytes[j] = segment.get(offset + j);
+				}
+				id = new String(bytes, UTF8);
+				history = readRecord(segment, record, maxSize, recordSize);
+			} finally {
+				lock.unlock();
+			}
+			if (!visitor.visit(id, history)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static CircularStabilityHistory readRecord(ByteBuffer buffer, int record, int maxSize, int recordSize) {
+		int buildNumber = buffer.getInt(record + 16);
+		int size = buffer.getInt(record + 20);
+		int bits = record + RECORD_HEADER_SIZE;
+		int deltas = bits + 8 * words(maxSize);
+		int rates = deltas + 2 * maxSize;
+		
+		CircularStabilityHistory history = new CircularStabilityHistory(maxSize);
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				buildNumber += buffer.getChar(deltas + 2 * i);
+			}
+			boolean passed = (buffer.getLong(bits + 8 * (i >>> 6)) & (1L << i)) != 0;
+			history.add(buildNumber, passed);
+		}
+		if (rates + RATES_SIZE <= record + recordSize && buffer.getFloat(rates) > 0) {
+			history.restoreEwma(buffer.getFloat(rates), (float) buffer.getChar(rates + 4) / RATES_SCALE,
+					(float) buffer.getChar(rates + 6) / RATES_SCALE);
+		}
+		return history;
+	}
+	
+	/**
+	 * Returns the mapped segment, only to be read under the read lock.
+	 * 
+	 * @return null if the segment isn't mapped
+	 */
+	private @CheckForNull ByteBuffer getMapped(Pointer pointer) {
+		Mapping current = mapping;
+		return current != null ? current.get(pointer) : null;
+	}
+	
+	/**
+	 * Maps the segments appended since the last mapping, or all segments if
+	 * the file was replaced since.
+	 * 
+	 * @return false if the segment at <code>pointer</code> can't be mapped,
+	 * e.g. as compaction dropped it or the file was replaced since
+	 */
+	private synchronized boolean mapAppended(Pointer pointer) {
+		Mapping current = mapping;
+		if (current != null && current.get(pointer) != null) {
+			return true;
+		}
+		if (current != null && pointer.epoch == current.epoch && pointer.offset < current.nextOffset) {
+			// gone before the segments mapped last
+			return false;
+		}
+		long length = file.length();
+		if (current != null && length == current.end) {
+			// nothing appended since
+			return false;
+		}
+		try {
+			if (!file.exists()) {
+				return false;
+			}
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long epoch = readEpoch(channel);
+				if (current != null && (epoch != current.epoch || channel.size() < current.end)) {
+					// replaced, e.g. deleted and created again
+					release();
+					current = null;
+				}
+				Map<Long, ByteBuffer> segments = current != null
+						? new HashMap<Long, ByteBuffer>(current.segments) : new HashMap<Long, ByteBuffer>();
+				long end = current != null ? current.end : FILE_HEADER_SIZE;
+				long nextOffset = current != null ? current.nextOffset : FILE_HEADER_SIZE;
+				for (Segment segment : scan(channel, end)) {
+					segments.put(segment.offset, channel.map(FileChannel.MapMode.READ_ONLY, segment.position, segment.length));
+					end = segment.position + segment.length;
+					nextOffset = segment.offset + segment.length;
+				}
+				current = new Mapping(epoch, end, nextOffset, segments);
+				mapping = current;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to map " + file, e);
+			return false;
+		}
+		// the segment may be gone, as the file was deleted or replaced since the build was recorded
+		return current.get(pointer) != null;
+	}
+	
+	/**
+	 * Unmaps all segments, waiting for the readers of the mapped segments.
+	 */
+	private synchronized void release() {
+		Lock lock = unmapLock.writeLock();
+		lock.lock();
+		try {
+			Mapping released = mapping;
+			mapping = null;
+			if (released != null) {
+				for (ByteBuffer segment : released.segments.values()) {
+					unmap(segment);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Releases the mapping right away, where the JVM allows it, instead of
+	 * when the buffer is collected.
+	 */
+	private static void unmap(ByteBuffer buffer) {
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Failed to unmap a segment, leaving it to garbage collection", e);
+		}
+	}
+	
+	/**
+	 * Returns the complete segments of the file in file order, up to the
+	 * first incomplete one, which is left from an interrupted append.
+	 */
+	private static List<Segment> scan(FileChannel channel) throws IOException {
+		return scan(channel, FILE_HEADER_SIZE);
+	}
+	
+	/**
+	 * Returns the complete segments from the given position on, which has to be where a segment starts.
+	 */
+	private static List<Segment> scan(FileChannel channel, long position) throws IOException {
+		List<Segment> segments = new ArrayList<Segment>();
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(MOVABLE_SEGMENT_HEADER_SIZE);
+		while (position + SEGMENT_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(channel, header, position);
+			int magic = header.getInt(0);
+			int headerSize;
+			long offset;
+			if (magic == SEGMENT_MAGIC) {
+				headerSize = SEGMENT_HEADER_SIZE;
+				offset = position;
+			} else if (magic == MOVABLE_SEGMENT_MAGIC && position + MOVABLE_SEGMENT_HEADER_SIZE <= size) {
+				headerSize = MOVABLE_SEGMENT_HEADER_SIZE;
+				offset = header.getLong(SEGMENT_HEADER_SIZE);
+			} else {
+				break;
+			}
+			long length = headerSize + (long) header.getInt(8) * header.getInt(16) + header.getInt(20);
+			if (position + length > size) {
+				break;
+			}
+			segments.add(new Segment(position, offset, headerSize, length, header.getInt(4)));
+			position += length;
+		}
+		return segments;
+	}
+	
+	/**
+	 * Returns the numbers of the builds in the given directory, which has a
+	 * subdirectory named by the number for every build.
+	 */
+	private static Set<Integer> retainedBuilds(File buildsDir) throws IOException {
+		String[] names = buildsDir.list();
+		if (names == null) {
+			throw new IOException("Failed to list the builds in " + buildsDir);
+		}
+		Set<Integer> numbers = new HashSet<Integer>();
+		for (String name : names) {
+			try {
+				numbers.add(Integer.valueOf(name));
+			} catch (NumberFormatException e) {
+				// e.g. the permalinks
+			}
+		}
+		return numbers;
+	}
+	
+	private static int headerSize(ByteBuffer segment) {
+		return segment.getInt(0) == MOVABLE_SEGMENT_MAGIC ? MOVABLE_SEGMENT_HEADER_SIZE : SEGMENT_HEADER_SIZE;
+	}
+	
+	private long readEpoch(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		readFully(channel, header, 0);
+		if (header.hasRemaining()) {
+			throw new IOException("Truncated header in " + file);
+		}
+		if (header.getLong(0) != FILE_MAGIC) {
+			throw new IOException("Not a stability index: " + file);
+		}
+		return header.getLong(8);
+	}
+	
+	/**
+	 * Reads until the buffer is full or the end of the file.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return;
+			}
+			position += read;
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	private static boolean fits(CircularStabilityHistory history, int maxSize) {
+		if (history.getMaxSize() != maxSize) {
+			return false;
+		}
+		for (int i = 1; i < history.size(); i++) {
+			int delta = history.getDelta(i);
+			if (delta < 0 || delta > Character.MAX_VALUE) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean idEquals(ByteBuffer buffer, int offset, int length, byte[] id) {
+		if (length != id.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(offset + i) != id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static int words(int maxSize) {
+		return (maxSize + 63) >>> 6;
+	}
+	
+	/**
+	 * 64 bit FNV-1a.
+	 */
+	static long hash(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * The mapped segments of the file by their offset.
+	 */
+	private static final class Mapping {
+		final long epoch;
+		// where the segment after the mapped ones starts in the file, and its offset
+		final long end;
+		final long nextOffset;
+		final Map<Long, ByteBuffer> segments;
+		
+		Mapping(long epoch, long end, long nextOffset, Map<Long, ByteBuffer> segments) {
+			this.epoch = epoch;
+			this.end = end;
+			this.nextOffset = nextOffset;
+			this.segments = segments;
+		}
+		
+		@CheckForNull ByteBuffer get(Pointer pointer) {
+			return pointer.epoch == epoch ? segments.get(pointer.offset) : null;
+		}
+	}
+	
+	private static final class Segment {
+		final long position;
+		final long offset;
+		final int headerSize;
+		final long length;
+		final int buildNumber;
+		
+		Segment(long position, long offset, int headerSize, long length, int buildNumber) {
+			this.position = position;
+			this.offset = offset;
+			this.headerSize = headerSize;
+			this.length = length;
+			this.buildNumber = buildNumber;
+		}
+	}
+	
+	private static final class Entry {
+		
+		static final Comparator<Entry> BY_HASH = new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.hash < b.hash ? -1 : (a.hash == b.hash ? 0 : 1);
+			}
+		};
+		
+		final String key;
+		final byte[] id;
+		final long hash;
+		final CircularStabilityHistory history;
+		int idOffset;
+		
+		Entry(String key, CircularStabilityHistory history) {
+			this.key = key;
+			this.id = key.getBytes(UTF8);
+			this.hash = hash(id);
+			this.history = history;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+/**
+ * Forgets the state kept per job once a job was deleted or moved, so that
+ * it doesn't hold on to the job's files until the controller restarts, and
+ * keeps the {@link StabilityRecordingStats} of moved jobs under their new name.
+ * <p>
+ * Moving a folder moves the directories of all its jobs, so each of them is
+ * checked for its directory instead of looking at the changed item only.
+ * 
+ * @author ckutz
+ */
+@Extension
+public class StabilityItemListener extends ItemListener {
+	
+	@Override
+	public void onDeleted(Item item) {
+		StabilityRecordingStats.INSTANCE.forgetJob(item.getFullName());
+		forgetMissingJobs();
+	}
+	
+	@Override
+	public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+		// also called for each job in a moved folder
+		StabilityRecordingStats.INSTANCE.renameJob(oldFullName, newFullName);
+		forgetMissingJobs();
+	}
+	
+	private static void forgetMissingJobs() {
+		StabilityIndex.forgetMissingJobs();
+		TestIdDictionary.forgetMissingJobs();
+		StabilityHistoryStore.forgetMissingJobs();
+	}
+}
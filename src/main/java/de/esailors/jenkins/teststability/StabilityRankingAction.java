@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.XmlFile;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.model.Jenkins;
+import jenkins.model.RunAction2;
+
+/**
+ * Invisible build action pointing to the build's {@link FlakinessRanking}.
+ * <p>
+ * The ranking is kept in its own file in the build directory, so that it
+ * is only loaded when someone asks for it, not with every build record.
+ * 
+ * @author ckutz
+ */
+public class StabilityRankingAction implements RunAction2 {
+	
+	static final String FILE_NAME = "test-stability-ranking.xml";
+	
+	private static final Logger LOGGER = Logger.getLogger(StabilityRankingAction.class.getName());
+	
+	private transient Run<?, ?> run;
+	
+	private transient volatile Reference<FlakinessRanking> ranking;
+	
+	StabilityRankingAction(Run<?, ?> run, FlakinessRanking ranking) throws IOException {
+		this.run = run;
+		save(ranking);
+	}
+	
+	/**
+	 * Replaces the ranking, e.g. after another test result of the build was recorded.
+	 */
+	synchronized void save(FlakinessRanking ranking) throws IOException {
+		getFile().write(ranking);
+		this.ranking = new SoftReference<FlakinessRanking>(ranking);
+	}
+	
+	/**
+	 * Returns the ranking, or null if its file can't be read.
+	 */
+	public synchronized @CheckForNull FlakinessRanking getRanking() {
+		Reference<FlakinessRanking> reference = ranking;
+		FlakinessRanking loaded = reference != null ? reference.get() : null;
+		if (loaded == null) {
+			XmlFile file = getFile();
+			if (!file.exists()) {
+				return null;
+			}
+			try {
+				loaded = (FlakinessRanking) file.read();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+				return null;
+			}
+			ranking = new SoftReference<FlakinessRanking>(loaded);
+		}
+		return loaded;
+	}
+	
+	private XmlFile getFile() {
+		return new XmlFile(Jenkins.XSTREAM2, new File(run.getRootDir(), FILE_NAME));
+	}
+	
+	@Override
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+	
+	@Override
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+	
+	public String getIconFileName() {
+		return null;
+	}
+	
+	public String getDisplayName() {
+		return null;
+	}
+	
+	public String getUrlName() {
+		return null;
+	}
+}
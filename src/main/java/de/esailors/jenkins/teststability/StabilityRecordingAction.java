@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.model.Action;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timings and counters of recording the stability histories of a build.
+ * <p>
+ * Summed up over all test results recorded in the build, e.g. for several
+ * <code>junit</code> steps of a pipeline.
+ * 
+ * @author ckutz
+ */
+@ExportedBean
+public class StabilityRecordingAction implements Action {
+	
+	long previousDataNanos;
+	long collectNanos;
+	long lookupNanos;
+	long backfillNanos;
+	long buildMapNanos;
+	
+	int trackedTests;
+	int recordedHistories;
+	int backfilledTests;
+	int droppedAllPassed;
+	int cleanTests;
+	int resumedClean;
+	int prunedClasses;
+	int serializedSize;
+	
+	int recordings;
+	int recordedAgain;
+	int mergedPackages;
+	
+	/**
+	 * Adds the metrics of another recording of the same build.
+	 */
+	synchronized void add(StabilityRecordingAction other) {
+		previousDataNanos += other.previousDataNanos;
+		collectNanos += other.collectNanos;
+		lookupNanos += other.lookupNanos;
+		backfillNanos += other.backfillNanos;
+		buildMapNanos += other.buildMapNanos;
+		trackedTests += other.trackedTests;
+		recordedHistories += other.recordedHistories;
+		backfilledTests += other.backfilledTests;
+		droppedAllPassed += other.droppedAllPassed;
+		cleanTests += other.cleanTests;
+		resumedClean += other.resumedClean;
+		prunedClasses += other.prunedClasses;
+		serializedSize += other.serializedSize;
+		recordings += other.recordings;
+		recordedAgain += other.recordedAgain;
+		mergedPackages += other.mergedPackages;
+	}
+	
+	/**
+	 * Counts a recording done again, as an earlier build recorded after this one.
+	 */
+	synchronized void addRecordedAgain() {
+		recordedAgain++;
+	}
+	
+	/**
+	 * Time to find the stability data of the previous build.
+	 */
+	@Exported
+	public long getPreviousDataMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(previousDataNanos);
+	}
+	
+	/**
+	 * Time to walk the test results and continue the previous histories.
+	 */
+	@Exported
+	public long getCollectMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(collectNanos);
+	}
+	
+	/**
+	 * Part of {@link #getCollectMillis()} spent looking up the previous histories.
+	 * When recording in parallel, this is the sum over all threads.
+	 */
+	@Exported
+	public long getLookupMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lookupNanos);
+	}
+	
+	/**
+	 * Time to backfill the histories of new failures from previous builds.
+	 */
+	@Exported
+	public long getBackfillMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(backfillNanos);
+	}
+	
+	/**
+	 * Time to merge the histories and write them to the index or encode them for the build record.
+	 */
+	@Exported
+	public long getBuildMapMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(buildMapNanos);
+	}
+	
+	@Exported
+	public long getTotalMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getTotalNanos());
+	}
+	
+	long getTotalNanos() {
+		// lookups are part of collecting
+		return previousDataNanos + collectNanos + backfillNanos + buildMapNanos;
+	}
+	
+	/**
+	 * Number of classes and cases in the test results.
+	 */
+	@Exported
+	public int getTrackedTests() {
+		return trackedTests;
+	}
+	
+	/**
+	 * Number of tests with a history in the build.
+	 */
+	@Exported
+	public int getRecordedHistories() {
+		return recordedHistories;
+	}
+	
+	/**
+	 * Number of new failures whose history was backfilled from previous builds.
+	 */
+	@Exported
+	public int getBackfilledTests() {
+		return backfilledTests;
+	}
+	
+	/**
+	 * Number of histories dropped because the test passed in all builds, it's a clean test from now on.
+	 */
+	@Exported
+	public int getDroppedAllPassed() {
+		return droppedAllPassed;
+	}
+	
+	/**
+	 * Number of tests which passed in all builds and are kept without a history.
+	 */
+	@Exported
+	public int getCleanTests() {
+		return cleanTests;
+	}
+	
+	/**
+	 * Number of clean tests which failed, whose history was restored without looking at previous builds.
+	 */
+	@Exported
+	public int getResumedClean() {
+		return resumedClean;
+	}
+	
+	/**
+	 * Number of classes without failures and previous histories, whose cases were recorded as clean without a lookup.
+	 */
+	@Exported
+	public int getPrunedClasses() {
+		return prunedClasses;
+	}
+	
+	/**
+	 * Number of packages an earlier test result of the build already recorded, which later ones took over unchanged.
+	 */
+	@Exported
+	public int getMergedPackages() {
+		return mergedPackages;
+	}
+	
+	/**
+	 * Number of times the build was recorded again, as an earlier build running concurrently recorded after it.
+	 */
+	@Exported
+	public int getRecordedAgain() {
+		return recordedAgain;
+	}
+	
+	/**
+	 * Size in bytes of the encoded histories in the build record, before base64.
+	 */
+	@Exported
+	public int getSerializedSize() {
+		return serializedSize;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Recorded %d of %d tests in %d ms (previous data %d ms, collect %d ms, lookup %d ms, backfill %d ms for %d tests, build map %d ms), "
+				+ "dropped %d all passed, %d clean, %d resumed clean, %d pruned classes, %d bytes, %d merged packages, recorded again %d times",
+				recordedHistories, trackedTests, getTotalMillis(), getPreviousDataMillis(), getCollectMillis(),
+				getLookupMillis(), getBackfillMillis(), backfilledTests, getBuildMapMillis(), droppedAllPassed, cleanTests, resumedClean, prunedClasses, serializedSize, mergedPackages, recordedAgain);
+	}
+	
+	public String getIconFileName() {
+		return null;
+	}
+	
+	public String getDisplayName() {
+		return "Test stability recording";
+	}
+	
+	public String getUrlName() {
+		return "testStabilityRecording";
+	}
+}
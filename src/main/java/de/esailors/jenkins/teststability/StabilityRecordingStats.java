@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Controller-wide sums of all {@link StabilityRecordingAction}s since startup,
+ * registered as MBean <code>de.esailors.jenkins.teststability:type=RecordingStats</code>.
+ * 
+ * @author ckutz
+ */
+public final class StabilityRecordingStats implements StabilityRecordingStatsMBean {
+	
+	static final StabilityRecordingStats INSTANCE = new StabilityRecordingStats();
+	
+	private static final String OBJECT_NAME = "de.esailors.jenkins.teststability:type=RecordingStats";
+	
+	private static final int SLOWEST_JOBS = 10;
+	
+	private static final Logger LOGGER = Logger.getLogger(StabilityRecordingStats.class.getName());
+	
+	private final AtomicLong recordings = new AtomicLong();
+	private final AtomicLong previousDataNanos = new AtomicLong();
+	private final AtomicLong collectNanos = new AtomicLong();
+	private final AtomicLong lookupNanos = new AtomicLong();
+	private final AtomicLong backfillNanos = new AtomicLong();
+	private final AtomicLong buildMapNanos = new AtomicLong();
+	private final AtomicLong trackedTests = new AtomicLong();
+	private final AtomicLong recordedHistories = new AtomicLong();
+	private final AtomicLong backfilledTests = new AtomicLong();
+	private final AtomicLong droppedAllPassed = new AtomicLong();
+	private final AtomicLong serializedBytes = new AtomicLong();
+	
+	// job name -> { total nanos, recordings }
+	private final ConcurrentMap<String, AtomicLong[]> jobs = new ConcurrentHashMap<String, AtomicLong[]>();
+	
+	private StabilityRecordingStats() {}
+	
+	@Initializer(after = InitMilestone.PLUGINS_STARTED)
+	public static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(INSTANCE, name);
+			}
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Failed to register " + OBJECT_NAME, e);
+		}
+	}
+	
+	@Terminator
+	public static void unregister() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Failed to unregister " + OBJECT_NAME, e);
+		}
+	}
+	
+	void add(String jobName, StabilityRecordingAction metrics) {
+		recordings.incrementAndGet();
+		previousDataNanos.addAndGet(metrics.previousDataNanos);
+		collectNanos.addAndGet(metrics.collectNanos);
+		lookupNanos.addAndGet(metrics.lookupNanos);
+		backfillNanos.addAndGet(metrics.backfillNanos);
+		buildMapNanos.addAndGet(metrics.buildMapNanos);
+		trackedTests.addAndGet(metrics.trackedTests);
+		recordedHistories.addAndGet(metrics.recordedHistories);
+		backfilledTests.addAndGet(metrics.backfilledTests);
+		droppedAllPassed.addAndGet(metrics.droppedAllPassed);
+		serializedBytes.addAndGet(metrics.serializedSize);
+		
+		AtomicLong[] job = jobs.get(jobName);
+		if (job == null) {
+			AtomicLong[] created = new AtomicLong[] { new AtomicLong(), new AtomicLong() };
+			job = jobs.putIfAbsent(jobName, created);
+			if (job == null) {
+				job = created;
+			}
+		}
+		job[0].addAndGet(metrics.getTotalNanos());
+		job[1].incrementAndGet();
+	}
+	
+	/**
+	 * Drops the sums of a deleted job, or of all jobs in a deleted folder.
+	 */
+	void forgetJob(String fullName) {
+		String prefix = fullName + "/";
+		for (Iterator<String> it = jobs.keySet().iterator(); it.hasNext();) {
+			String jobName = it.next();
+			if (jobName.equals(fullName) || jobName.startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Moves the sums of a renamed or moved job to its new name.
+	 */
+	void renameJob(String oldFullName, String newFullName) {
+		AtomicLong[] job = jobs.remove(oldFullName);
+		if (job != null) {
+			jobs.put(newFullName, job);
+		}
+	}
+	
+	@Override
+	public long getRecordings() {
+		return recordings.get();
+	}
+	
+	@Override
+	public long getTotalMillis() {
+		return millis(previousDataNanos) + millis(collectNanos) + millis(backfillNanos) + millis(buildMapNanos);
+	}
+	
+	@Override
+	public long getPreviousDataMillis() {
+		return millis(previousDataNanos);
+	}
+	
+	@Override
+	public long getCollectMillis() {
+		return millis(collectNanos);
+	}
+	
+	@Override
+	public long getLookupMillis() {
+		return millis(lookupNanos);
+	}
+	
+	@Override
+	public long getBackfillMillis() {
+		return millis(backfillNanos);
+	}
+	
+	@Override
+	public long getBuildMapMillis() {
+		return millis(buildMapNanos);
+	}
+	
+	@Override
+	public long getTrackedTests() {
+		return trackedTests.get();
+	}
+	
+	@Override
+	public long getRecordedHistories() {
+		return recordedHistories.get();
+	}
+	
+	@Override
+	public long getBackfilledTests() {
+		return backfilledTests.get();
+	}
+	
+	@Override
+	public long getDroppedAllPassed() {
+		return droppedAllPassed.get();
+	}
+	
+	@Override
+	public long getSerializedBytes() {
+		return serializedBytes.get();
+	}
+	
+	@Override
+	public String[] getSlowestJobs() {
+		List<Map.Entry<String, AtomicLong[]>> entries = new ArrayList<Map.Entry<String, AtomicLong[]>>(jobs.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong[]>>() {
+			@Override
+			public int compare(Map.Entry<String, AtomicLong[]> a, Map.Entry<String, AtomicLong[]> b) {
+				long x = a.getValue()[0].get();
+				long y = b.getValue()[0].get();
+				return x > y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		
+		String[] slowest = new String[Math.min(SLOWEST_JOBS, entries.size())];
+		for (int i = 0; i < slowest.length; i++) {
+			Map.Entry<String, AtomicLong[]> entry = entries.get(i);
+			slowest[i] = entry.getKey() + ": " + millis(entry.getValue()[0]) + " ms in "
+					+ entry.getValue()[1].get() + " recordings";
+		}
+		return slowest;
+	}
+	
+	@Override
+	public void reset() {
+		for (AtomicLong counter : new AtomicLong[] { recordings, previousDataNanos, collectNanos, lookupNanos,
+				backfillNanos, buildMapNanos, trackedTests, recordedHistories, backfilledTests, droppedAllPassed,
+				serializedBytes }) {
+			counter.set(0);
+		}
+		jobs.clear();
+	}
+	
+	private static long millis(AtomicLong nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+	}
+}
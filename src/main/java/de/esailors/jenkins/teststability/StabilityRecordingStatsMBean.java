@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+/**
+ * JMX view of {@link StabilityRecordingStats}.
+ * 
+ * @author ckutz
+ */
+public interface StabilityRecordingStatsMBean {
+	
+	long getRecordings();
+	
+	long getTotalMillis();
+	
+	long getPreviousDataMillis();
+	
+	long getCollectMillis();
+	
+	long getLookupMillis();
+	
+	long getBackfillMillis();
+	
+	long getBuildMapMillis();
+	
+	long getTrackedTests();
+	
+	long getRecordedHistories();
+	
+	long getBackfilledTests();
+	
+	long getDroppedAllPassed();
+	
+	long getSerializedBytes();
+	
+	/**
+	 * The jobs which spent the most time recording, as <code>job: millis ms in n recordings</code>.
+	 */
+	String[] getSlowestJobs();
+	
+	void reset();
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.util.Arrays;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Stability of a class, package or whole suite, rolled up from the
+ * histories of its test cases instead of being recorded separately.
+ * <p>
+ * All rollups of a build share the same axis: the sorted build numbers any
+ * of the histories or the recent builds have an entry for. Every rollup is a
+ * pair of bitsets over that axis, the builds its tests ran in and the builds
+ * at least one of them failed in. Adding a child ORs its bits in, so a
+ * package is the OR of its cases and the suite the OR of its packages.
+ * Failures and runs are counted with a popcount.
+ * 
+ * @author ckutz
+ */
+final class StabilityRollup {
+	
+	private static final int WORD_SHIFT = 6;
+	
+	private final int[] builds;
+	private final long[] ran;
+	private final long[] failed;
+	
+	/**
+	 * @param builds the axis, see {@link #axis(Iterable, int[])}
+	 */
+	StabilityRollup(int[] builds) {
+		this.builds = builds;
+		int words = (builds.length >> WORD_SHIFT) + 1;
+		this.ran = new long[words];
+		this.failed = new long[words];
+	}
+	
+	/**
+	 * Returns the sorted build numbers of the given histories and recent builds.
+	 */
+	static int[] axis(Iterable<CircularStabilityHistory> histories, int[] recentBuilds) {
+		int[] axis = recentBuilds.clone();
+		Arrays.sort(axis);
+		for (CircularStabilityHistory history : histories) {
+			int buildNumber = history.getFirstBuildNumber();
+			for (int i = 0; i < history.size(); i++) {
+				buildNumber += history.getDelta(i);
+				// usually all histories of a build span the same builds
+				if (Arrays.binarySearch(axis, buildNumber) < 0) {
+					axis = insert(axis, buildNumber);
+				}
+			}
+		}
+		return axis;
+	}
+	
+	private static int[] insert(int[] sorted, int value) {
+		int at = -Arrays.binarySearch(sorted, value) - 1;
+		int[] result = new int[sorted.length + 1];
+		System.arraycopy(sorted, 0, result, 0, at);
+		result[at] = value;
+		System.arraycopy(sorted, at, result, at + 1, sorted.length - at);
+		return result;
+	}
+	
+	/**
+	 * Adds the results of a test case. Builds not on the axis are ignored.
+	 */
+	void add(CircularStabilityHistory history) {
+		int buildNumber = history.getFirstBuildNumber();
+		for (int i = 0; i < history.size(); i++) {
+			buildNumber += history.getDelta(i);
+			int position = Arrays.binarySearch(builds, buildNumber);
+			if (position >= 0) {
+				ran[position >> WORD_SHIFT] |= 1L << position;
+				if (!history.isPassed(i)) {
+					failed[position >> WORD_SHIFT] |= 1L << position;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds a test case which passed in all of the recent builds since <code>cleanSince</code>.
+	 */
+	void addClean(int cleanSince, int[] recentBuilds) {
+		for (int buildNumber : recentBuilds) {
+			if (buildNumber >= cleanSince) {
+				int position = Arrays.binarySearch(builds, buildNumber);
+				if (position >= 0) {
+					ran[position >> WORD_SHIFT] |= 1L << position;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds a child rollup over the same axis.
+	 */
+	void add(StabilityRollup child) {
+		if (child.builds != builds && !Arrays.equals(child.builds, builds)) {
+			throw new IllegalArgumentException("Rollups over different builds");
+		}
+		for (int i = 0; i < ran.length; i++) {
+			ran[i] |= child.ran[i];
+			failed[i] |= child.failed[i];
+		}
+	}
+	
+	/**
+	 * Number of builds any of the tests ran in.
+	 */
+	int getTotal() {
+		return popcount(ran);
+	}
+	
+	/**
+	 * Number of builds at least one of the tests failed in.
+	 */
+	int getFailed() {
+		return popcount(failed);
+	}
+	
+	private static int popcount(long[] bits) {
+		int count = 0;
+		for (long word : bits) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the newest <code>maxHistoryLength</code> builds as a history, or
+	 * null if none of the tests failed in them.
+	 */
+	@CheckForNull CircularStabilityHistory toHistory(int maxHistoryLength) {
+		if (getFailed() == 0) {
+			return null;
+		}
+		CircularStabilityHistory history = new CircularStabilityHistory(maxHistoryLength);
+		for (int position = 0; position < builds.length; position++) {
+			long bit = 1L << position;
+			if ((ran[position >> WORD_SHIFT] & bit) != 0) {
+				history.add(builds[position], (failed[position >> WORD_SHIFT] & bit) == 0);
+			}
+		}
+		return history.isAllPassed() ? null : history;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Drops the recordings of the {@link StabilityHistoryStore} which aren't
+ * needed any more once a build finished, and the packages the build's test
+ * results recorded for its later ones, so that they don't keep the builds
+ * loaded.
+ * 
+ * @author ckutz
+ */
+@Extension
+public class StabilityRunListener extends RunListener<Run<?, ?>> {
+	
+	@Override
+	public void onFinalized(Run<?, ?> run) {
+		StabilityTestDataPublisher.forgetMerge(run);
+		Job<?, ?> job = run.getParent();
+		StabilityHistoryStore store = StabilityHistoryStore.getIfPresent(job.getRootDir());
+		if (store != null) {
+			store.prune(getFirstBuildInProgress(job));
+		}
+	}
+	
+	/**
+	 * Returns the number of the job's first build still building,
+	 * {@link Integer#MAX_VALUE} if none is.
+	 */
+	private static int getFirstBuildInProgress(Job<?, ?> job) {
+		int first = Integer.MAX_VALUE;
+		Run<?, ?> build = job.getLastBuild();
+		if (build != null && !build.isBuilding()) {
+			build = build.getPreviousBuildInProgress();
+		}
+		for (; build != null; build = build.getPreviousBuildInProgress()) {
+			first = build.getNumber();
+		}
+		return first;
+	}
+}
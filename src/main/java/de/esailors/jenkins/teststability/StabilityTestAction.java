@@ -26,16 +26,18 @@ package de.esailors.jenkins.teststability;
 import javax.annotation.CheckForNull;
 
 import org.jvnet.localizer.Localizable;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
 import hudson.model.HealthReport;
 import hudson.tasks.junit.TestAction;
-import de.esailors.jenkins.teststability.StabilityTestData.Result;
 
 /**
  * {@link TestAction} for the test stability history.
  * 
  * @author ckutz
  */
+@ExportedBean
 class StabilityTestAction extends TestAction {
 
 	private CircularStabilityHistory ringBuffer;
@@ -48,59 +50,84 @@ class StabilityTestAction extends TestAction {
 	private int flakiness;
 
 	public StabilityTestAction(@CheckForNull CircularStabilityHistory ringBuffer) {
-		this.ringBuffer = ringBuffer;
+		this.ringBuffer = ringBuffer != null ? ringBuffer.asReadOnly() : null;
 
-		if (ringBuffer != null) {
-			Result[] data = ringBuffer.getData();
-			this.total = data.length;
+		if (ringBuffer != null && ringBuffer.size() > 0) {
+			this.total = ringBuffer.size();
+			this.failed = ringBuffer.getFailed();
+			this.testStatusChanges = ringBuffer.getStatusChanges();
 		
-			computeStability(data);
-			computeFlakiness(data);
+			this.stability = computeStability(ringBuffer);
+			this.flakiness = computeFlakiness(ringBuffer);
 		}
 				
 		if (this.stability == 100) {
 			this.description = "No known failures. Flakiness 0%, Stability 100%";
+		} else if (ringBuffer.isEwma()) {
+			// only the last run is retained
+			this.description =
+				String.format("Weighted flakiness: %d%%, Weighted stability: %d%%", flakiness, stability);
 		} else {
 			this.description =
 				String.format("Failed %d times in the last %d runs. Flakiness: %d%%, Stability: %d%%", failed, total, flakiness, stability);
 		}
 	}
 	
-	private void computeStability(Result[] data) {
-		
-		for (Result r : data) {
-			if (!r.passed) {
-				failed++;
-			}
+	/**
+	 * Returns an action for a test whose history is still being computed in async mode.
+	 */
+	static StabilityTestAction computing() {
+		StabilityTestAction action = new StabilityTestAction(null);
+		action.description = "Computing the stability history";
+		return action;
+	}
+	
+	/**
+	 * Stability in percent of a non-empty history: from the exponentially
+	 * weighted failure rate if tracked, else from the retained entries.
+	 */
+	static int computeStability(CircularStabilityHistory history) {
+		if (history.isEwma()) {
+			return Math.round(100 * (1 - history.getFailureRate()));
 		}
-		
-		this.stability = 100 * (total - failed) / total;
+		return computeStability(history.size(), history.getFailed());
 	}
 	
 	/**
-	 * Computes the flakiness in percent.
+	 * Flakiness in percent of a history: from the exponentially weighted
+	 * status change rate if tracked, else from the retained entries.
 	 */
-	private void computeFlakiness(Result[] data) {
-		Boolean previousPassed = null;
-		for (Result r : this.ringBuffer.getData()) {
-			boolean thisPassed = r.passed;
-			if (previousPassed != null && previousPassed != thisPassed) {
-				testStatusChanges++;
-			}
-			previousPassed = thisPassed;
+	static int computeFlakiness(CircularStabilityHistory history) {
+		if (history.isEwma()) {
+			return Math.round(100 * history.getChangeRate());
 		}
-		
+		return computeFlakiness(history.size(), history.getStatusChanges());
+	}
+	
+	/**
+	 * Stability in percent: the share of passed runs.
+	 */
+	static int computeStability(int total, int failed) {
+		return 100 * (total - failed) / total;
+	}
+	
+	/**
+	 * Flakiness in percent: the share of runs whose status differs from the run before.
+	 */
+	static int computeFlakiness(int total, int statusChanges) {
 		if (total > 1) {
-			this.flakiness = 100 * testStatusChanges / (total - 1);
+			return 100 * statusChanges / (total - 1);
 		} else {
-			this.flakiness = 0;
+			return 0;
 		}
 	}
 	
+	@Exported
 	public int getFlakiness() {
 		return this.flakiness;
 	}
 
+	@Exported
 	public int getStability() {
 		return this.stability;
 	}
@@ -115,15 +142,26 @@ class StabilityTestAction extends TestAction {
 		return healthReport.getIconUrl("16x16");
 	}
 
+	/**
+	 * Returns a read-only view of the history. Use {@link CircularStabilityHistory#copy(int)}
+	 * to continue it.
+	 */
 	public CircularStabilityHistory getRingBuffer() {
-		// TODO: only publish an immutable view of the buffer!
 		return this.ringBuffer;
 	}
 
+	@Exported
 	public String getDescription() {
 		return this.description;
 	}
 	
+	/**
+	 * Returns the pass/fail timeline of the history as inline SVG, empty without a history.
+	 */
+	public String getTrendSvg() {
+		return ringBuffer != null ? StabilityTrendGraph.svg(ringBuffer) : "";
+	}
+	
 	public String getIconFileName() {
 		return null;
 	}
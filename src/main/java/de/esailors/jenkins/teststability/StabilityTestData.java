@@ -23,48 +23,858 @@
  */
 package de.esailors.jenkins.teststability;
 
+import hudson.model.Job;
+import hudson.model.Run;
 import hudson.tasks.junit.ClassResult;
 import hudson.tasks.junit.TestAction;
 import hudson.tasks.junit.TestObject;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.junit.TestResultAction.Data;
 import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.PackageResult;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import jenkins.model.Jenkins;
+import javax.annotation.CheckForNull;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
 
 /**
  * {@link Data} for the test stability history.
+ * <p>
+ * Persisted by {@link ConverterImpl} as a single base64 encoded {@link CompactFormat} blob.
+ * Loaded data keeps that blob and only decodes the histories asked for, as
+ * most loads of a build's test result never look at them.
+ * <p>
+ * The {@link StabilityTestAction}s are created lazily and kept in a bounded,
+ * soft referenced cache, as Jenkins asks for them on every rendering of a test
+ * report page. All tests without a history share one action.
+ * <p>
+ * Recorded histories are keyed by their test's key in the job's
+ * {@link TestIdDictionary}, so the ids aren't repeated in every build record.
+ * <p>
+ * With {@link StabilityTestDataPublisher.DescriptorImpl#isUseIndex()} most
+ * histories live in the job's {@link StabilityIndex} and only the pointer to
+ * the build's segment is kept here.
+ * <p>
+ * Tests which passed in every build they ran in don't have a history, they
+ * are kept as {@link CleanTests} instead.
+ * <p>
+ * A {@link TestIdFilter} over the ids of all tests with a history answers
+ * most lookups of tests without one, before the histories are searched.
+ * <p>
+ * Classes don't have a history of their own, their {@link StabilityRollup} is
+ * computed from their cases when asked for. The rollups of the packages and
+ * the whole suite are recorded like the histories of cases.
+ * <p>
+ * In async mode the data starts out as an empty placeholder, and reading
+ * the histories waits for them being computed in the background.
  * 
  * @author ckutz
  */
 @SuppressWarnings("deprecation")
 class StabilityTestData extends Data {
 	
-	static {
-		// TODO: this doesn't seem to work
-		Jenkins.XSTREAM2.aliasType("circularStabilityHistory", CircularStabilityHistory.class);
-	}
+	static final int MAX_CACHED_ACTIONS = 5000;
+	
+	private static final Logger LOGGER = Logger.getLogger(StabilityTestData.class.getName());
+	
+	// how long rendering waits for histories still being computed, once per data
+	static final long COMPUTING_WAIT_MILLIS = 200;
+	
+	private static final List<StabilityTestAction> NO_HISTORY =
+			Collections.singletonList(new StabilityTestAction(null));
+	
+	private static final List<StabilityTestAction> COMPUTING =
+			Collections.singletonList(StabilityTestAction.computing());
+	
+	// only replaced by resize and complete, which write the new histories before dropping the old ones,
+	// synchronized on the data
+	private volatile Map<String,CircularStabilityHistory> stability;
+	
+	// histories as loaded from the build record, decoded on demand
+	private volatile @CheckForNull CompactFormat.Reader compact;
+	
+	// segment in the job's stability index holding the histories not in the map
+	private volatile @CheckForNull StabilityIndex.Pointer indexPointer;
+	
+	// tests without failures, keyed like the histories
+	private volatile @CheckForNull CleanTests clean;
+	
+	// ids of all tests with a history, null for builds recorded before the filter
+	private volatile @CheckForNull TestIdFilter filter;
+	
+	private transient volatile File jobDir;
+	
+	private transient volatile Set<String> trackedClasses;
+	
+	// computation of the histories in async mode, null once they are complete
+	private transient volatile @CheckForNull Future<?> pending;
+	
+	// System.nanoTime() after which rendering stops waiting for the computation, 0 before the first wait
+	private transient volatile long computingDeadline;
+	
+	private transient volatile LoadingCache<String, List<StabilityTestAction>> actions;
 	
-	private final Map<String,CircularStabilityHistory> stability;
+	private transient volatile List<TestAction> reportAction;
+	
+	// counts the replacements by resize and complete, see getRevision
+	private transient volatile int revision;
 	
 	public StabilityTestData(Map<String, CircularStabilityHistory> stabilityHistory) {
+		this(stabilityHistory, null, null);
+	}
+	
+	StabilityTestData(Map<String, CircularStabilityHistory> stabilityHistory,
+			@CheckForNull StabilityIndex.Pointer indexPointer, @CheckForNull File jobDir) {
+		this(stabilityHistory, null, indexPointer, null, jobDir);
+	}
+	
+	StabilityTestData(Map<String, CircularStabilityHistory> stabilityHistory,
+			@CheckForNull CompactFormat.Reader compact,
+			@CheckForNull StabilityIndex.Pointer indexPointer,
+			@CheckForNull CleanTests clean, @CheckForNull File jobDir) {
+		this(stabilityHistory, compact, indexPointer, clean, null, jobDir);
+	}
+	
+	StabilityTestData(Map<String, CircularStabilityHistory> stabilityHistory,
+			@CheckForNull CompactFormat.Reader compact,
+			@CheckForNull StabilityIndex.Pointer indexPointer,
+			@CheckForNull CleanTests clean, @CheckForNull TestIdFilter filter,
+			@CheckForNull File jobDir) {
 		this.stability = stabilityHistory;
+		this.compact = compact;
+		this.indexPointer = indexPointer;
+		this.clean = clean;
+		this.filter = filter;
+		this.jobDir = jobDir;
+	}
+	
+	/**
+	 * Tells the data which job it belongs to, which is needed to find the stability index.
+	 */
+	void attach(Job<?, ?> job) {
+		if (jobDir == null && needsJob()) {
+			jobDir = job.getRootDir();
+		}
+	}
+	
+	private boolean needsJob() {
+		return indexPointer != null || clean != null || (compact != null && compact.isKeyed());
 	}
 
 	@Override
 	public List<? extends TestAction> getTestAction(TestObject testObject) {
 		
-		if (testObject instanceof CaseResult || testObject instanceof ClassResult) {
-			CircularStabilityHistory ringBuffer = stability.get(testObject.getId());
-			return Collections.singletonList(new StabilityTestAction(ringBuffer));
+		if (jobDir == null && needsJob()) {
+			Run<?, ?> run = testObject.getRun();
+			if (run != null) {
+				attach(run.getParent());
+			}
+		}
+		
+		if (!awaitComputedForRendering()) {
+			if (testObject instanceof TestResult) {
+				// still lets the next build find this data and wait for it
+				List<TestAction> report = new ArrayList<TestAction>(2);
+				report.add(new StabilityReportAction(this));
+				report.addAll(COMPUTING);
+				return report;
+			}
+			return COMPUTING;
+		}
+		
+		if (jobDir == null && needsJob()) {
+			// asked without a build, e.g. with an empty result just to find the data;
+			// nothing is cached, as keyed histories can't be found before the job is known
+			if (testObject instanceof TestResult) {
+				return Collections.singletonList(new StabilityReportAction(this));
+			}
+			return NO_HISTORY;
+		}
+		
+		if (testObject instanceof ClassResult) {
+			final ClassResult classResult = (ClassResult) testObject;
+			try {
+				return getActions().get(classResult.getId(), new Callable<List<StabilityTestAction>>() {
+					@Override
+					public List<StabilityTestAction> call() {
+						return toActions(getClassHistory(classResult));
+					}
+				});
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		
+		if (testObject instanceof CaseResult || testObject instanceof PackageResult) {
+			String testId = testObject.getId();
+			if ((compact == null && indexPointer == null && !stability.containsKey(testId))
+					|| !mightHaveHistory(testId)) {
+				return NO_HISTORY;
+			}
+			return getActions().getUnchecked(testId);
+		}
+		
+		if (testObject instanceof TestResult) {
+			List<TestAction> report = reportAction;
+			if (report == null) {
+				List<TestAction> created = new ArrayList<TestAction>(2);
+				created.add(new StabilityReportAction(this));
+				created.addAll(getActions().getUnchecked(testObject.getId()));
+				report = Collections.unmodifiableList(created);
+				reportAction = report;
+			}
+			return report;
 		}
 		
 		return Collections.emptyList();
 	}
 	
+	private LoadingCache<String, List<StabilityTestAction>> getActions() {
+		LoadingCache<String, List<StabilityTestAction>> cache = actions;
+		if (cache == null) {
+			synchronized (this) {
+				cache = actions;
+				if (cache == null) {
+					cache = CacheBuilder.newBuilder()
+							.maximumSize(MAX_CACHED_ACTIONS)
+							.softValues()
+							.build(new CacheLoader<String, List<StabilityTestAction>>() {
+								@Override
+								public List<StabilityTestAction> load(String testId) {
+									return toActions(getHistory(testId));
+								}
+							});
+					actions = cache;
+				}
+			}
+		}
+		return cache;
+	}
+	
+	private static List<StabilityTestAction> toActions(@CheckForNull CircularStabilityHistory history) {
+		if (history == null) {
+			return NO_HISTORY;
+		}
+		return Collections.singletonList(new StabilityTestAction(history));
+	}
+	
+	/**
+	 * Returns the history of a class, rolled up from the histories of its
+	 * cases. Builds recorded before rollups have a history of their own for classes.
+	 */
+	@CheckForNull CircularStabilityHistory getClassHistory(ClassResult classResult) {
+		Lookup lookup = lookup();
+		CircularStabilityHistory recorded = lookup.getHistory(classResult.getId());
+		if (recorded != null) {
+			return recorded;
+		}
+		
+		List<CircularStabilityHistory> histories = new ArrayList<CircularStabilityHistory>();
+		List<Integer> cleanSince = new ArrayList<Integer>();
+		for (CaseResult caseResult : classResult.getChildren()) {
+			CircularStabilityHistory history = lookup.getHistory(caseResult.getId());
+			if (history != null) {
+				histories.add(history);
+			} else {
+				int since = lookup.getCleanSince(caseResult.getId());
+				if (since >= 0) {
+					cleanSince.add(since);
+				}
+			}
+		}
+		if (histories.isEmpty()) {
+			return null;
+		}
+		
+		int[] recentBuilds = getRecentBuilds();
+		StabilityRollup rollup = new StabilityRollup(StabilityRollup.axis(histories, recentBuilds));
+		int maxHistoryLength = 0;
+		for (CircularStabilityHistory history : histories) {
+			rollup.add(history);
+			maxHistoryLength = Math.max(maxHistoryLength, history.getMaxSize());
+		}
+		for (int since : cleanSince) {
+			rollup.addClean(since, recentBuilds);
+		}
+		return rollup.toHistory(maxHistoryLength);
+	}
+	
+	@CheckForNull CircularStabilityHistory getHistory(String testId) {
+		return lookup().getHistory(testId);
+	}
+	
+	/**
+	 * Returns false if the test certainly has no history in this build, without searching the histories.
+	 */
+	boolean mightHaveHistory(String testId) {
+		awaitComputed();
+		TestIdFilter f = filter;
+		return f == null || f.mightContain(testId);
+	}
+	
+	/**
+	 * Returns the build since which the test passed in every build it ran in,
+	 * or -1 if it has a history or isn't known.
+	 */
+	int getCleanSince(String testId) {
+		return lookup().getCleanSince(testId);
+	}
+	
+	/**
+	 * Returns the histories and clean tests as they are now, for looking up
+	 * many tests, see {@link Lookup}.
+	 */
+	Lookup lookup() {
+		// not under the lock, which the computation needs to complete the data
+		awaitComputed();
+		synchronized (this) {
+			return new Lookup(this);
+		}
+	}
+	
+	/**
+	 * The numbers of the last recorded builds including this one, in ascending order.
+	 * Empty if the data was recorded without {@link CleanTests}.
+	 */
+	int[] getRecentBuilds() {
+		awaitComputed();
+		return clean != null ? clean.getRecentBuilds() : new int[0];
+	}
+	
+	@CheckForNull CleanTests getCleanTests() {
+		awaitComputed();
+		return clean;
+	}
+	
+	/**
+	 * Passes all histories of the build to the visitor, one at a time and
+	 * without creating {@link StabilityTestAction}s. The histories are only
+	 * decoded when visited.
+	 * 
+	 * @param includeClean whether to also visit the tests without failures,
+	 * with their history restored from their {@link CleanTests} sentinel
+	 * @return false if the visitor stopped
+	 */
+	boolean visit(HistoryVisitor visitor, boolean includeClean) {
+		awaitComputed();
+		File dir = jobDir;
+		TestIdDictionary dictionary = dir != null ? TestIdDictionary.forJob(dir) : null;
+		try {
+			for (Map.Entry<String, CircularStabilityHistory> entry : new TreeMap<String, CircularStabilityHistory>(stability).entrySet()) {
+				if (!visitor.visit(entry.getKey(), entry.getValue())) {
+					return false;
+				}
+			}
+			if (compact != null && !compact.visit(visitor, dictionary)) {
+				return false;
+			}
+		} catch (IllegalArgumentException e) {
+			LOGGER.log(Level.WARNING, "Malformed stability histories", e);
+		}
+		if (indexPointer != null && dir != null && !StabilityIndex.forJob(dir).visit(indexPointer, visitor)) {
+			return false;
+		}
+		if (includeClean && clean != null && dictionary != null) {
+			try {
+				return clean.visit(dictionary, visitor);
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Malformed clean tests", e);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Shrinks all histories longer than the given max size, as if they had
+	 * been recorded with it, and drops the recent builds of the clean tests
+	 * beyond it. Shorter histories are kept as they are, they grow with the
+	 * next builds. Histories from the stability index are written to a new
+	 * segment of the build, the ones not fitting it move into the build
+	 * record. The data must be attached to its job.
+	 * <p>
+	 * Readers see either the old or the new history of a test, the caller
+	 * has to save the build to persist the new ones.
+	 * 
+	 * @param buildNumber the number of the build the data belongs to
+	 * @param buildsDir the directory of the job's builds, see {@link StabilityIndex#append}
+	 * @return false if no history was longer than the max size
+	 */
+	boolean resize(final int maxHistoryLength, int buildNumber, @CheckForNull File buildsDir) throws IOException {
+		// not under the lock, which the computation needs to complete the data
+		awaitComputed();
+		synchronized (this) {
+			final Map<String, CircularStabilityHistory> resized = new HashMap<String, CircularStabilityHistory>();
+			final boolean[] shrunk = { clean != null && clean.getRecentBuilds().length > maxHistoryLength };
+			visit(new HistoryVisitor() {
+				@Override
+				public boolean visit(String testId, CircularStabilityHistory history) {
+					if (history.getMaxSize() > maxHistoryLength) {
+						shrunk[0] = true;
+						history = history.copy(maxHistoryLength);
+					}
+					resized.put(testId, history);
+					return true;
+				}
+			}, false);
+			if (!shrunk[0]) {
+				return false;
+			}
+			
+			File dir = jobDir;
+			if (dir == null && needsJob()) {
+				throw new IllegalStateException("Stability data isn't attached to its job");
+			}
+			StabilityIndex.Pointer pointer = null;
+			if (indexPointer != null && dir != null) {
+				try {
+					pointer = StabilityIndex.forJob(dir).append(buildNumber, maxHistoryLength, resized, buildsDir);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to write the resized histories of build " + buildNumber
+							+ " to the stability index, keeping them in the build record", e);
+				}
+			}
+			if (dir == null) {
+				compact = new CompactFormat.Reader(CompactFormat.encode(resized));
+			} else {
+				CompactFormat.Reader previous = compact;
+				float ewmaAlpha = previous != null ? previous.getEwmaAlpha() : 0f;
+				compact = StabilityTestDataPublisher.encodeKeyed(TestIdDictionary.forJob(dir), ewmaAlpha, resized);
+			}
+			stability = new HashMap<String, CircularStabilityHistory>();
+			indexPointer = pointer;
+			trackedClasses = null;
+			CleanTests previousClean = clean;
+			if (previousClean != null) {
+				clean = previousClean.resize(maxHistoryLength);
+			}
+			actions = null;
+			reportAction = null;
+			revision++;
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns the ids of the classes of which at least one case has a history,
+	 * collected from all histories once. The cases of other classes are clean or untracked.
+	 */
+	Set<String> getTrackedClasses() {
+		Set<String> classes = trackedClasses;
+		if (classes == null) {
+			final Set<String> parents = new HashSet<String>();
+			visit(new HistoryVisitor() {
+				@Override
+				public boolean visit(String testId, CircularStabilityHistory history) {
+					// ids are paths of safe names, which don't contain slashes
+					int slash = testId.lastIndexOf('/');
+					if (slash > 0) {
+						parents.add(testId.substring(0, slash));
+					}
+					return true;
+				}
+			}, false);
+			classes = Collections.unmodifiableSet(parents);
+			trackedClasses = classes;
+		}
+		return classes;
+	}
+	
+	/**
+	 * Marks the data as a placeholder for histories computed in the
+	 * background, see {@link StabilityTestDataPublisher#setAsync(boolean)}.
+	 * Reading the histories waits for the computation, which has to
+	 * {@link #complete} the data before it finishes.
+	 */
+	void setPending(Future<?> computation) {
+		this.computingDeadline = 0;
+		this.pending = computation;
+	}
+	
+	/**
+	 * Takes over the histories recorded in <code>computed</code>, which are
+	 * readable right away, before the computation finishes. Also used when a
+	 * build is recorded again, see {@link StabilityHistoryStore}. Synchronized
+	 * with {@link #resize}, so neither overwrites the other's histories.
+	 */
+	synchronized void complete(StabilityTestData computed) {
+		jobDir = computed.jobDir;
+		compact = computed.compact;
+		clean = computed.clean;
+		indexPointer = computed.indexPointer;
+		filter = computed.filter;
+		stability = computed.stability;
+		trackedClasses = null;
+		actions = null;
+		reportAction = null;
+		revision++;
+		pending = null;
+	}
+	
+	/**
+	 * Changes whenever the histories are replaced by {@link #resize} or
+	 * {@link #complete}, so that state derived from them can tell it's outdated.
+	 */
+	int getRevision() {
+		return revision;
+	}
+	
+	/**
+	 * Waits for the histories still being computed in async mode.
+	 * 
+	 * @return false if they aren't complete after the timeout, or the thread was interrupted
+	 */
+	boolean awaitComputed(long timeout, TimeUnit unit) {
+		Future<?> computation = pending;
+		if (computation == null) {
+			return true;
+		}
+		try {
+			computation.get(timeout, unit);
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			// the data stays empty, like for a build recorded without the publisher
+			LOGGER.log(Level.WARNING, "Failed to compute the stability histories", e.getCause());
+		}
+		pending = null;
+		return true;
+	}
+	
+	/**
+	 * Waits for the histories still being computed at most until
+	 * {@value #COMPUTING_WAIT_MILLIS} ms after the first call, as a page
+	 * asks for the actions of each of its tests.
+	 */
+	private boolean awaitComputedForRendering() {
+		if (pending == null) {
+			return true;
+		}
+		long now = System.nanoTime();
+		long deadline = computingDeadline;
+		if (deadline == 0) {
+			// threads racing here each wait the full time once, no need to lock
+			deadline = now + TimeUnit.MILLISECONDS.toNanos(COMPUTING_WAIT_MILLIS);
+			computingDeadline = deadline;
+		}
+		return awaitComputed(Math.max(0, deadline - now), TimeUnit.NANOSECONDS);
+	}
+	
+	private void awaitComputed() {
+		Future<?> computation = pending;
+		if (computation == null) {
+			return;
+		}
+		try {
+			computation.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			LOGGER.log(Level.WARNING, "Failed to compute the stability histories", e.getCause());
+		}
+		pending = null;
+	}
+	
+	/**
+	 * The histories and clean tests of the data at one point in time, with
+	 * the job's test ids taken from one snapshot of its {@link TestIdDictionary}.
+	 * Looking up a test takes no lock, so the previous build's histories can be
+	 * looked up by many threads at once, see {@link StabilityTestDataPublisher#setParallel}.
+	 */
+	static final class Lookup {
+		
+		private final Map<String, CircularStabilityHistory> stability;
+		private final @CheckForNull CompactFormat.Reader compact;
+		private final @CheckForNull StabilityIndex.Pointer indexPointer;
+		private final @CheckForNull CleanTests clean;
+		private final @CheckForNull TestIdFilter filter;
+		private final @CheckForNull File jobDir;
+		// null if the histories aren't keyed, or the dictionary is unavailable
+		private final @CheckForNull TestIdDictionary.Ids historyIds;
+		private final @CheckForNull TestIdDictionary.Ids cleanIds;
+		
+		Lookup(StabilityTestData data) {
+			this.stability = data.stability;
+			this.compact = data.compact;
+			this.indexPointer = data.indexPointer;
+			this.clean = data.clean;
+			this.filter = data.filter;
+			this.jobDir = data.jobDir;
+			TestIdDictionary dictionary = jobDir != null ? TestIdDictionary.forJob(jobDir) : null;
+			this.historyIds = dictionary != null && compact != null && compact.isKeyed()
+					? dictionary.getIds(compact.getEpoch()) : null;
+			this.cleanIds = dictionary != null && clean != null ? dictionary.getIds(clean.getEpoch()) : null;
+		}
+		
+		/**
+		 * See {@link StabilityTestData#mightHaveHistory(String)}.
+		 */
+		boolean mightHaveHistory(String testId) {
+			return filter == null || filter.mightContain(testId);
+		}
+		
+		@CheckForNull CircularStabilityHistory getHistory(String testId) {
+			if (!mightHaveHistory(testId)) {
+				return null;
+			}
+			CircularStabilityHistory history = stability.get(testId);
+			if (history == null && compact != null) {
+				try {
+					if (!compact.isKeyed()) {
+						history = compact.get(testId);
+					} else if (historyIds != null) {
+						int key = historyIds.getKey(testId);
+						if (key >= 0) {
+							history = compact.get(key);
+						}
+					}
+				} catch (IllegalArgumentException e) {
+					LOGGER.log(Level.WARNING, "Malformed stability histories", e);
+				}
+			}
+			if (history != null || indexPointer == null || jobDir == null) {
+				return history;
+			}
+			return StabilityIndex.forJob(jobDir).read(indexPointer, testId);
+		}
+		
+		/**
+		 * See {@link StabilityTestData#getCleanSince(String)}.
+		 */
+		int getCleanSince(String testId) {
+			if (clean == null || cleanIds == null) {
+				return -1;
+			}
+			try {
+				int key = cleanIds.getKey(testId);
+				return key >= 0 ? clean.getCleanSince(key) : -1;
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, "Malformed clean tests", e);
+				return -1;
+			}
+		}
+		
+		/**
+		 * Returns the key of the test in the dictionary the clean tests are
+		 * keyed by, -1 if it has none or there are no clean tests.
+		 */
+		int getCleanKey(String testId) {
+			return cleanIds != null ? cleanIds.getKey(testId) : -1;
+		}
+		
+		/**
+		 * The ids the clean tests are keyed by, null if {@link #getCleanKey} finds no keys.
+		 */
+		@CheckForNull TestIdDictionary.Ids getCleanIds() {
+			return cleanIds;
+		}
+		
+		@CheckForNull CleanTests getCleanTests() {
+			return clean;
+		}
+	}
+	
+	/**
+	 * Receives the histories of a build one at a time, see {@link StabilityTestData#visit}.
+	 */
+	interface HistoryVisitor {
+		
+		/**
+		 * @return whether to continue with the next history
+		 */
+		boolean visit(String testId, CircularStabilityHistory history);
+	}
+	
+	/**
+	 * Returns the data recorded for the given build's test results.
+	 * 
+	 * @param testObject any test object, only used to ask the {@link Data}
+	 * for its actions without loading the build's test report
+	 * @return null if the stability wasn't recorded
+	 */
+	static @CheckForNull StabilityTestData get(TestResultAction action, TestObject testObject) {
+		List<StabilityTestData> all = getAll(action, testObject);
+		return all.isEmpty() ? null : all.get(0);
+	}
+	
+	/**
+	 * Returns the data of all test results recorded in the given build, e.g.
+	 * one per <code>junit</code> step of a pipeline.
+	 * 
+	 * @see #get(TestResultAction, TestObject)
+	 */
+	static List<StabilityTestData> getAll(TestResultAction action, TestObject testObject) {
+		List<StabilityTestData> all = new ArrayList<StabilityTestData>(1);
+		for (TestAction testAction : action.getActions(testObject)) {
+			if (testAction instanceof StabilityReportAction) {
+				all.add(((StabilityReportAction) testAction).getData());
+			}
+		}
+		return all;
+	}
+	
+	/**
+	 * Writes all histories as one <code>histories</code> node holding the
+	 * base64 encoded {@link CompactFormat}. Reading only decodes the base64,
+	 * the histories are decoded by {@link CompactFormat.Reader} when asked for.
+	 * <p>
+	 * The pointer into the stability index is written as <code>indexEpoch</code>
+	 * and <code>indexOffset</code>, the base64 encoded {@link CleanTests} as <code>clean</code>
+	 * and the base64 encoded {@link TestIdFilter} as <code>tracked</code>.
+	 * <p>
+	 * Also reads the former format, where the <code>stability</code> map was
+	 * written by reflection with one node per {@link CircularStabilityHistory}.
+	 * <p>
+	 * Like all nested <code>ConverterImpl</code>s, XStream2 finds it by
+	 * convention and creates it with the mapper of the instance reading the
+	 * build record, e.g. <code>Run.XSTREAM</code>.
+	 */
+	public static class ConverterImpl implements Converter {
+		
+		private static final Charset ASCII = Charset.forName("US-ASCII");
+		
+		private final Mapper mapper;
+		
+		public ConverterImpl(Mapper mapper) {
+			this.mapper = mapper;
+		}
+
+		@Override
+		public boolean canConvert(@SuppressWarnings("rawtypes") Class type) {
+			return type == StabilityTestData.class;
+		}
+
+		@Override
+		public void marshal(Object source, HierarchicalStreamWriter writer,
+				MarshallingContext context) {
+			StabilityTestData data = (StabilityTestData) source;
+			Future<?> computation = data.pending;
+			if (computation != null && !computation.isDone()) {
+				// written again once computed, see StabilityTestDataPublisher#setAsync
+				return;
+			}
+			
+			byte[] histories = data.compact != null
+					? data.compact.getData() : CompactFormat.encode(data.stability);
+			writer.startNode("histories");
+			writer.setValue(new String(Base64.encodeBase64(histories), ASCII));
+			writer.endNode();
+			
+			if (data.indexPointer != null) {
+				writer.startNode("indexEpoch");
+				writer.setValue(Long.toString(data.indexPointer.epoch));
+				writer.endNode();
+				
+				writer.startNode("indexOffset");
+				writer.setValue(Long.toString(data.indexPointer.offset));
+				writer.endNode();
+			}
+			
+			if (data.clean != null) {
+				writer.startNode("clean");
+				writer.setValue(new String(Base64.encodeBase64(data.clean.getData()), ASCII));
+				writer.endNode();
+			}
+			
+			if (data.filter != null) {
+				writer.startNode("tracked");
+				writer.setValue(new String(Base64.encodeBase64(data.filter.getData()), ASCII));
+				writer.endNode();
+			}
+		}
+
+		@Override
+		public StabilityTestData unmarshal(HierarchicalStreamReader reader,
+				UnmarshallingContext context) {
+			Map<String, CircularStabilityHistory> stability = null;
+			CompactFormat.Reader compact = null;
+			Long indexEpoch = null;
+			Long indexOffset = null;
+			CleanTests clean = null;
+			TestIdFilter filter = null;
+			
+			while (reader.hasMoreChildren()) {
+				reader.moveDown();
+				if ("histories".equals(reader.getNodeName())) {
+					try {
+						compact = new CompactFormat.Reader(Base64.decodeBase64(reader.getValue().getBytes(ASCII)));
+					} catch (IllegalArgumentException e) {
+						throw new ConversionException("Malformed stability histories", e);
+					}
+				} else if ("stability".equals(reader.getNodeName())) {
+					stability = readLegacyMap(reader, context);
+				} else if ("indexEpoch".equals(reader.getNodeName())) {
+					indexEpoch = Long.valueOf(reader.getValue());
+				} else if ("indexOffset".equals(reader.getNodeName())) {
+					indexOffset = Long.valueOf(reader.getValue());
+				} else if ("clean".equals(reader.getNodeName())) {
+					try {
+						clean = new CleanTests(Base64.decodeBase64(reader.getValue().getBytes(ASCII)));
+					} catch (IllegalArgumentException e) {
+						throw new ConversionException("Malformed clean tests", e);
+					}
+				} else if ("tracked".equals(reader.getNodeName())) {
+					try {
+						filter = new TestIdFilter(Base64.decodeBase64(reader.getValue().getBytes(ASCII)));
+					} catch (IllegalArgumentException e) {
+						throw new ConversionException("Malformed test id filter", e);
+					}
+				}
+				reader.moveUp();
+			}
+			
+			if (stability == null) {
+				stability = new HashMap<String, CircularStabilityHistory>();
+			}
+			StabilityIndex.Pointer indexPointer = null;
+			if (indexEpoch != null && indexOffset != null) {
+				indexPointer = new StabilityIndex.Pointer(indexEpoch, indexOffset);
+			}
+			return new StabilityTestData(stability, compact, indexPointer, clean, filter, null);
+		}
+
+		@SuppressWarnings("unchecked")
+		private Map<String, CircularStabilityHistory> readLegacyMap(HierarchicalStreamReader reader,
+				UnmarshallingContext context) {
+			String classAttribute = reader.getAttribute(mapper.aliasForSystemAttribute("class"));
+			Class<?> type = classAttribute != null ? mapper.realClass(classAttribute) : HashMap.class;
+			return (Map<String, CircularStabilityHistory>) context.convertAnother(null, type);
+		}
+	}
 	
 	
 	public static class Result {
@@ -26,31 +26,54 @@ package de.esailors.jenkins.teststability;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.init.Terminator;
 import hudson.model.Descriptor;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.tasks.junit.PackageResult;
 import hudson.tasks.junit.TestDataPublisher;
 import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.junit.TestResultAction.Data;
+import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.ClassResult;
+import hudson.util.LogTaskListener;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
-import de.esailors.jenkins.teststability.StabilityTestData.Result;
-
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 
 /**
  * {@link TestDataPublisher} for the test stability history.
@@ -61,60 +84,670 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 	
 	public static final boolean DEBUG = false; 
 	
+	// bounds the histories waiting to be computed in async mode, further ones are computed by the build
+	static final int ASYNC_QUEUE_SIZE = 100;
+	
+	private static final Logger LOGGER = Logger.getLogger(StabilityTestDataPublisher.class.getName());
+	
+	private static ForkJoinPool pool;
+	
+	private static ThreadPoolExecutor asyncExecutor;
+	
+	// the packages recorded so far by each building run, see RunMerge; removed once the run is finalized
+	private static final Map<Run<?, ?>, RunMerge> MERGES = new HashMap<Run<?, ?>, RunMerge>();
+	
+	private boolean parallel;
+	
+	private boolean async;
+	
 	@DataBoundConstructor
 	public StabilityTestDataPublisher() {
 	}
 	
+	public boolean isParallel() {
+		return this.parallel;
+	}
+	
+	/**
+	 * Records the packages of a test result in parallel on a fork/join pool.
+	 * Only pays off for very large test results.
+	 */
+	@DataBoundSetter
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+	public boolean isAsync() {
+		return this.async;
+	}
+	
+	/**
+	 * Returns a placeholder right away and records the histories on a
+	 * controller-side executor, so that the build and its executor don't wait
+	 * for them. The data is saved with the build once computed, pages show the
+	 * tests as still being computed until then.
+	 * <p>
+	 * Messages go to the controller's log instead of the build's. Histories
+	 * still being computed when the controller stops are lost, the next build
+	 * records like after a build without the publisher.
+	 */
+	@DataBoundSetter
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+	
 	// param is top level TestResult for a build
 	@Override
-	public Data contributeTestData(Run<?, ?> run, @Nonnull FilePath workspace, Launcher launcher, TaskListener listener,
-								   TestResult testResult) throws IOException, InterruptedException {
-
-		Map<String,CircularStabilityHistory> stabilityHistoryPerTest = new HashMap<String,CircularStabilityHistory>();
-
-		// NB: abstract TestResult
-		Collection<hudson.tasks.test.TestResult> classAndCaseResults = getClassAndCaseResults(testResult);
-		debug("Found " + classAndCaseResults.size() + " test results", listener);
-		// NB: abstract TestResult
-		for (hudson.tasks.test.TestResult result: classAndCaseResults) {
+	public Data contributeTestData(final Run<?, ?> run, @Nonnull FilePath workspace, Launcher launcher, TaskListener listener,
+								   final TestResult testResult) throws IOException, InterruptedException {
+		final RunMerge merge = getMerge(run);
+		if (!async) {
+			return contribute(run, testResult, listener, null, merge);
+		}
+		
+		final StabilityTestData placeholder = new StabilityTestData(new HashMap<String,CircularStabilityHistory>());
+		final Future<?> earlier = merge != null ? merge.pending : null;
+		FutureTask<Void> computation = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, InterruptedException {
+				if (earlier != null) {
+					// merges into the build's earlier test results once they are recorded
+					try {
+						earlier.get();
+					} catch (ExecutionException e) {
+						// recorded from scratch then
+					}
+				}
+				// the build's log may be closed by now
+				contribute(run, testResult, new LogTaskListener(LOGGER, Level.INFO), placeholder, merge);
+				run.save();
+				return null;
+			}
+		});
+		placeholder.setPending(computation);
+		if (merge != null) {
+			merge.pending = computation;
+		}
+		getAsyncExecutor().execute(computation);
+		return placeholder;
+	}
+	
+	/**
+	 * Records the build in the order of the job's concurrent builds, see {@link StabilityHistoryStore}.
+	 * 
+	 * @param target if not null, completed with the recorded histories and returned instead
+	 * @param merge the packages recorded by the build's earlier test results, null if the build completed
+	 */
+	private StabilityTestData contribute(Run<?, ?> run, TestResult testResult, TaskListener listener,
+			@CheckForNull StabilityTestData target, @CheckForNull RunMerge merge) {
+		StabilityHistoryStore store = StabilityHistoryStore.forJob(run.getParent().getRootDir());
+		BuildRecorder recorder = new BuildRecorder(run, testResult, listener, merge);
+		StabilityTestData data;
+		if (merge == null) {
+			data = store.record(run.getNumber(), recorder, target);
+		} else {
+			// one test result of the build at a time, each merges the ones before
+			synchronized (merge) {
+				data = store.record(run.getNumber(), recorder, target);
+			}
+		}
+		// not under the store's locks, see StabilityHistoryStore.Recorder#recordedAgain
+		recorder.attach();
+		return data;
+	}
+	
+	/**
+	 * @param allResults whether the ranking holds all test results of the
+	 * build, which replaces the ranking of the earlier ones
+	 */
+	private void attachActions(Run<?, ?> run, StabilityRecordingAction metrics, FlakinessRanking.Builder ranking,
+			boolean allResults, TaskListener listener) {
+		synchronized (run) {
+			StabilityRecordingAction existingMetrics = run.getAction(StabilityRecordingAction.class);
+			if (existingMetrics == null) {
+				run.addAction(metrics);
+			} else {
+				// another test result of the same build, e.g. several junit steps
+				existingMetrics.add(metrics);
+			}
 			
-			CircularStabilityHistory history = getPreviousHistory(result);
-
-			if (history != null) {
-				if (result.isPassed()) {
-					history.add(run.getNumber(), true);
-					
-					if (history.isAllPassed()) {
-						history = null;
+			StabilityRankingAction existingRanking = run.getAction(StabilityRankingAction.class);
+			try {
+				if (existingRanking == null) {
+					run.addAction(new StabilityRankingAction(run, ranking.build()));
+				} else {
+					FlakinessRanking previous = existingRanking.getRanking();
+					if (previous != null && !allResults) {
+						ranking.addAll(previous);
 					}
-					
-				} else if (result.getFailCount() > 0) {
-					history.add(run.getNumber(), false);
+					existingRanking.save(ranking.build());
 				}
-				// else test is skipped and we leave history unchanged
-				
-				if (history != null) {
-					stabilityHistoryPerTest.put(result.getId(), history);
+			} catch (IOException e) {
+				listener.getLogger().println("[Test stability] Failed to save the flaky test ranking: " + e);
+			}
+		}
+	}
+	
+	private void attachRecordedAgain(Run<?, ?> run, FlakinessRanking.Builder ranking, boolean allResults,
+			TaskListener listener) {
+		synchronized (run) {
+			StabilityRecordingAction existingMetrics = run.getAction(StabilityRecordingAction.class);
+			if (existingMetrics != null) {
+				existingMetrics.addRecordedAgain();
+			}
+			
+			// with several test results the ranking also holds the others' tests
+			StabilityRankingAction existingRanking = run.getAction(StabilityRankingAction.class);
+			if (existingRanking != null && (allResults || existingMetrics != null && existingMetrics.recordings <= 1)) {
+				try {
+					existingRanking.save(ranking.build());
+				} catch (IOException e) {
+					listener.getLogger().println("[Test stability] Failed to save the flaky test ranking: " + e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Records the histories of all tests of a build.
+	 * <p>
+	 * Without a <code>run</code> new failures aren't backfilled from previous
+	 * builds, which lets the benchmarks record without a Jenkins instance.
+	 * 
+	 * @param ewmaAlpha smoothing factor of the exponentially weighted rates, 0 to not track them
+	 * @param ranking if not null, gets all recorded histories of test cases
+	 */
+	StabilityTestData record(@CheckForNull Run<?, ?> run, int buildNumber, File jobDir, TestResult testResult,
+			@CheckForNull StabilityTestData previousData, int maxHistoryLength, boolean useIndex, float ewmaAlpha,
+			TaskListener listener, StabilityRecordingAction metrics, @CheckForNull FlakinessRanking.Builder ranking) {
+		return record(run, buildNumber, jobDir, testResult, previousData, maxHistoryLength, useIndex, ewmaAlpha,
+				listener, metrics, ranking, null);
+	}
+	
+	/**
+	 * @param merge if not null, the unchanged packages it recorded for an
+	 * earlier test result of the build are taken over, and it gets the packages
+	 * of this one
+	 */
+	private StabilityTestData record(@CheckForNull Run<?, ?> run, int buildNumber, File jobDir, TestResult testResult,
+			@CheckForNull StabilityTestData previousData, int maxHistoryLength, boolean useIndex, float ewmaAlpha,
+			TaskListener listener, StabilityRecordingAction metrics, @CheckForNull FlakinessRanking.Builder ranking,
+			@CheckForNull RunMerge merge) {
+		metrics.recordings = 1;
+		long start = System.nanoTime();
+		List<PackageResult> packageResults = new ArrayList<PackageResult>(testResult.getChildren());
+		debug("Found " + packageResults.size() + " packages", listener);
+		
+		// read before the histories, they can't change while recorded from, see StabilityHistoryStore
+		int previousRevision = previousData != null ? previousData.getRevision() : 0;
+		Set<String> trackedClasses = previousData != null
+				? previousData.getTrackedClasses() : Collections.<String>emptySet();
+		// the previous build's test ids are resolved against one snapshot, not one lookup at a time by each thread
+		StabilityTestData.Lookup previous = previousData != null ? previousData.lookup() : null;
+		metrics.lookupNanos = System.nanoTime() - start;
+		
+		PackageHistories[] recorded = new PackageHistories[packageResults.size()];
+		Map<String, PackageHistories> earlier = merge != null
+				? merge.getPackages() : Collections.<String, PackageHistories>emptyMap();
+		boolean upToDate = merge != null && merge.isRecordedFrom(previousData, previousRevision);
+		List<PackageResult> changed = new ArrayList<PackageResult>(packageResults.size());
+		for (int i = 0; i < recorded.length; i++) {
+			PackageResult pkgResult = packageResults.get(i);
+			PackageHistories histories = earlier.remove(pkgResult.getId());
+			if (upToDate && histories != null && histories.counts.equals(PackageHistories.counts(pkgResult))) {
+				recorded[i] = histories;
+			} else {
+				changed.add(pkgResult);
+			}
+		}
+		if (!earlier.isEmpty()) {
+			// packages only in the earlier test results, e.g. of the earlier junit steps
+			SortedMap<String, PackageHistories> carried = new TreeMap<String, PackageHistories>(earlier);
+			int end = recorded.length;
+			recorded = Arrays.copyOf(recorded, end + carried.size());
+			for (PackageHistories histories : carried.values()) {
+				if (upToDate) {
+					recorded[end++] = histories;
 				} else {
-					stabilityHistoryPerTest.remove(result.getId());
+					PackageResult pkgResult = findRecordedPackage(run, histories.packageName);
+					if (pkgResult != null) {
+						changed.add(pkgResult);
+						end++;
+					}
 				}
-				// TODO perhaps it would be better to buildUpInitialHistory for passing tests too (after JENKINS-33168 is fixed)
-			} else if (result.getFailCount() > 0) {
-				// StabilityTestDataPublisher doesn't have a previous record of this failing test
-				// (eg StabilityTestDataPublisher wasn't enabled when it last failed)
-				debug("Found failed test " + result.getId(), listener);
-				int maxHistoryLength = getDescriptor().getMaxHistoryLength();
-				CircularStabilityHistory ringBuffer = new CircularStabilityHistory(maxHistoryLength);
+			}
+			recorded = Arrays.copyOf(recorded, end);
+		}
+		metrics.mergedPackages = recorded.length - changed.size();
+		
+		PackageHistories[] fresh = new PackageHistories[changed.size()];
+		if (parallel && fresh.length > 1) {
+			getPool().invoke(new RecordPackages(changed, fresh, 0, fresh.length,
+					buildNumber, maxHistoryLength, previous, trackedClasses, listener));
+		} else {
+			for (int i = 0; i < fresh.length; i++) {
+				fresh[i] = recordPackage(changed.get(i), buildNumber, maxHistoryLength,
+						previous, trackedClasses, listener);
+			}
+		}
+		for (int i = 0, j = 0; i < recorded.length; i++) {
+			if (recorded[i] == null) {
+				recorded[i] = fresh[j++];
+			}
+		}
+		
+		long collected = System.nanoTime();
+		metrics.collectNanos = collected - start;
+		
+		// the histories of merged packages are complete, only the fresh ones are counted and backfilled
+		for (PackageHistories histories : fresh) {
+			metrics.lookupNanos += histories.lookupNanos;
+			metrics.trackedTests += histories.tracked;
+			metrics.droppedAllPassed += histories.droppedAllPassed;
+			metrics.cleanTests += histories.cleanIds.size() + histories.carriedCleanCount;
+			metrics.resumedClean += histories.resumedClean;
+			metrics.prunedClasses += histories.prunedClasses;
+		}
+		int size = 0;
+		for (PackageHistories histories : recorded) {
+			size += histories.histories.size();
+		}
+		Map<String,CircularStabilityHistory> stabilityHistoryPerTest =
+				new HashMap<String,CircularStabilityHistory>(size * 4 / 3 + 1);
+		for (PackageHistories histories : recorded) {
+			stabilityHistoryPerTest.putAll(histories.histories);
+		}
+		// merge in package order, so that both ways schedule the same backfill
+		// weighted histories don't retain older results to backfill
+		HistoryBackfill backfill = run != null && ewmaAlpha == 0 ? createBackfill(maxHistoryLength) : null;
+		List<CircularStabilityHistory> newFailures = new ArrayList<CircularStabilityHistory>();
+		for (PackageHistories histories : fresh) {
+			if (backfill != null) {
+				for (int i = 0; i < histories.newFailures.size(); i++) {
+					if (backfill.add(histories.newFailures.get(i), histories.newFailureHistories.get(i))) {
+						metrics.backfilledTests++;
+					}
+				}
+			}
+			newFailures.addAll(histories.newFailureHistories);
+		}
+		
+		metrics.recordedHistories = stabilityHistoryPerTest.size();
+		long merged = System.nanoTime();
+		metrics.buildMapNanos = merged - collected;
+		
+		if (backfill != null && !backfill.isEmpty()) {
+			backfill.run(run, testResult, listener);
+		}
+		for (CircularStabilityHistory ringBuffer : newFailures) {
+			ringBuffer.add(buildNumber, false);
+		}
+		// histories tracked before were updated by add, the others start from their entries
+		for (CircularStabilityHistory history : stabilityHistoryPerTest.values()) {
+			history.trackEwma(ewmaAlpha);
+		}
+		long backfilled = System.nanoTime();
+		metrics.backfillNanos = backfilled - merged;
+		
+		int[] recentBuilds = getRecentBuilds(previousData, buildNumber, maxHistoryLength);
+		// rollups count the results within the window, which weighted histories don't retain
+		if (ewmaAlpha == 0) {
+			addRollups(testResult, recorded, recentBuilds, maxHistoryLength, stabilityHistoryPerTest);
+		}
+		
+		if (ranking != null) {
+			for (PackageHistories histories : recorded) {
+				for (String caseId : histories.caseIds) {
+					ranking.add(caseId, stabilityHistoryPerTest.get(caseId));
+				}
+			}
+		}
+		
+		// before the index takes the histories it holds out of the map
+		TestIdFilter filter = TestIdFilter.of(stabilityHistoryPerTest.keySet());
+		
+		StabilityIndex.Pointer pointer = null;
+		if (useIndex) {
+			try {
+				// the builds' directories tell which segments compaction keeps
+				File buildsDir = run != null ? run.getRootDir().getParentFile() : null;
+				// weighted histories only take a slot for their last result
+				pointer = StabilityIndex.forJob(jobDir)
+						.append(buildNumber, ewmaAlpha > 0 ? 1 : maxHistoryLength, stabilityHistoryPerTest, buildsDir);
+			} catch (IOException e) {
+				listener.getLogger().println("[Test stability] Failed to write the stability index, keeping the histories in the build record: " + e);
+			}
+		}
+		
+		StabilityTestData data;
+		try {
+			TestIdDictionary dictionary = TestIdDictionary.forJob(jobDir);
+			CompactFormat.Reader keyed = encodeKeyed(dictionary, ewmaAlpha, stabilityHistoryPerTest);
+			CleanTests clean = encodeClean(dictionary, recorded, recentBuilds, previous);
+			metrics.serializedSize = keyed.getData().length + clean.getData().length;
+			data = new StabilityTestData(new HashMap<String,CircularStabilityHistory>(), keyed, pointer, clean, filter, jobDir);
+		} catch (IOException e) {
+			listener.getLogger().println("[Test stability] Failed to update the test id dictionary, keeping the test ids in the build record: " + e);
+			// encoded once, saving the build writes this payload as it is
+			CompactFormat.Reader byId = new CompactFormat.Reader(CompactFormat.encode(stabilityHistoryPerTest));
+			metrics.serializedSize = byId.getData().length;
+			data = new StabilityTestData(new HashMap<String,CircularStabilityHistory>(), byId, pointer, null, filter, jobDir);
+		}
+		metrics.buildMapNanos += System.nanoTime() - backfilled;
+		if (merge != null) {
+			merge.update(previousData, previousRevision, recorded);
+		}
+		return data;
+	}
+	
+	/**
+	 * Adds the histories of the packages and the whole suite, rolled up from
+	 * the final histories of their cases. Like for cases, all passed ones are left out.
+	 */
+	private static void addRollups(TestResult testResult, PackageHistories[] recorded, int[] recentBuilds,
+			int maxHistoryLength, Map<String,CircularStabilityHistory> histories) {
+		int[] axis = StabilityRollup.axis(histories.values(), recentBuilds);
+		StabilityRollup suite = new StabilityRollup(axis);
+		for (PackageHistories pkg : recorded) {
+			if (pkg.caseIds.isEmpty()) {
+				// only clean cases
+				continue;
+			}
+			StabilityRollup rollup = new StabilityRollup(axis);
+			for (String caseId : pkg.caseIds) {
+				rollup.add(histories.get(caseId));
+			}
+			for (int since : pkg.cleanSince) {
+				rollup.addClean(since, recentBuilds);
+			}
+			putRollup(histories, pkg.packageId, rollup, maxHistoryLength);
+			suite.add(rollup);
+		}
+		putRollup(histories, testResult.getId(), suite, maxHistoryLength);
+	}
+	
+	private static void putRollup(Map<String,CircularStabilityHistory> histories, String id,
+			StabilityRollup rollup, int maxHistoryLength) {
+		CircularStabilityHistory history = rollup.toHistory(maxHistoryLength);
+		if (history != null) {
+			histories.put(id, history);
+		}
+	}
+	
+	/**
+	 * Encodes the histories keyed by the ids' keys in the job's {@link TestIdDictionary}.
+	 */
+	static CompactFormat.Reader encodeKeyed(TestIdDictionary dictionary, float ewmaAlpha,
+			Map<String,CircularStabilityHistory> histories) throws IOException {
+		List<String> ids = new ArrayList<String>(histories.keySet());
+		int[] keys = dictionary.getOrAddKeys(ids);
+		
+		SortedMap<Integer,CircularStabilityHistory> byKey = new TreeMap<Integer,CircularStabilityHistory>();
+		for (int i = 0; i < keys.length; i++) {
+			byKey.put(keys[i], histories.get(ids.get(i)));
+		}
+		return new CompactFormat.Reader(CompactFormat.encode(dictionary.getEpoch(), ewmaAlpha, byKey));
+	}
+	
+	/**
+	 * Encodes the clean tests of all packages, keyed like the histories.
+	 * The carried clean tests are merged with the previous clean tests by
+	 * key, in one pass.
+	 */
+	private static CleanTests encodeClean(TestIdDictionary dictionary, PackageHistories[] recorded,
+			int[] recentBuilds, @CheckForNull StabilityTestData.Lookup previous) throws IOException {
+		CleanTests.Builder clean = new CleanTests.Builder(recentBuilds);
+		int carriedCount = 0;
+		for (PackageHistories histories : recorded) {
+			int[] keys = dictionary.getOrAddKeys(histories.cleanIds);
+			for (int i = 0; i < keys.length; i++) {
+				clean.add(keys[i], histories.cleanSince.get(i));
+			}
+			carriedCount += histories.carriedCleanCount;
+		}
+		
+		if (carriedCount > 0) {
+			int[] carried = new int[carriedCount];
+			int end = 0;
+			for (PackageHistories histories : recorded) {
+				System.arraycopy(histories.carriedClean, 0, carried, end, histories.carriedCleanCount);
+				end += histories.carriedCleanCount;
+			}
+			Arrays.sort(carried);
+			// only carried if the previous data has clean tests and their dictionary was available
+			CleanTests previousClean = previous.getCleanTests();
+			TestIdDictionary.Ids previousIds = previous.getCleanIds();
+			int buildNumber = recentBuilds[recentBuilds.length - 1];
+			if (previousClean.getEpoch() == dictionary.getEpoch()) {
+				clean.addCarried(previousClean, carried, buildNumber);
+			} else {
+				// the dictionary was replaced while recording, the keys have to be added to the new one
+				List<String> ids = new ArrayList<String>(carried.length);
+				for (int key : carried) {
+					ids.add(previousIds.ids[key]);
+				}
+				int[] keys = dictionary.getOrAddKeys(ids);
+				for (int i = 0; i < keys.length; i++) {
+					int since = previousClean.getCleanSince(carried[i]);
+					clean.add(keys[i], since >= 0 ? since : buildNumber);
+				}
+			}
+		}
+		return clean.build(dictionary.getEpoch());
+	}
+	
+	/**
+	 * Returns the builds a history of the current build can span: the previous
+	 * data's recent builds followed by the current one.
+	 */
+	private static int[] getRecentBuilds(@CheckForNull StabilityTestData previousData, int buildNumber,
+			int maxHistoryLength) {
+		int[] previous = previousData != null ? previousData.getRecentBuilds() : new int[0];
+		int end = previous.length;
+		// eg another test result recorded earlier in the same build
+		while (end > 0 && previous[end - 1] >= buildNumber) {
+			end--;
+		}
+		int start = Math.max(0, end - (maxHistoryLength - 1));
+		int[] recent = Arrays.copyOfRange(previous, start, end + 1);
+		recent[recent.length - 1] = buildNumber;
+		return recent;
+	}
+	
+	/**
+	 * Records the cases of a package.
+	 * <p>
+	 * Classes without failures none of whose cases has a previous history
+	 * only have clean or skipped cases, so their cases skip the lookup of a
+	 * previous history. On mostly passing test results this leaves the
+	 * failing and tracked tests to look up.
+	 * 
+	 * @param trackedClasses the classes with a history of one of their cases in the previous build
+	 */
+	private PackageHistories recordPackage(PackageResult pkgResult, int buildNumber, int maxHistoryLength,
+			@CheckForNull StabilityTestData.Lookup previousData, Set<String> trackedClasses, TaskListener listener) {
+		PackageHistories recorded = new PackageHistories(pkgResult);
+		for (ClassResult classResult : pkgResult.getChildren()) {
+			// classes are rolled up from their cases
+			recorded.tracked += 1 + classResult.getChildren().size();
+			if (classResult.getFailCount() == 0 && !trackedClasses.contains(classResult.getId())) {
+				recordClean(classResult, buildNumber, previousData, recorded);
+				continue;
+			}
+			for (CaseResult caseResult : classResult.getChildren()) {
+				record(caseResult, buildNumber, maxHistoryLength, previousData, recorded, listener);
+			}
+		}
+		return recorded;
+	}
+	
+	private static void recordClean(ClassResult classResult, int buildNumber,
+			@CheckForNull StabilityTestData.Lookup previousData, PackageHistories recorded) {
+		long start = System.nanoTime();
+		for (CaseResult caseResult : classResult.getChildren()) {
+			// skipped cases stay untracked
+			if (caseResult.isPassed()) {
+				addPassed(caseResult, buildNumber, previousData, recorded);
+			}
+		}
+		recorded.lookupNanos += System.nanoTime() - start;
+		recorded.prunedClasses++;
+	}
+	
+	/**
+	 * Adds a passed test without a previous history as clean. A test known to
+	 * the previous data's dictionary is carried by its key, whether it was
+	 * clean there is only looked up when encoding, see {@link #encodeClean}.
+	 */
+	// NB: abstract TestResult
+	private static void addPassed(hudson.tasks.test.TestResult result, int buildNumber,
+			@CheckForNull StabilityTestData.Lookup previousData, PackageHistories recorded) {
+		int key = previousData != null ? previousData.getCleanKey(result.getId()) : -1;
+		if (key >= 0) {
+			recorded.carryClean(key);
+		} else {
+			recorded.addClean(result, buildNumber);
+		}
+	}
+	
+	// NB: abstract TestResult
+	private void record(hudson.tasks.test.TestResult result, int buildNumber, int maxHistoryLength,
+			@CheckForNull StabilityTestData.Lookup previousData, PackageHistories recorded, TaskListener listener) {
+		
+		long start = System.nanoTime();
+		CircularStabilityHistory history = getPreviousHistory(previousData, result, maxHistoryLength);
+		recorded.lookupNanos += System.nanoTime() - start;
+
+		if (history != null) {
+			if (result.isPassed()) {
+				history.add(buildNumber, true);
 				
-				// add previous results (if there are any):
-				buildUpInitialHistory(ringBuffer, result, maxHistoryLength - 1);
+				if (history.isClean()) {
+					recorded.addClean(result, history.getFirstBuildNumber());
+					history = null;
+					recorded.droppedAllPassed++;
+				}
 				
-				ringBuffer.add(run.getNumber(), false);
-				stabilityHistoryPerTest.put(result.getId(), ringBuffer);
+			} else if (result.getFailCount() > 0) {
+				history.add(buildNumber, false);
+			}
+			// else test is skipped and we leave history unchanged
+			
+			if (history != null) {
+				recorded.add(result, history);
 			}
+			return;
 		}
 		
-		return new StabilityTestData(stabilityHistoryPerTest);
+		start = System.nanoTime();
+		if (result.isPassed()) {
+			addPassed(result, buildNumber, previousData, recorded);
+			recorded.lookupNanos += System.nanoTime() - start;
+			return;
+		}
+		int cleanSince = previousData != null && result.getFailCount() > 0
+				? previousData.getCleanSince(result.getId()) : -1;
+		recorded.lookupNanos += System.nanoTime() - start;
+		
+		if (result.getFailCount() > 0 && cleanSince >= 0) {
+			// passed in all recent builds since then, no need to look at them
+			CircularStabilityHistory ringBuffer = previousData.getCleanTests().restoreHistory(cleanSince, maxHistoryLength);
+			ringBuffer.add(buildNumber, false);
+			recorded.add(result, ringBuffer);
+			recorded.resumedClean++;
+		} else if (result.getFailCount() > 0) {
+			// StabilityTestDataPublisher doesn't have a previous record of this failing test
+			// (eg StabilityTestDataPublisher wasn't enabled when it last failed)
+			debug("Found failed test " + result.getId(), listener);
+			CircularStabilityHistory ringBuffer = new CircularStabilityHistory(maxHistoryLength);
+			
+			// previous results (if there are any) are added for all new failures at once
+			recorded.add(result, ringBuffer);
+			recorded.newFailures.add(result);
+			recorded.newFailureHistories.add(ringBuffer);
+		}
+		// else a skipped test isn't tracked any more, it would have to be backfilled when it fails
+	}
+	
+	/**
+	 * Returns the package from all test results the build recorded so far,
+	 * which the merge doesn't keep, null if it isn't there any more.
+	 */
+	private static @CheckForNull PackageResult findRecordedPackage(@CheckForNull Run<?, ?> run, String packageName) {
+		TestResultAction action = run != null ? run.getAction(TestResultAction.class) : null;
+		TestResult all = action != null ? action.getResult() : null;
+		return all != null ? all.byPackage(packageName) : null;
+	}
+	
+	/**
+	 * Forgets the packages recorded by the run's test results once it
+	 * finished, see {@link StabilityRunListener}.
+	 */
+	static void forgetMerge(Run<?, ?> run) {
+		synchronized (MERGES) {
+			MERGES.remove(run);
+		}
+	}
+	
+	/**
+	 * Returns the packages recorded by the run's earlier test results, null
+	 * if the run isn't building any more, as it has no further ones then.
+	 */
+	private static @CheckForNull RunMerge getMerge(Run<?, ?> run) {
+		if (!run.isBuilding()) {
+			return null;
+		}
+		synchronized (MERGES) {
+			for (Iterator<Run<?, ?>> it = MERGES.keySet().iterator(); it.hasNext();) {
+				if (!it.next().isBuilding()) {
+					it.remove();
+				}
+			}
+			RunMerge merge = MERGES.get(run);
+			if (merge == null) {
+				merge = new RunMerge();
+				MERGES.put(run, merge);
+			}
+			return merge;
+		}
+	}
+	
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return pool;
+	}
+	
+	/**
+	 * Stops the threads of the fork/join pool, so that they don't outlive the
+	 * controller or a reload of the plugin. A later recording creates a new pool.
+	 */
+	@Terminator
+	public static synchronized void shutdownPool() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+	
+	private static synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+			asyncExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+						
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Test stability recording #" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+			asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return asyncExecutor;
 	}
 	
 	private void debug(String msg, TaskListener listener) {
@@ -123,159 +756,336 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 		}
 	}
 
-	// NB: abstract TestResult
-	private CircularStabilityHistory getPreviousHistory(hudson.tasks.test.TestResult result) {
-		// NB: abstract TestResult
-		hudson.tasks.test.TestResult previous = getPreviousResultSafely(result);
-
-		if (previous != null) {
-			StabilityTestAction previousAction = previous.getTestAction(StabilityTestAction.class);
-			if (previousAction != null) {
-				CircularStabilityHistory prevHistory = previousAction.getRingBuffer();
-				
-				if (prevHistory == null) {
-					return null;
-				}
-				
-				// copy to new to not modify the old data
-				CircularStabilityHistory newHistory = new CircularStabilityHistory(getDescriptor().getMaxHistoryLength());
-				newHistory.addAll(prevHistory.getData());
-				return newHistory;
+	/**
+	 * Returns the closest previous build with test results, which is where
+	 * {@link hudson.tasks.test.TestResult#getPreviousResult()} would look.
+	 */
+	private static @CheckForNull Run<?, ?> getPreviousBuildWithResults(Run<?, ?> run) {
+		for (Run<?, ?> previous = run.getPreviousBuild(); previous != null; previous = previous.getPreviousBuild()) {
+			if (previous.getAction(TestResultAction.class) != null) {
+				return previous;
 			}
 		}
 		return null;
 	}
+	
+	/**
+	 * Returns the stability data of the {@link #getPreviousBuildWithResults closest previous build with test results}.
+	 */
+	private @CheckForNull StabilityTestData getPreviousData(Run<?, ?> run, TestResult testResult) {
+		Run<?, ?> previous = getPreviousBuildWithResults(run);
+		if (previous == null) {
+			return null;
+		}
+		// only asks the build's data, doesn't load the previous test report
+		StabilityTestData data = StabilityTestData.get(previous.getAction(TestResultAction.class), testResult);
+		if (data != null) {
+			data.attach(run.getParent());
+		}
+		return data;
+	}
 
 	// NB: abstract TestResult
-	private void buildUpInitialHistory(CircularStabilityHistory ringBuffer, hudson.tasks.test.TestResult result, int number) {
-		List<Result> testResultsFromNewestToOldest = new ArrayList<Result>(number);
-		// NB: abstract TestResult
-		hudson.tasks.test.TestResult previousResult = getPreviousResultSafely(result);
-		while (previousResult != null) {
-			testResultsFromNewestToOldest.add(
-					new Result(previousResult.getRun().getNumber(), previousResult.isPassed()));
-			previousResult = previousResult.getPreviousResult();
+	private CircularStabilityHistory getPreviousHistory(@CheckForNull StabilityTestData.Lookup previousData,
+			hudson.tasks.test.TestResult result, int maxHistoryLength) {
+		if (previousData == null) {
+			return null;
 		}
-
-		for (int i = testResultsFromNewestToOldest.size() - 1; i >= 0; i--) {
-			ringBuffer.add(testResultsFromNewestToOldest.get(i));
+		
+		CircularStabilityHistory prevHistory = previousData.getHistory(result.getId());
+		if (prevHistory == null) {
+			return null;
 		}
+		
+		// shares the previous entries, adding to it doesn't modify the old data
+		return prevHistory.copy(maxHistoryLength);
 	}
 
+	private HistoryBackfill createBackfill(int maxHistoryLength) {
+		DescriptorImpl descriptor = getDescriptor();
+		// the current result takes the last slot of the history
+		return new HistoryBackfill(maxHistoryLength - 1,
+				TimeUnit.SECONDS.toMillis(descriptor.getBackfillTimeout()),
+				(long) descriptor.getMaxBackfillMemory() << 20);
+	}
 
-	// NB: abstract TestResult
-	private @Nullable hudson.tasks.test.TestResult getPreviousResultSafely(hudson.tasks.test.TestResult result) {
-		try {
-			return result.getPreviousResult();
-		} catch (NullPointerException e) {
-			// there's a bug (only on freestyle builds!) that getPreviousResult may throw a NPE (only for ClassResults!) in Jenkins 1.480
-			// Note: doesn't seem to occur anymore in Jenkins 1.520
-			// Don't know about the versions between 1.480 and 1.520
-			// Update: This also happens when running pipeline integration tests
-
-			if (result instanceof ClassResult) {
-				ClassResult classResult = (ClassResult) result;
-				PackageResult pkgResult = classResult.getParent();
-				TestResult topLevel = pkgResult.getParent();
-				hudson.tasks.test.TestResult prevTopLevel = topLevel.getPreviousResult();
-				if (prevTopLevel != null) {
-					if (prevTopLevel instanceof TestResult) {
-						TestResult prevJunitTestResult = (TestResult) prevTopLevel;
-						PackageResult prevPkgResult = prevJunitTestResult.byPackage(pkgResult.getName());
-						if (prevPkgResult != null) {
-							return prevPkgResult.getClassResult(classResult.getName());
-						}
-					}
-					// else something is weird if the previousResult has a different class!
+	/**
+	 * Records one test result of a build for the {@link StabilityHistoryStore},
+	 * again if an earlier build of the job recorded after it.
+	 * <p>
+	 * A later test result of the build is merged with the packages the earlier
+	 * ones recorded, recording again records all test results of the build.
+	 */
+	private final class BuildRecorder implements StabilityHistoryStore.Recorder {
+		
+		private final Run<?, ?> run;
+		// recording again loads the report from the build once it was collected
+		private final SoftReference<TestResult> testResult;
+		// the build's log, only needed until the first recording is attached
+		private volatile @CheckForNull TaskListener listener;
+		private final @CheckForNull RunMerge merge;
+		
+		// guarded by the store: recorded first before being published, then under the recording's lock
+		private long previousDataNanos;
+		private boolean recorded;
+		
+		// of the last recording, attached outside the store's locks
+		private volatile StabilityRecordingAction metrics;
+		private volatile FlakinessRanking.Builder ranking;
+		private volatile boolean allResults;
+		
+		BuildRecorder(Run<?, ?> run, TestResult testResult, TaskListener listener, @CheckForNull RunMerge merge) {
+			this.run = run;
+			this.testResult = new SoftReference<TestResult>(testResult);
+			this.listener = listener;
+			this.merge = merge;
+		}
+		
+		@Override
+		public int getPreviousBuildNumber() {
+			long start = System.nanoTime();
+			Run<?, ?> previous = getPreviousBuildWithResults(run);
+			previousDataNanos += System.nanoTime() - start;
+			return previous != null ? previous.getNumber() : -1;
+		}
+		
+		@Override
+		public StabilityTestData getPreviousData() {
+			TestResult result = getTestResult();
+			if (result == null) {
+				return null;
+			}
+			long start = System.nanoTime();
+			StabilityTestData data = StabilityTestDataPublisher.this.getPreviousData(run, result);
+			previousDataNanos += System.nanoTime() - start;
+			return data;
+		}
+		
+		@Override
+		public StabilityTestData record(StabilityTestData previousData) {
+			TestResult result = getTestResult();
+			if (result == null) {
+				return null;
+			}
+			// recording again happens for another build, this one's log may be closed by now
+			TaskListener log = recorded ? new LogTaskListener(LOGGER, Level.INFO) : listener;
+			DescriptorImpl descriptor = getDescriptor();
+			StabilityRecordingAction recordingMetrics = new StabilityRecordingAction();
+			recordingMetrics.previousDataNanos = previousDataNanos;
+			previousDataNanos = 0;
+			
+			FlakinessRanking.Builder recordingRanking = new FlakinessRanking.Builder();
+			// the packages recorded before aren't from the same previous data when recording again
+			StabilityTestData data = StabilityTestDataPublisher.this.record(run, run.getNumber(), run.getParent().getRootDir(),
+					result, previousData, descriptor.getMaxHistoryLength(), descriptor.isUseIndex(), descriptor.getEwmaAlpha(),
+					log, recordingMetrics, recordingRanking, recorded ? null : merge);
+			
+			debug(recordingMetrics.toString(), log);
+			metrics = recordingMetrics;
+			ranking = recordingRanking;
+			recorded = true;
+			return data;
+		}
+		
+		/**
+		 * Attaches the metrics and ranking of the first recording to the build.
+		 */
+		void attach() {
+			StabilityRecordingStats.INSTANCE.add(run.getParent().getFullName(), metrics);
+			attachActions(run, metrics, ranking, allResults, listener);
+			// the store keeps the recorder while an earlier build may still record
+			listener = null;
+		}
+		
+		@Override
+		public void recordedAgain(StabilityTestData data) {
+			attachRecordedAgain(run, ranking, allResults, new LogTaskListener(LOGGER, Level.INFO));
+			try {
+				run.save();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save " + run + " after recording it again", e);
+			}
+		}
+		
+		/**
+		 * Returns all test results of the build when recording again, else the
+		 * one passed to the publisher, which is merged with the earlier ones.
+		 */
+		private @CheckForNull TestResult getTestResult() {
+			TestResultAction action = run.getAction(TestResultAction.class);
+			if (recorded && action != null) {
+				TestResult all = action.getResult();
+				if (all != null) {
+					allResults = true;
+					return all;
 				}
 			}
-			// TODO log something, or just throw e
-			return null;
+			allResults = merge != null && merge.hasPackages();
+			TestResult result = testResult.get();
+			if (result == null && action != null) {
+				result = action.getResult();
+			}
+			return result;
 		}
 	}
-
-//	/**
-//	 * TestResult.getPreviousResult() throws NPE when getParentAction() returns null (eg try running PipelineTest),
-//	 * so this method emulates it but uses its own implementation of getParentAction().
-//	 * @see hudson.tasks.test.TestResult#getPreviousResult()
-//	 * @see hudson.tasks.test.TestResult#getParentAction()
-//	 * @param testResult
-//	 * @return
-//	 */
-//	// NB: abstract TestResult
-//	private @Nullable hudson.tasks.test.TestResult getPreviousResult(hudson.tasks.test.TestResult testResult) {
-//		@Nullable AbstractTestResultAction parentAction = getParentAction(testResult);
-//		if (parentAction == null) {
-//			// This probably shouldn't happen
-//			return null;
-//		}
-//		Run<?,?> run = testResult.getRun();
-//		if (run == null) {
-//			// This probably shouldn't happen either
-//			return null;
-//		}
-//		while (true) {
-//			run = run.getPreviousBuild();
-//			if (run == null) {
-//				return null;
-//			}
-//			// get corresponding action for 'run'
-//			AbstractTestResultAction r = run.getAction(parentAction.getClass());
-//			if (r != null) {
-//				hudson.tasks.test.TestResult result = r.findCorrespondingResult(testResult.getId());
-//				if (result != null) {
-//					return result;
-//				}
-//			}
-//		}
-//	}
-//
-//	private AbstractTestResultAction getParentAction(hudson.tasks.test.TestResult thisResult) {
-//		if (thisResult instanceof PackageResult) {
-//			return getParentAction((PackageResult) thisResult);
-//		} else if (thisResult instanceof ClassResult) {
-//			return getParentAction((ClassResult) thisResult);
-//		} else if (thisResult instanceof CaseResult) {
-//			return getParentAction((CaseResult) thisResult);
-//		} else if (thisResult instanceof TestResult) {
-//			return getParentAction((TestResult) thisResult);
-//		} else {
-//			// (just in case) probably SimpleCaseResult
-//			return thisResult.getParentAction();
-//		}
-//	}
-//
-//	private AbstractTestResultAction getParentAction(CaseResult caseResult) {
-//		return getParentAction(caseResult.getParent());
-//	}
-//
-//	private AbstractTestResultAction getParentAction(ClassResult classResult) {
-//		return getParentAction(classResult.getParent());
-//	}
-//
-//	private AbstractTestResultAction getParentAction(PackageResult packageResult) {
-//		return getParentAction(packageResult.getParent());
-//	}
-//
-//	private AbstractTestResultAction getParentAction(hudson.tasks.junit.TestResult buildTestResult) {
-//		return buildTestResult.getParentAction();
-//	}
-
-	// NB: param is top level TestResult for a build, returns abstract TestResults (classes and their cases)
-	private Collection<hudson.tasks.test.TestResult> getClassAndCaseResults(TestResult testResult) {
+	
+	/**
+	 * The packages recorded by the earlier test results of a building run,
+	 * e.g. by the earlier <code>junit</code> steps of a pipeline. A later test
+	 * result records only the packages it added or changed and takes over the
+	 * others, as long as they were recorded from the same previous data.
+	 */
+	private static final class RunMerge {
+		
+		private final Map<String, PackageHistories> packages = new HashMap<String, PackageHistories>();
+		private @CheckForNull StabilityTestData previousData;
+		private int previousRevision;
+		// read without the monitor, which a recording of the build holds while it waits for the store
+		private volatile boolean recordedAny;
+		
+		// the last asynchronous recording of the build, which the next one waits for
+		volatile Future<?> pending;
+		
+		boolean hasPackages() {
+			return recordedAny;
+		}
+		
+		/**
+		 * Returns a copy of the recorded packages by id.
+		 */
+		synchronized Map<String, PackageHistories> getPackages() {
+			return new HashMap<String, PackageHistories>(packages);
+		}
+		
+		/**
+		 * Whether the packages were recorded from the given previous data, as it is now.
+		 */
+		synchronized boolean isRecordedFrom(@CheckForNull StabilityTestData previous, int revision) {
+			return previous == previousData && revision == previousRevision;
+		}
+		
+		/**
+		 * Replaces the recorded packages with the ones of a later test result.
+		 */
+		synchronized void update(@CheckForNull StabilityTestData previous, int revision, PackageHistories[] recorded) {
+			packages.clear();
+			for (PackageHistories histories : recorded) {
+				// backfilled by now, the failed tests would keep the build's test results loaded
+				histories.newFailures.clear();
+				histories.newFailureHistories.clear();
+				packages.put(histories.packageId, histories);
+			}
+			previousData = previous;
+			previousRevision = revision;
+			recordedAny = recorded.length > 0;
+		}
+	}
+	
+	/**
+	 * Histories recorded for the cases of one package.
+	 */
+	private static final class PackageHistories {
+		// recorded again by a later test result of the build if the previous data changed,
+		// not the package itself, which would keep the build reachable from RunMerge
+		final String packageName;
+		final String packageId;
+		// a package with other counts got suites added by a later test result of the build
+		final String counts;
+		final Map<String,CircularStabilityHistory> histories = new HashMap<String,CircularStabilityHistory>();
+		// failed tests without a previous history, still to be backfilled
 		// NB: abstract TestResult
-		List<hudson.tasks.test.TestResult> results = new ArrayList<hudson.tasks.test.TestResult>();
+		final List<hudson.tasks.test.TestResult> newFailures = new ArrayList<hudson.tasks.test.TestResult>();
+		final List<CircularStabilityHistory> newFailureHistories = new ArrayList<CircularStabilityHistory>();
+		// ids of the cases with a history
+		final List<String> caseIds = new ArrayList<String>();
+		// tests which passed in all builds, with the build they are clean since
+		final List<String> cleanIds = new ArrayList<String>();
+		final List<Integer> cleanSince = new ArrayList<Integer>();
+		// passed tests without a history, by their key in the previous data's clean tests,
+		// clean since the same build as there or since this one
+		int[] carriedClean = new int[0];
+		int carriedCleanCount;
+		int tracked;
+		int droppedAllPassed;
+		int resumedClean;
+		int prunedClasses;
+		long lookupNanos;
+		
+		PackageHistories(PackageResult pkgResult) {
+			this.packageName = pkgResult.getName();
+			this.packageId = pkgResult.getId();
+			this.counts = counts(pkgResult);
+		}
+		
+		static String counts(PackageResult pkgResult) {
+			return pkgResult.getChildren().size() + "/" + pkgResult.getPassCount() + "/"
+					+ pkgResult.getFailCount() + "/" + pkgResult.getSkipCount();
+		}
 		
-		Collection<PackageResult> packageResults = testResult.getChildren();
-		for (PackageResult pkgResult : packageResults) {
-			Collection<ClassResult> classResults = pkgResult.getChildren();
-			for (ClassResult cr : classResults) {
-				results.add(cr);
-				results.addAll(cr.getChildren());
+		// NB: abstract TestResult
+		void add(hudson.tasks.test.TestResult result, CircularStabilityHistory history) {
+			String id = result.getId();
+			histories.put(id, history);
+			caseIds.add(id);
+		}
+		
+		// NB: abstract TestResult
+		void addClean(hudson.tasks.test.TestResult result, int since) {
+			cleanIds.add(result.getId());
+			cleanSince.add(since);
+		}
+		
+		void carryClean(int key) {
+			if (carriedCleanCount == carriedClean.length) {
+				carriedClean = Arrays.copyOf(carriedClean, Math.max(16, 2 * carriedCleanCount));
+			}
+			carriedClean[carriedCleanCount++] = key;
+		}
+	}
+	
+	/**
+	 * Records the packages <code>from</code> (inclusive) to <code>to</code> (exclusive),
+	 * splitting the range until each task handles a single package.
+	 */
+	private final class RecordPackages extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final List<PackageResult> packageResults;
+		private final PackageHistories[] recorded;
+		private final int from;
+		private final int to;
+		private final int buildNumber;
+		private final int maxHistoryLength;
+		private final @CheckForNull StabilityTestData.Lookup previousData;
+		private final Set<String> trackedClasses;
+		private final TaskListener listener;
+		
+		RecordPackages(List<PackageResult> packageResults, PackageHistories[] recorded, int from, int to,
+				int buildNumber, int maxHistoryLength, @CheckForNull StabilityTestData.Lookup previousData,
+				Set<String> trackedClasses, TaskListener listener) {
+			this.packageResults = packageResults;
+			this.recorded = recorded;
+			this.from = from;
+			this.to = to;
+			this.buildNumber = buildNumber;
+			this.maxHistoryLength = maxHistoryLength;
+			this.previousData = previousData;
+			this.trackedClasses = trackedClasses;
+			this.listener = listener;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				recorded[from] = recordPackage(packageResults.get(from), buildNumber, maxHistoryLength,
+						previousData, trackedClasses, listener);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new RecordPackages(packageResults, recorded, from, middle, buildNumber, maxHistoryLength, previousData, trackedClasses, listener),
+						new RecordPackages(packageResults, recorded, middle, to, buildNumber, maxHistoryLength, previousData, trackedClasses, listener));
 			}
 		}
-
-		return results;
 	}
 
     @Override
@@ -288,23 +1098,123 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 	public static class DescriptorImpl extends Descriptor<TestDataPublisher> {
 		
 		private int maxHistoryLength = 30;
+		
+		private int backfillTimeout = 60;
+		
+		private int maxBackfillMemory = 16;
+		
+		private boolean useIndex;
+		
+		private MetricMode metricMode = MetricMode.WINDOW;
+		
+		private int ewmaHalfLife = 50;
+		
+		public DescriptorImpl() {
+			load();
+		}
 
 		@Override
 		public boolean configure(StaplerRequest req, JSONObject json)
 				throws FormException {
+			int previousMaxHistoryLength = this.maxHistoryLength;
 			this.maxHistoryLength = json.getInt("maxHistoryLength");
+			this.backfillTimeout = json.getInt("backfillTimeout");
+			this.maxBackfillMemory = json.getInt("maxBackfillMemory");
+			this.useIndex = json.getBoolean("useIndex");
+			this.metricMode = MetricMode.valueOf(json.getString("metricMode"));
+			this.ewmaHalfLife = json.getInt("ewmaHalfLife");
 			
 			save();
+			if (maxHistoryLength < previousMaxHistoryLength) {
+				HistoryMigration.start(maxHistoryLength);
+			} else if (maxHistoryLength > previousMaxHistoryLength) {
+				// would shrink histories that can grow now
+				HistoryMigration.cancelCurrent();
+			}
             return super.configure(req,json);
 		}
 		
 		public int getMaxHistoryLength() {
 			return this.maxHistoryLength;
 		}
+		
+		/**
+		 * Seconds to spend at most on looking up the previous results of new failures, 0 for no limit.
+		 */
+		public int getBackfillTimeout() {
+			return this.backfillTimeout;
+		}
+		
+		/**
+		 * Megabytes the new failures of a build may take at most while their
+		 * previous results are looked up, see {@link HistoryBackfill}, 0 for no limit.
+		 */
+		public int getMaxBackfillMemory() {
+			return this.maxBackfillMemory;
+		}
+
+		/**
+		 * Whether histories are written to a per-job {@link StabilityIndex} instead of the build records.
+		 */
+		public boolean isUseIndex() {
+			return this.useIndex;
+		}
+
+		/**
+		 * How stability and flakiness are computed.
+		 */
+		public MetricMode getMetricMode() {
+			// null when loaded from a configuration saved before the modes
+			return this.metricMode != null ? this.metricMode : MetricMode.WINDOW;
+		}
+		
+		/**
+		 * Number of builds after which a result only weighs half as much, for {@link MetricMode#EWMA}.
+		 */
+		public int getEwmaHalfLife() {
+			return this.ewmaHalfLife;
+		}
+		
+		/**
+		 * Smoothing factor of the exponentially weighted rates, 0 unless in {@link MetricMode#EWMA}.
+		 */
+		float getEwmaAlpha() {
+			if (getMetricMode() != MetricMode.EWMA || ewmaHalfLife <= 0) {
+				return 0f;
+			}
+			return (float) (1 - Math.pow(0.5, 1.0 / ewmaHalfLife));
+		}
+
+		/**
+		 * Progress of rewriting the recorded histories after the last change of
+		 * the max history length, null if it wasn't changed since startup.
+		 */
+		public @CheckForNull String getMigrationStatus() {
+			HistoryMigration migration = HistoryMigration.getCurrent();
+			return migration != null ? migration.toString() : null;
+		}
 
 		@Override
 		public String getDisplayName() {
 			return "Test stability history";
 		}
 	}
+	
+	/**
+	 * How stability and flakiness are computed from the results of a test.
+	 */
+	public enum MetricMode {
+		/**
+		 * Exact counts over the last <code>maxHistoryLength</code> builds.
+		 */
+		WINDOW,
+		/**
+		 * Exponentially weighted failure and status change rates, see
+		 * {@link CircularStabilityHistory#trackEwma(float)}. Remembers results
+		 * beyond the history length, while a test only keeps its rates and
+		 * last result. The trend graph, the package and suite rollups, the
+		 * exported results and the backfill of new failures aren't available.
+		 */
+		EWMA
+	}
 }
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Pass/fail timeline of a {@link CircularStabilityHistory} as inline SVG,
+ * one bar per build, oldest first.
+ * <p>
+ * Rendered graphs are kept in a bounded cache keyed by a hash of the content
+ * of the history, i.e. its build numbers and results. The same history shown for
+ * another build, e.g. of a test which hasn't run since, or shown again
+ * reuses the graph instead of drawing it.
+ * 
+ * @author ckutz
+ */
+final class StabilityTrendGraph {
+	
+	static final int MAX_CACHED_GRAPHS = 2000;
+	
+	static final int BAR_WIDTH = 6;
+	static final int BAR_GAP = 1;
+	static final int HEIGHT = 16;
+	
+	private static final String PASSED_COLOR = "#4c9a2a";
+	private static final String FAILED_COLOR = "#d24939";
+	
+	private static final Cache<Key, String> GRAPHS = CacheBuilder.newBuilder()
+			.maximumSize(MAX_CACHED_GRAPHS)
+			.build();
+	
+	private StabilityTrendGraph() {}
+	
+	/**
+	 * Returns the graph of the given history, empty for an empty history or
+	 * one which only keeps weighted rates, see {@link CircularStabilityHistory#trackEwma(float)}.
+	 */
+	static String svg(final CircularStabilityHistory history) {
+		if (history.size() == 0 || history.isEwma()) {
+			return "";
+		}
+		try {
+			return GRAPHS.get(new Key(history), new Callable<String>() {
+				@Override
+				public String call() {
+					return render(history);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	static String render(CircularStabilityHistory history) {
+		int size = history.size();
+		int width = size * (BAR_WIDTH + BAR_GAP) - BAR_GAP;
+		StringBuilder svg = new StringBuilder(128 + size * 128);
+		svg.append("<svg xmlns='http://www.w3.org/2000/svg' class='test-stability-trend' width='").append(width)
+				.append("' height='").append(HEIGHT).append("' viewBox='0 0 ").append(width).append(' ').append(HEIGHT)
+				.append("'>");
+		int buildNumber = history.getFirstBuildNumber();
+		for (int i = 0; i < size; i++) {
+			buildNumber += history.getDelta(i);
+			boolean passed = history.isPassed(i);
+			// failures are drawn full height, passes half height
+			int barHeight = passed ? HEIGHT / 2 : HEIGHT;
+			svg.append("<rect x='").append(i * (BAR_WIDTH + BAR_GAP))
+					.append("' y='").append(HEIGHT - barHeight)
+					.append("' width='").append(BAR_WIDTH)
+					.append("' height='").append(barHeight)
+					.append("' fill='").append(passed ? PASSED_COLOR : FAILED_COLOR)
+					.append("'><title>#").append(buildNumber).append(passed ? " passed" : " failed")
+					.append("</title></rect>");
+		}
+		return svg.append("</svg>").toString();
+	}
+	
+	/**
+	 * The content of a history: its first build number, its size and a 64-bit
+	 * FNV-1a hash of its results and build number deltas. It doesn't keep the
+	 * content itself, a collision of the hashes is unlikely enough to be
+	 * accepted for a cached graph.
+	 */
+	private static final class Key {
+		private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+		private static final long FNV_PRIME = 0x100000001b3L;
+		
+		private final int firstBuildNumber;
+		private final int size;
+		private final long hash;
+		
+		Key(CircularStabilityHistory history) {
+			firstBuildNumber = history.getFirstBuildNumber();
+			size = history.size();
+			long hash = FNV_OFFSET_BASIS;
+			long word = 0;
+			for (int i = 0; i < size; i++) {
+				hash = (hash ^ history.getDelta(i)) * FNV_PRIME;
+				if (history.isPassed(i)) {
+					word |= 1L << i;
+				}
+				if ((i & 63) == 63 || i == size - 1) {
+					hash = (hash ^ word) * FNV_PRIME;
+					word = 0;
+				}
+			}
+			this.hash = hash;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int) (hash ^ (hash >>> 32));
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && firstBuildNumber == other.firstBuildNumber && size == other.size;
+		}
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Per-job dictionary assigning every test id a stable int key, so that the
+ * build records only store the keys instead of the full ids.
+ * <p>
+ * The ids are appended to a file in the job's directory, front coded
+ * against the id before them:
+ * <pre>
+ * magic epoch { sharedPrefixLength suffixLength suffix }*
+ * </pre>
+ * The key of an id is its position in the file. The epoch is a random
+ * number chosen when the file is created and stored with all keys, so keys
+ * are never resolved against a deleted and recreated dictionary.
+ * <p>
+ * The loaded ids are an immutable snapshot, replaced when ids are added,
+ * so that resolving keys and ids takes no lock. The snapshot is only softly
+ * referenced and read again when needed after it was collected.
+ * <p>
+ * Ids are never removed, as the builds still store keys of tests which were
+ * removed or renamed since. Instead a dictionary holds at most
+ * {@value #MAX_IDS} ids: once it is full, builds with new tests keep their
+ * ids in the build record, see {@link StabilityTestDataPublisher}. Deleting
+ * the file starts over with a new epoch, at the price of the histories of
+ * the builds keyed by the old one.
+ * 
+ * @author ckutz
+ */
+final class TestIdDictionary {
+	
+	static final String FILE_NAME = "test-stability-ids";
+	
+	// a few hundred MB of ids at most, both on disk and loaded
+	static final int MAX_IDS = 1 << 22;
+	
+	private static final Logger LOGGER = Logger.getLogger(TestIdDictionary.class.getName());
+	
+	private static final long MAGIC = 0x5354414249445331L; // STABIDS1
+	private static final int HEADER_SIZE = 16;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final ConcurrentMap<File, TestIdDictionary> DICTIONARIES = new ConcurrentHashMap<File, TestIdDictionary>();
+	
+	private final File file;
+	private final int maxIds;
+	
+	// null until loaded, the referent is collected when memory is needed; replaced under the lock
+	private volatile SoftReference<Ids> loaded;
+	// epochs asked for which aren't this dictionary's, each is only logged once
+	private final Set<Long> mismatchedEpochs = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	
+	TestIdDictionary(File file) {
+		this(file, MAX_IDS);
+	}
+	
+	TestIdDictionary(File file, int maxIds) {
+		this.file = file;
+		this.maxIds = maxIds;
+	}
+	
+	/**
+	 * Returns the dictionary of the job with the given root directory.
+	 */
+	static TestIdDictionary forJob(File jobDir) {
+		File file = new File(jobDir, FILE_NAME);
+		TestIdDictionary dictionary = DICTIONARIES.get(file);
+		if (dictionary == null) {
+			TestIdDictionary created = new TestIdDictionary(file);
+			dictionary = DICTIONARIES.putIfAbsent(file, created);
+			if (dictionary == null) {
+				dictionary = created;
+			}
+		}
+		return dictionary;
+	}
+	
+	/**
+	 * Drops the dictionaries of jobs whose directory doesn't exist any more,
+	 * e.g. as they were deleted or renamed.
+	 */
+	static void forgetMissingJobs() {
+		for (Iterator<File> it = DICTIONARIES.keySet().iterator(); it.hasNext();) {
+			if (!it.next().getParentFile().exists()) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the key of the given id in the dictionary with the given epoch.
+	 * 
+	 * @return -1 if the id has no key, or the dictionary was replaced
+	 */
+	int getKey(long epoch, String testId) {
+		Ids current = get();
+		if (current == null || !isEpoch(current, epoch)) {
+			return -1;
+		}
+		return current.getKey(testId);
+	}
+	
+	/**
+	 * Returns the id with the given key in the dictionary with the given epoch.
+	 * 
+	 * @return null if there is no such key, or the dictionary was replaced
+	 */
+	@CheckForNull String getId(long epoch, int key) {
+		Ids current = get();
+		if (current == null || !isEpoch(current, epoch) || key < 0 || key >= current.ids.length) {
+			return null;
+		}
+		return current.ids[key];
+	}
+	
+	/**
+	 * Returns the current ids, for resolving many keys of one epoch against
+	 * the same snapshot, see {@link Ids#getKey}.
+	 * 
+	 * @return null if the dictionary can't be read, or has another epoch
+	 */
+	@CheckForNull Ids getIds(long epoch) {
+		Ids current = get();
+		return current != null && isEpoch(current, epoch) ? current : null;
+	}
+	
+	/**
+	 * Whether keys stored with the given epoch belong to this dictionary.
+	 * Logs the first mismatch of each epoch, as the histories keyed by it are lost.
+	 */
+	private boolean isEpoch(Ids current, long epoch) {
+		if (epoch == current.epoch) {
+			return true;
+		}
+		if (mismatchedEpochs.add(epoch)) {
+			LOGGER.log(Level.WARNING, "{0} was deleted or replaced since histories were recorded against it, "
+					+ "the test stability histories keyed by its epoch {1} can't be read",
+					new Object[] { file, Long.toHexString(epoch) });
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the keys of the given ids, adding the ones not yet in the dictionary.
+	 * New ids are added in sorted order, so that they are front coded against similar ones.
+	 * 
+	 * @return the keys in the order of <code>testIds</code>
+	 * @throws IOException if the file can't be read or written, or the
+	 * dictionary would hold more than its maximum number of ids
+	 */
+	synchronized int[] getOrAddKeys(List<String> testIds) throws IOException {
+		Ids current = load();
+		if (current == null) {
+			throw new IOException("Failed to load " + file);
+		}
+		
+		int[] result = new int[testIds.size()];
+		Set<String> missing = new TreeSet<String>();
+		for (int i = 0; i < result.length; i++) {
+			result[i] = current.getKey(testIds.get(i));
+			if (result[i] < 0) {
+				missing.add(testIds.get(i));
+			}
+		}
+		if (missing.isEmpty()) {
+			return result;
+		}
+		if (current.ids.length + missing.size() > maxIds) {
+			throw new IOException(file + " holds the maximum of " + maxIds + " test ids");
+		}
+		
+		CompactFormat.Output added = new CompactFormat.Output();
+		byte[] previous = current.last;
+		for (String testId : missing) {
+			byte[] bytes = testId.getBytes(UTF8);
+			CompactFormat.writeId(added, previous, bytes);
+			previous = bytes;
+		}
+		// readers keep using the current ids until the new ones are on disk
+		Ids appended = append(current, added.toByteArray(), new ArrayList<String>(missing), previous);
+		loaded = new SoftReference<Ids>(appended);
+		
+		for (int i = 0; i < result.length; i++) {
+			if (result[i] < 0) {
+				result[i] = appended.getKey(testIds.get(i));
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * The epoch of the dictionary, which has to be stored with its keys.
+	 */
+	long getEpoch() throws IOException {
+		Ids current = get();
+		if (current == null) {
+			throw new IOException("Failed to load " + file);
+		}
+		return current.epoch;
+	}
+	
+	private @CheckForNull Ids get() {
+		SoftReference<Ids> reference = loaded;
+		Ids current = reference != null ? reference.get() : null;
+		if (current != null) {
+			return current;
+		}
+		synchronized (this) {
+			return load();
+		}
+	}
+	
+	/**
+	 * Reads the file, unless it is loaded and wasn't collected since.
+	 * 
+	 * @return null if the file exists but can't be read
+	 */
+	private @CheckForNull Ids load() {
+		SoftReference<Ids> reference = loaded;
+		Ids current = reference != null ? reference.get() : null;
+		if (current != null) {
+			return current;
+		}
+		
+		if (!file.exists()) {
+			current = Ids.EMPTY;
+			loaded = new SoftReference<Ids>(current);
+			return current;
+		}
+		try {
+			byte[] data = Files.readAllBytes(file.toPath());
+			if (data.length < HEADER_SIZE) {
+				// creation was interrupted, the next append writes the header again
+				current = Ids.EMPTY;
+				loaded = new SoftReference<Ids>(current);
+				return current;
+			}
+			ByteBuffer header = ByteBuffer.wrap(data);
+			if (header.getLong(0) != MAGIC) {
+				LOGGER.log(Level.WARNING, "{0} is not a test id dictionary", file);
+				return null;
+			}
+			long epoch = header.getLong(8);
+			
+			CompactFormat.Input in = new CompactFormat.Input(data, HEADER_SIZE);
+			List<String> ids = new ArrayList<String>();
+			byte[] last = new byte[0];
+			long length = HEADER_SIZE;
+			try {
+				while (in.position() < data.length) {
+					byte[] id = CompactFormat.readId(in, last);
+					ids.add(new String(id, UTF8));
+					last = id;
+					length = in.position();
+				}
+			} catch (IllegalArgumentException e) {
+				// an interrupted append, the next one overwrites it
+				LOGGER.log(Level.WARNING, "Ignoring the truncated end of {0}", file);
+			}
+			current = new Ids(epoch, length, ids.toArray(new String[ids.size()]), last);
+			loaded = new SoftReference<Ids>(current);
+			return current;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes the encoded ids after the current ones.
+	 * 
+	 * @return the ids including the added ones
+	 */
+	private Ids append(Ids current, byte[] encoded, List<String> added, byte[] last) throws IOException {
+		long epoch = current.epoch;
+		long length = current.length;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (length < HEADER_SIZE) {
+				epoch = new SecureRandom().nextLong();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putLong(MAGIC).putLong(epoch).flip();
+				writeFully(channel, header, 0);
+				length = HEADER_SIZE;
+			}
+			// drops the end of an interrupted append
+			channel.truncate(length);
+			writeFully(channel, ByteBuffer.wrap(encoded), length);
+		} finally {
+			raf.close();
+		}
+		
+		String[] ids = Arrays.copyOf(current.ids, current.ids.length + added.size());
+		for (int i = 0; i < added.size(); i++) {
+			ids[current.ids.length + i] = added.get(i);
+		}
+		return new Ids(epoch, length + encoded.length, ids, last);
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	/**
+	 * Immutable snapshot of the ids of the file, by key, with an open
+	 * addressing table of the keys by id.
+	 */
+	static final class Ids {
+		
+		static final Ids EMPTY = new Ids(0, 0, new String[0], new byte[0]);
+		
+		final long epoch;
+		// bytes of the file holding these ids
+		final long length;
+		final String[] ids;
+		// key + 1 at the slot of the id's hash, 0 for a free slot
+		private final int[] slots;
+		// the last id in the file, which the next one is front coded against
+		final byte[] last;
+		
+		Ids(long epoch, long length, String[] ids, byte[] last) {
+			this.epoch = epoch;
+			this.length = length;
+			this.ids = ids;
+			this.last = last;
+			this.slots = new int[Integer.highestOneBit(Math.max(8, ids.length) * 2 - 1) * 2];
+			for (int key = 0; key < ids.length; key++) {
+				int slot = slot(ids[key]);
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & (slots.length - 1);
+				}
+				slots[slot] = key + 1;
+			}
+		}
+		
+		/**
+		 * @return -1 if the id has no key
+		 */
+		int getKey(String testId) {
+			for (int slot = slot(testId); slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+				int key = slots[slot] - 1;
+				if (ids[key].equals(testId)) {
+					return key;
+				}
+			}
+			return -1;
+		}
+		
+		private int slot(String testId) {
+			int h = testId.hashCode() * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (slots.length - 1);
+		}
+	}
+}
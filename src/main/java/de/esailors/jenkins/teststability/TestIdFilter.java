@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+/**
+ * Bloom filter over the ids of the tests with a history in a build, so that
+ * looking up a test without one, like most tests of a mostly passing job,
+ * neither searches the histories nor the stability index.
+ * <p>
+ * Uses {@value #BITS_PER_ID} bits per id and {@value #HASHES} hash functions
+ * for about 1% false positives. The bit positions are derived from the 64 bit
+ * FNV-1a hash of the id by double hashing.
+ * <p>
+ * Layout: <code>version hashes bitCount bits</code>, the numbers as varints
+ * and the bits as bytes, least significant bit first.
+ * 
+ * @author ckutz
+ */
+final class TestIdFilter {
+	
+	static final int VERSION = 1;
+	
+	static final int BITS_PER_ID = 10;
+	
+	static final int HASHES = 7;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final byte[] data;
+	private final int hashes;
+	private final int bitCount;
+	private final int bitsPosition;
+	
+	TestIdFilter(byte[] data) {
+		CompactFormat.Input in = new CompactFormat.Input(data);
+		int version = in.readUnsigned();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported test id filter version " + version);
+		}
+		this.data = data;
+		this.hashes = in.readUnsigned();
+		this.bitCount = in.readUnsigned();
+		this.bitsPosition = in.position();
+		if (hashes <= 0 || bitCount <= 0 || data.length - bitsPosition != (bitCount + 7) >>> 3) {
+			throw new IllegalArgumentException("Malformed test id filter");
+		}
+	}
+	
+	/**
+	 * Creates the filter of the given ids.
+	 */
+	static TestIdFilter of(Collection<String> ids) {
+		int bitCount = Math.max(64, ids.size() * BITS_PER_ID);
+		byte[] bits = new byte[(bitCount + 7) >>> 3];
+		for (String id : ids) {
+			long hash = hash(id);
+			for (int i = 0; i < HASHES; i++) {
+				int bit = bit(hash, i, bitCount);
+				bits[bit >>> 3] |= 1 << (bit & 7);
+			}
+		}
+		
+		CompactFormat.Output out = new CompactFormat.Output();
+		out.writeUnsigned(VERSION);
+		out.writeUnsigned(HASHES);
+		out.writeUnsigned(bitCount);
+		out.write(bits, 0, bits.length);
+		return new TestIdFilter(out.toByteArray());
+	}
+	
+	/**
+	 * Returns the encoded filter, as passed to the constructor.
+	 */
+	byte[] getData() {
+		return data;
+	}
+	
+	/**
+	 * Returns false if the id is certainly not in the filter.
+	 */
+	boolean mightContain(String id) {
+		long hash = hash(id);
+		for (int i = 0; i < hashes; i++) {
+			int bit = bit(hash, i, bitCount);
+			if ((data[bitsPosition + (bit >>> 3)] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static long hash(String id) {
+		return StabilityIndex.hash(id.getBytes(UTF8));
+	}
+	
+	private static int bit(long hash, int i, int bitCount) {
+		int combined = (int) hash + i * (int) (hash >>> 32);
+		return (combined & Integer.MAX_VALUE) % bitCount;
+	}
+}
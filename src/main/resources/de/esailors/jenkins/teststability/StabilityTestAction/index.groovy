@@ -1 +1 @@
-raw("<img src='${rootURL}${my.smallImagePath}'/> <span>(" + my.description + ")</span>")
\ No newline at end of file
+raw("<img src='${rootURL}${my.smallImagePath}'/> <span>(" + my.description + ")</span> " + my.trendSvg)
\ No newline at end of file
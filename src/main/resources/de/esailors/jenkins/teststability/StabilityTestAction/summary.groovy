@@ -1 +1 @@
-raw("<div><img src='${rootURL}${my.bigImagePath}'/> ${my.description}</div>")
\ No newline at end of file
+raw("<div><img src='${rootURL}${my.bigImagePath}'/> ${my.description}</div><div>${my.trendSvg}</div>")
\ No newline at end of file
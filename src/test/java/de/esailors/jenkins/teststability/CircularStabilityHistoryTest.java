@@ -0,0 +1,248 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.esailors.jenkins.teststability.StabilityTestData.Result;
+
+public class CircularStabilityHistoryTest {
+
+	@Test
+	public void getDataMustReturnEntriesFromOldestToNewest() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(10);
+		ringBuffer.add(1, true);
+		ringBuffer.add(2, false);
+		ringBuffer.add(5, true);
+		
+		Result[] data = ringBuffer.getData();
+		Assert.assertEquals(3, data.length);
+		assertResult(data[0], 1, true);
+		assertResult(data[1], 2, false);
+		assertResult(data[2], 5, true);
+	}
+	
+	@Test
+	public void oldestEntriesMustBeDroppedWhenMaxSizeIsExceeded() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(3);
+		for (int i = 1; i <= 7; i++) {
+			ringBuffer.add(i, i % 2 == 0);
+		}
+		
+		Result[] data = ringBuffer.getData();
+		Assert.assertEquals(3, data.length);
+		assertResult(data[0], 5, false);
+		assertResult(data[1], 6, true);
+		assertResult(data[2], 7, false);
+	}
+	
+	@Test
+	public void historiesLongerThanOneWordMustKeepAllResults() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(100);
+		for (int i = 0; i < 250; i++) {
+			ringBuffer.add(i, i % 3 != 0);
+		}
+		
+		Result[] data = ringBuffer.getData();
+		Assert.assertEquals(100, data.length);
+		for (int i = 0; i < 100; i++) {
+			assertResult(data[i], 150 + i, (150 + i) % 3 != 0);
+		}
+	}
+	
+	@Test
+	public void largeBuildNumberGapsMustBePreserved() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(4);
+		ringBuffer.add(1, true);
+		ringBuffer.add(100000, false);
+		ringBuffer.add(99999, true);
+		ringBuffer.add(200000, true);
+		ringBuffer.add(200001, false);
+		
+		Result[] data = ringBuffer.getData();
+		Assert.assertEquals(4, data.length);
+		assertResult(data[0], 100000, false);
+		assertResult(data[1], 99999, true);
+		assertResult(data[2], 200000, true);
+		assertResult(data[3], 200001, false);
+	}
+	
+	@Test
+	public void isAllPassedMustOnlyConsiderRetainedEntries() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(2);
+		Assert.assertTrue(ringBuffer.isAllPassed());
+		
+		ringBuffer.add(1, false);
+		ringBuffer.add(2, true);
+		Assert.assertFalse(ringBuffer.isAllPassed());
+		
+		ringBuffer.add(3, true);
+		Assert.assertTrue(ringBuffer.isAllPassed());
+	}
+	
+	@Test
+	public void countersMustMatchRetainedEntries() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(7);
+		Random random = new Random(42);
+		
+		for (int i = 0; i < 200; i++) {
+			ringBuffer.add(i, random.nextBoolean());
+			
+			Result[] data = ringBuffer.getData();
+			int failed = 0;
+			int statusChanges = 0;
+			for (int j = 0; j < data.length; j++) {
+				if (!data[j].passed) {
+					failed++;
+				}
+				if (j > 0 && data[j].passed != data[j - 1].passed) {
+					statusChanges++;
+				}
+			}
+			Assert.assertEquals(data.length, ringBuffer.size());
+			Assert.assertEquals(failed, ringBuffer.getFailed());
+			Assert.assertEquals(statusChanges, ringBuffer.getStatusChanges());
+			Assert.assertEquals(failed == 0, ringBuffer.isAllPassed());
+		}
+	}
+	
+	@Test
+	public void addingToCopyMustNotModifyOriginal() {
+		CircularStabilityHistory original = new CircularStabilityHistory(3);
+		original.add(1, true);
+		original.add(2, false);
+		
+		CircularStabilityHistory next = original.copy(3);
+		next.add(3, true);
+		next.add(4, true);
+		// a second copy continuing from the same entry must not see the first copy's entries
+		CircularStabilityHistory sibling = original.copy(3);
+		sibling.add(5, false);
+		
+		Result[] data = original.getData();
+		Assert.assertEquals(2, data.length);
+		assertResult(data[0], 1, true);
+		assertResult(data[1], 2, false);
+		
+		data = next.getData();
+		Assert.assertEquals(3, data.length);
+		assertResult(data[0], 2, false);
+		assertResult(data[1], 3, true);
+		assertResult(data[2], 4, true);
+		Assert.assertEquals(1, next.getFailed());
+		Assert.assertEquals(1, next.getStatusChanges());
+		
+		data = sibling.getData();
+		Assert.assertEquals(3, data.length);
+		assertResult(data[0], 1, true);
+		assertResult(data[1], 2, false);
+		assertResult(data[2], 5, false);
+	}
+	
+	@Test
+	public void chainedCopiesMustKeepTheNewestEntries() {
+		CircularStabilityHistory history = new CircularStabilityHistory(5);
+		for (int i = 1; i <= 40; i++) {
+			history = history.copy(5);
+			history.add(i, i % 4 != 0);
+		}
+		
+		Result[] data = history.getData();
+		Assert.assertEquals(5, data.length);
+		for (int i = 0; i < 5; i++) {
+			assertResult(data[i], 36 + i, (36 + i) % 4 != 0);
+		}
+	}
+	
+	@Test
+	public void copyWithSmallerMaxSizeMustDropOldestEntries() {
+		CircularStabilityHistory original = new CircularStabilityHistory(10);
+		for (int i = 1; i <= 6; i++) {
+			original.add(i, i > 3);
+		}
+		
+		CircularStabilityHistory copy = original.copy(2);
+		Assert.assertEquals(2, copy.getMaxSize());
+		Assert.assertTrue(copy.isAllPassed());
+		Assert.assertEquals(0, copy.getStatusChanges());
+		Result[] data = copy.getData();
+		Assert.assertEquals(2, data.length);
+		assertResult(data[0], 5, true);
+		assertResult(data[1], 6, true);
+	}
+	
+	@Test
+	public void weightedRatesMustRememberFailuresBeyondTheRetainedEntries() {
+		CircularStabilityHistory history = new CircularStabilityHistory(2);
+		history.trackEwma(0.5f);
+		history.add(1, false);
+		Assert.assertEquals(1f, history.getFailureRate(), 1e-6);
+		history.add(2, true);
+		history.add(3, true);
+		
+		Assert.assertTrue(history.isAllPassed());
+		Assert.assertEquals(0.25f, history.getFailureRate(), 1e-6);
+		// the change at build 2, then none at build 3
+		Assert.assertEquals(0.25f, history.getChangeRate(), 1e-6);
+	}
+	
+	@Test
+	public void weightedHistoryMustBeKeptUntilTheRatesDecayed() {
+		CircularStabilityHistory history = new CircularStabilityHistory(4);
+		history.trackEwma(0.5f);
+		history.add(1, false);
+		for (int buildNumber = 2; buildNumber <= 5; buildNumber++) {
+			history.add(buildNumber, true);
+		}
+		// only the last result is retained, which passed
+		Assert.assertEquals(1, history.size());
+		Assert.assertTrue(history.isAllPassed());
+		Assert.assertFalse(history.isClean());
+		
+		for (int buildNumber = 6; buildNumber <= 10; buildNumber++) {
+			history.add(buildNumber, true);
+		}
+		Assert.assertTrue(history.getFailureRate() < CircularStabilityHistory.EWMA_EPSILON);
+		Assert.assertTrue(history.isClean());
+	}
+	
+	@Test
+	public void weightedRatesMustStartFromTheRetainedEntries() {
+		CircularStabilityHistory history = new CircularStabilityHistory(10);
+		history.add(1, true);
+		history.add(2, false);
+		history.add(3, true);
+		history.add(4, true);
+		Assert.assertFalse(history.isEwma());
+		
+		history.trackEwma(0.1f);
+		Assert.assertTrue(history.isEwma());
+		Assert.assertEquals(0.25f, history.getFailureRate(), 1e-6);
+		Assert.assertEquals(2f / 3, history.getChangeRate(), 1e-6);
+		Assert.assertEquals(1, history.getMaxSize());
+		assertResult(history.getData()[0], 4, true);
+		
+		CircularStabilityHistory copy = history.copy(10);
+		Assert.assertEquals(1, copy.getMaxSize());
+		copy.add(5, false);
+		Assert.assertEquals(0.25f + 0.1f * 0.75f, copy.getFailureRate(), 1e-6);
+		Assert.assertEquals(0.25f, history.getFailureRate(), 1e-6);
+		
+		copy.trackEwma(0f);
+		Assert.assertFalse(copy.isEwma());
+	}
+	
+	@Test(expected = UnsupportedOperationException.class)
+	public void readOnlyViewMustNotBeModifiable() {
+		CircularStabilityHistory history = new CircularStabilityHistory(10);
+		history.add(1, true);
+		
+		history.asReadOnly().add(2, false);
+	}
+	
+	private static void assertResult(Result result, int buildNumber, boolean passed) {
+		Assert.assertEquals(buildNumber, result.buildNumber);
+		Assert.assertEquals(passed, result.passed);
+	}
+}
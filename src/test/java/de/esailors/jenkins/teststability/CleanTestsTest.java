@@ -0,0 +1,164 @@
+package de.esailors.jenkins.teststability;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CleanTestsTest {
+
+	@Test
+	public void cleanTestsMustBeFoundByKey() {
+		CleanTests.Builder builder = new CleanTests.Builder(new int[] { 3, 5, 6, 7 });
+		builder.add(7, 5);
+		builder.add(2, 5);
+		builder.add(3, 5);
+		builder.add(4, 6);
+		builder.add(10, 7);
+		CleanTests clean = new CleanTests(builder.build(42L).getData());
+
+		Assert.assertEquals(42L, clean.getEpoch());
+		Assert.assertArrayEquals(new int[] { 3, 5, 6, 7 }, clean.getRecentBuilds());
+		Assert.assertEquals(5, clean.size());
+		Assert.assertEquals(5, clean.getCleanSince(2));
+		Assert.assertEquals(5, clean.getCleanSince(3));
+		Assert.assertEquals(6, clean.getCleanSince(4));
+		Assert.assertEquals(5, clean.getCleanSince(7));
+		Assert.assertEquals(7, clean.getCleanSince(10));
+		Assert.assertEquals(-1, clean.getCleanSince(0));
+		Assert.assertEquals(-1, clean.getCleanSince(5));
+		Assert.assertEquals(-1, clean.getCleanSince(11));
+	}
+
+	@Test
+	public void carriedKeysMustKeepTheirPreviousSentinels() {
+		CleanTests.Builder previousBuilder = new CleanTests.Builder(new int[] { 3, 5, 6 });
+		previousBuilder.add(2, 5);
+		previousBuilder.add(3, 5);
+		previousBuilder.add(4, 6);
+		previousBuilder.add(10, 3);
+		CleanTests previous = previousBuilder.build(42L);
+
+		CleanTests.Builder builder = new CleanTests.Builder(new int[] { 3, 5, 6, 7 });
+		// 3 was dropped, 7 and 11 weren't clean before
+		builder.addCarried(previous, new int[] { 2, 4, 7, 10, 11 }, 7);
+		CleanTests clean = builder.build(42L);
+
+		Assert.assertEquals(5, clean.size());
+		Assert.assertEquals(5, clean.getCleanSince(2));
+		Assert.assertEquals(-1, clean.getCleanSince(3));
+		Assert.assertEquals(6, clean.getCleanSince(4));
+		Assert.assertEquals(7, clean.getCleanSince(7));
+		Assert.assertEquals(3, clean.getCleanSince(10));
+		Assert.assertEquals(7, clean.getCleanSince(11));
+	}
+
+	@Test
+	public void sentinelsOlderThanTheRecentBuildsMustBeShared() {
+		CleanTests.Builder builder = new CleanTests.Builder(new int[] { 10, 11, 12 });
+		builder.add(0, 1);
+		builder.add(1, 9);
+		builder.add(2, 10);
+		CleanTests clean = builder.build(0L);
+
+		Assert.assertEquals(10, clean.getCleanSince(0));
+		Assert.assertEquals(10, clean.getCleanSince(1));
+		Assert.assertEquals(10, clean.getCleanSince(2));
+	}
+
+	@Test
+	public void resizingMustKeepOnlyTheLastRecentBuilds() {
+		CleanTests.Builder builder = new CleanTests.Builder(new int[] { 3, 5, 6, 7 });
+		builder.add(0, 3);
+		builder.add(1, 5);
+		builder.add(2, 6);
+		builder.add(4, 7);
+		CleanTests clean = builder.build(42L);
+
+		Assert.assertSame(clean, clean.resize(4));
+		CleanTests resized = clean.resize(2);
+		Assert.assertEquals(42L, resized.getEpoch());
+		Assert.assertArrayEquals(new int[] { 6, 7 }, resized.getRecentBuilds());
+		Assert.assertEquals(4, resized.size());
+		Assert.assertEquals(6, resized.getCleanSince(0));
+		Assert.assertEquals(6, resized.getCleanSince(1));
+		Assert.assertEquals(6, resized.getCleanSince(2));
+		Assert.assertEquals(7, resized.getCleanSince(4));
+		Assert.assertEquals(-1, resized.getCleanSince(3));
+	}
+
+	@Test
+	public void consecutiveKeysMustBeStoredAsOneRun() {
+		CleanTests.Builder few = new CleanTests.Builder(new int[] { 1 });
+		few.add(0, 1);
+		CleanTests.Builder many = new CleanTests.Builder(new int[] { 1 });
+		for (int key = 0; key < 10000; key++) {
+			many.add(key, 1);
+		}
+
+		CleanTests clean = many.build(0L);
+		// only the length of the run takes another byte
+		Assert.assertEquals(few.build(0L).getData().length + 1, clean.getData().length);
+		Assert.assertEquals(10000, clean.size());
+		Assert.assertEquals(1, clean.getCleanSince(9999));
+	}
+
+	@Test
+	public void restoredHistoryMustPassSinceTheSentinel() {
+		CleanTests.Builder builder = new CleanTests.Builder(new int[] { 3, 5, 6, 7 });
+		builder.add(0, 5);
+		CleanTests clean = builder.build(0L);
+
+		CircularStabilityHistory history = clean.restoreHistory(clean.getCleanSince(0), 2);
+		history.add(8, false);
+		Assert.assertEquals(2, history.size());
+		Assert.assertEquals(7, history.getData()[0].buildNumber);
+		Assert.assertTrue(history.getData()[0].passed);
+		Assert.assertEquals(1, history.getFailed());
+
+		history = clean.restoreHistory(clean.getCleanSince(0), 10);
+		Assert.assertEquals(3, history.size());
+		Assert.assertTrue(history.isAllPassed());
+	}
+
+	@Test
+	public void cleanTestsMustBeVisitedWithTheirIds() throws IOException {
+		File jobDir = File.createTempFile("stability", "job");
+		Assert.assertTrue(jobDir.delete());
+		Assert.assertTrue(jobDir.mkdir());
+		File file = new File(jobDir, TestIdDictionary.FILE_NAME);
+		try {
+			TestIdDictionary dictionary = new TestIdDictionary(file);
+			int[] keys = dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest/testA", "junit/foo/BarTest/testB"));
+			CleanTests.Builder builder = new CleanTests.Builder(new int[] { 1, 2 });
+			builder.add(keys[0], 1);
+			builder.add(keys[1], 2);
+			CleanTests clean = builder.build(dictionary.getEpoch());
+
+			final List<String> ids = new ArrayList<String>();
+			final List<Integer> sizes = new ArrayList<Integer>();
+			clean.visit(dictionary, new StabilityTestData.HistoryVisitor() {
+				@Override
+				public boolean visit(String testId, CircularStabilityHistory history) {
+					ids.add(testId);
+					sizes.add(history.size());
+					return false;
+				}
+			});
+			Assert.assertEquals(Arrays.asList("junit/foo/BarTest/testA"), ids);
+			Assert.assertEquals(Arrays.asList(2), sizes);
+		} finally {
+			file.delete();
+			jobDir.delete();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownVersionMustBeRejected() {
+		new CleanTests(new byte[] { 9 });
+	}
+}
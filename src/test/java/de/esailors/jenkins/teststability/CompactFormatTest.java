@@ -0,0 +1,121 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.esailors.jenkins.teststability.StabilityTestData.Result;
+
+public class CompactFormatTest {
+
+	@Test
+	public void readerMustFindEveryHistory() {
+		Random random = new Random(42);
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		for (int c = 0; c < 20; c++) {
+			for (int m = 0; m < c % 7; m++) {
+				CircularStabilityHistory history = new CircularStabilityHistory(30);
+				int buildNumber = random.nextInt(100);
+				for (int i = random.nextInt(40); i > 0; i--) {
+					buildNumber += 1 + random.nextInt(3);
+					history.add(buildNumber, random.nextInt(4) != 0);
+				}
+				histories.put("junit/foo/Test" + c + "/test" + m, history);
+			}
+			histories.put("junit/foo/Test" + c, new CircularStabilityHistory(30));
+		}
+
+		CompactFormat.Reader reader = new CompactFormat.Reader(CompactFormat.encode(histories));
+
+		for (Map.Entry<String, CircularStabilityHistory> entry : histories.entrySet()) {
+			assertSameHistory(entry.getValue(), reader.get(entry.getKey()));
+		}
+		Assert.assertNull(reader.get("junit/foo/Test3/test9"));
+		Assert.assertNull(reader.get("junit/foo/Test"));
+		Assert.assertNull(reader.get("junit/zzz"));
+		Assert.assertNull(reader.get(""));
+	}
+
+	@Test
+	public void keyedReaderMustFindEveryHistory() {
+		SortedMap<Integer, CircularStabilityHistory> histories = new TreeMap<Integer, CircularStabilityHistory>();
+		for (int key = 3; key < 500; key += 1 + key % 5) {
+			CircularStabilityHistory history = new CircularStabilityHistory(10);
+			for (int i = 0; i < key % 13; i++) {
+				history.add(i * 2, (i + key) % 3 != 0);
+			}
+			histories.put(key, history);
+		}
+
+		CompactFormat.Reader reader = new CompactFormat.Reader(CompactFormat.encode(-42L, histories));
+
+		Assert.assertTrue(reader.isKeyed());
+		Assert.assertEquals(-42L, reader.getEpoch());
+		for (int key = 0; key < 510; key++) {
+			if (histories.containsKey(key)) {
+				assertSameHistory(histories.get(key), reader.get(key));
+			} else {
+				Assert.assertNull(reader.get(key));
+			}
+		}
+		Assert.assertNull(reader.get("junit/foo/Test"));
+	}
+
+	@Test
+	public void weightedRatesMustBeReadBack() {
+		SortedMap<Integer, CircularStabilityHistory> histories = new TreeMap<Integer, CircularStabilityHistory>();
+		for (int key = 0; key < 40; key++) {
+			CircularStabilityHistory history = new CircularStabilityHistory(5);
+			// every other history without rates, like the rollups
+			if (key % 2 == 0) {
+				history.trackEwma(0.1f);
+			}
+			for (int i = 0; i < key; i++) {
+				history.add(i, (i + key) % 4 != 0);
+			}
+			histories.put(key, history);
+		}
+
+		CompactFormat.Reader reader = new CompactFormat.Reader(CompactFormat.encode(7L, 0.1f, histories));
+
+		for (Map.Entry<Integer, CircularStabilityHistory> entry : histories.entrySet()) {
+			CircularStabilityHistory expected = entry.getValue();
+			CircularStabilityHistory actual = reader.get(entry.getKey());
+			assertSameHistory(expected, actual);
+			Assert.assertEquals(expected.isEwma(), actual.isEwma());
+			Assert.assertEquals(expected.getFailureRate(), actual.getFailureRate(), 1e-4);
+			Assert.assertEquals(expected.getChangeRate(), actual.getChangeRate(), 1e-4);
+		}
+	}
+
+	@Test
+	public void emptyPayloadMustBeReadable() {
+		CompactFormat.Reader reader = new CompactFormat.Reader(
+				CompactFormat.encode(new HashMap<String, CircularStabilityHistory>()));
+		Assert.assertNull(reader.get("junit/foo/Test"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownVersionMustBeRejected() {
+		new CompactFormat.Reader(new byte[] { 99, 0 });
+	}
+
+	private static void assertSameHistory(CircularStabilityHistory expected, CircularStabilityHistory actual) {
+		Assert.assertNotNull(actual);
+		Assert.assertEquals(expected.getMaxSize(), actual.getMaxSize());
+		Assert.assertEquals(expected.getFailed(), actual.getFailed());
+		Assert.assertEquals(expected.getStatusChanges(), actual.getStatusChanges());
+		Result[] expectedData = expected.getData();
+		Result[] actualData = actual.getData();
+		Assert.assertEquals(expectedData.length, actualData.length);
+		for (int i = 0; i < expectedData.length; i++) {
+			Assert.assertEquals(expectedData[i].buildNumber, actualData[i].buildNumber);
+			Assert.assertEquals(expectedData[i].passed, actualData[i].passed);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FlakinessRankingTest {
+
+	@Test
+	public void topFlakyMustBeOrderedAndBounded() {
+		FlakinessRanking.Builder builder = new FlakinessRanking.Builder(3);
+		// changes status every 1, 2, ... 5 builds
+		for (int period = 1; period <= 5; period++) {
+			builder.add("junit/foo/FooTest/period" + period, history(period, 0, 20));
+		}
+		FlakinessRanking ranking = builder.build();
+
+		List<FlakinessRanking.Entry> top = ranking.getTopFlaky(10);
+		Assert.assertEquals(3, top.size());
+		Assert.assertEquals("junit/foo/FooTest/period1", top.get(0).getId());
+		Assert.assertEquals("junit/foo/FooTest/period2", top.get(1).getId());
+		Assert.assertEquals("junit/foo/FooTest/period3", top.get(2).getId());
+		Assert.assertEquals(100, top.get(0).getFlakiness());
+		Assert.assertEquals(1, ranking.getTopFlaky(1).size());
+		Assert.assertTrue(ranking.isTruncated());
+		Assert.assertEquals("foo/FooTest/period1", top.get(0).getUrl());
+	}
+
+	@Test
+	public void belowStabilityMustIncludeConsistentFailures() {
+		FlakinessRanking.Builder builder = new FlakinessRanking.Builder();
+		builder.add("junit/foo/FooTest/alwaysFailing", history(1000, 0, 10));
+		builder.add("junit/foo/FooTest/flaky", history(2, 0, 10));
+		builder.add("junit/foo/FooTest/failedOnce", history(1000, 2, 10));
+		FlakinessRanking ranking = builder.build();
+
+		List<FlakinessRanking.Entry> below = ranking.getBelowStability(60);
+		Assert.assertEquals(2, below.size());
+		Assert.assertEquals("junit/foo/FooTest/alwaysFailing", below.get(0).getId());
+		Assert.assertEquals(0, below.get(0).getStability());
+		Assert.assertEquals(0, below.get(0).getFlakiness());
+		Assert.assertEquals("junit/foo/FooTest/flaky", below.get(1).getId());
+		Assert.assertEquals(3, ranking.getBelowStability(100).size());
+		Assert.assertEquals(0, ranking.getBelowStability(0).size());
+		Assert.assertFalse(ranking.isTruncated());
+	}
+
+	@Test
+	public void mergedRankingsMustKeepTheBestEntries() {
+		FlakinessRanking.Builder first = new FlakinessRanking.Builder(2);
+		first.add("junit/foo/FooTest/period1", history(1, 0, 20));
+		first.add("junit/foo/FooTest/period4", history(4, 0, 20));
+
+		FlakinessRanking.Builder second = new FlakinessRanking.Builder(2);
+		second.add("junit/foo/BarTest/period2", history(2, 0, 20));
+		second.addAll(first.build());
+
+		List<FlakinessRanking.Entry> top = second.build().getTopFlaky(2);
+		Assert.assertEquals("junit/foo/FooTest/period1", top.get(0).getId());
+		Assert.assertEquals("junit/foo/BarTest/period2", top.get(1).getId());
+	}
+
+	/**
+	 * Builds 1 to <code>builds</code>, failing in blocks of <code>period</code> builds,
+	 * but passing from build <code>passingFrom</code> (if not 0).
+	 */
+	private static CircularStabilityHistory history(int period, int passingFrom, int builds) {
+		CircularStabilityHistory history = new CircularStabilityHistory(30);
+		for (int b = 1; b <= builds; b++) {
+			boolean passed = passingFrom > 0 ? b >= passingFrom : ((b - 1) / period) % 2 == 1;
+			history.add(b, passed);
+		}
+		return history;
+	}
+}
@@ -1,20 +1,37 @@
 package de.esailors.jenkins.teststability;
 
+import hudson.Launcher;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.ClassResult;
 import hudson.tasks.junit.JUnitResultArchiver;
 import hudson.tasks.junit.TestDataPublisher;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
+import hudson.tasks.junit.TestResultAction.Data;
 import hudson.util.DescribableList;
+import jenkins.model.Jenkins;
 import org.jvnet.hudson.test.ExtractResourceSCM;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.junit.Test;
 import org.junit.Rule;
+import org.jvnet.hudson.test.TestBuilder;
 import org.jvnet.hudson.test.TouchBuilder;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import static de.esailors.jenkins.teststability.Helper.expectConsistentMixedResults;
 import static de.esailors.jenkins.teststability.Helper.expectMixedResultsAfterSuccess;
 import static de.esailors.jenkins.teststability.Helper.expectSuccessAfter2MixedResults;
@@ -76,12 +93,224 @@ public class FreestyleTest {
         expectMixedResultsAfterSuccess(testResult(build2));
     }
 
+    @Test
+    public void cleanTestsAreRestoredWithoutBackfill() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        FreeStyleBuild build1 = runBuild(project, "workspaceAllPass.zip", Result.SUCCESS, true);
+        StabilityRecordingAction metrics1 = build1.getAction(StabilityRecordingAction.class);
+        assertThat(metrics1.getRecordedHistories()).isZero();
+        assertThat(metrics1.getCleanTests()).isEqualTo(metrics1.getTrackedTests());
+        // no failures and no previous histories
+        assertThat(metrics1.getPrunedClasses()).isGreaterThan(0);
+
+        // the same history as backfilling from an unpublished build 1
+        FreeStyleBuild build2 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        expectMixedResultsAfterSuccess(testResult(build2));
+        StabilityRecordingAction metrics2 = build2.getAction(StabilityRecordingAction.class);
+        assertThat(metrics2.getBackfilledTests()).isZero();
+        assertThat(metrics2.getResumedClean()).isEqualTo(metrics2.getRecordedHistories());
+    }
+
+    @Test
+    public void packagesAndSuiteAreRolledUp() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        runBuild(project, "workspaceAllPass.zip", Result.SUCCESS, true);
+        FreeStyleBuild build2 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+
+        // 1 success followed by 1 failure of some of the cases
+        TestResult result = testResult(build2).getResult();
+        StabilityTestAction suite = result.getTestAction(StabilityTestAction.class);
+        assertThat(suite.getStability()).isEqualTo(50);
+        assertThat(suite.getFlakiness()).isEqualTo(100);
+        StabilityTestAction pkg = result.byPackage("test.foo.bar").getTestAction(StabilityTestAction.class);
+        assertThat(pkg.getStability()).isEqualTo(50);
+        assertThat(pkg.getFlakiness()).isEqualTo(100);
+    }
+
+    @Test
+    public void parallelRecordingMatchesSequentialRecording() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        runBuild(project, "workspaceManyPackages.zip", Result.UNSTABLE, false);
+        // all failures are new and get backfilled from build 1
+        FreeStyleBuild build2 = runBuild(project, "workspaceManyPackages.zip", Result.UNSTABLE, true);
+        assertSameRecording(build2);
+
+        // failures with a previous history, some tests changing their result
+        FreeStyleBuild build3 = runBuild(project, "workspaceManyPackagesFlaky.zip", Result.UNSTABLE, true);
+        assertSameRecording(build3);
+    }
+
+    @Test
+    public void recordingMetricsAreAttachedToTheBuild() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        FreeStyleBuild build1 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        StabilityRecordingAction metrics1 = build1.getAction(StabilityRecordingAction.class);
+        assertThat(metrics1).isNotNull();
+        assertThat(metrics1.getTrackedTests()).isGreaterThan(0);
+        assertThat(metrics1.getRecordedHistories()).isGreaterThan(0);
+        assertThat(metrics1.getSerializedSize()).isGreaterThan(0);
+
+        FreeStyleBuild build2 = runBuild(project, "workspaceAllPass.zip", Result.SUCCESS, true);
+        StabilityRecordingAction metrics2 = build2.getAction(StabilityRecordingAction.class);
+        assertThat(metrics2.getTrackedTests()).isEqualTo(metrics1.getTrackedTests());
+        // the classes failing in build 1 still have their histories looked up
+        assertThat(metrics2.getPrunedClasses()).isGreaterThan(0);
+        assertThat(metrics2.getRecordedHistories()).isEqualTo(metrics1.getRecordedHistories());
+        assertThat(StabilityRecordingStats.INSTANCE.getRecordings()).isGreaterThanOrEqualTo(2);
+        assertThat(StabilityRecordingStats.INSTANCE.getSlowestJobs()).isNotEmpty();
+    }
+
+    @Test
+    public void flakyTestsAreRankedForTheJob() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        FreeStyleBuild build2 = runBuild(project, "workspaceAllPass.zip", Result.SUCCESS, true);
+
+        FlakyTestsAction action = project.getAction(FlakyTestsAction.class);
+        assertThat(action).isNotNull();
+        assertThat(action.getBuild()).isEqualTo(build2);
+        // the tests failing in build 1 passed in build 2
+        assertThat(action.getTopFlaky(10)).isNotEmpty();
+        assertThat(action.getTopFlaky(10).get(0).getFlakiness()).isEqualTo(100);
+        assertThat(action.getBelowStability(100)).hasSameSizeAs(action.getTopFlaky(10));
+
+        j.createWebClient().getPage(project, action.getUrlName());
+    }
+
+    @Test
+    public void historiesAreMigratedToANewLength() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        runBuild(project, "workspaceAllPass.zip", Result.SUCCESS, true);
+        FreeStyleBuild build3 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        ClassResult classResult = getClassResult(testResult(build3), "test.foo.bar", "ProjectSettingsTest");
+        assertThat(classResult.getTestAction(StabilityTestAction.class).getRingBuffer().size()).isEqualTo(3);
+
+        HistoryMigration migration = HistoryMigration.start(2);
+        assertThat(migration.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(migration.getMigratedJobs()).isEqualTo(migration.getTotalJobs());
+        // only the newest build, which the next build continues
+        assertThat(migration.getRewrittenBuilds()).isEqualTo(1);
+        assertThat(migration.getFailedBuilds()).isZero();
+
+        CircularStabilityHistory history = classResult.getTestAction(StabilityTestAction.class).getRingBuffer();
+        assertThat(history.getMaxSize()).isEqualTo(2);
+        assertThat(history.size()).isEqualTo(2);
+        assertThat(history.getFailed()).isEqualTo(1);
+
+        // nothing left to rewrite
+        HistoryMigration again = HistoryMigration.start(2);
+        assertThat(again.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(again.getRewrittenBuilds()).isZero();
+
+        // growing keeps the histories, they grow with the next builds
+        HistoryMigration grown = HistoryMigration.start(5);
+        assertThat(grown.await(1, TimeUnit.MINUTES)).isTrue();
+        assertThat(grown.getRewrittenBuilds()).isZero();
+        assertThat(classResult.getTestAction(StabilityTestAction.class).getRingBuffer().getMaxSize()).isEqualTo(2);
+    }
+
+    @Test
+    public void asyncRecordingIsSavedOnceComputed() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        StabilityTestDataPublisher publisher = new StabilityTestDataPublisher();
+        publisher.setAsync(true);
+
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, publisher);
+        FreeStyleBuild build2 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, publisher);
+        TestResultAction action = testResult(build2);
+        StabilityTestData data = StabilityTestData.get(action, action.getResult());
+        assertThat(data.awaitComputed(1, TimeUnit.MINUTES)).isTrue();
+
+        expectConsistentMixedResults(action);
+        assertThat(new XmlFile(new File(build2.getRootDir(), "build.xml")).asString()).contains("<histories>");
+    }
+
+    @Test
+    public void overlappingBuildsAreRecordedInBuildOrder() throws Exception {
+        j.jenkins.setNumExecutors(8);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setConcurrentBuild(true);
+        project.setScm(new ExtractResourceSCM(getClass().getResource("workspaceMixedResults.zip")));
+        // later builds are often faster, so they record before the earlier ones
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+                Thread.sleep(150 * (3 - build.getNumber() % 4));
+                return true;
+            }
+        });
+        project.getBuildersList().add(new TouchBuilder());
+        DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers =
+                new DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>>(project);
+        publishers.add(new StabilityTestDataPublisher());
+        JUnitResultArchiver archiver = new JUnitResultArchiver("*.xml");
+        archiver.setTestDataPublishers(publishers);
+        project.getPublishersList().add(archiver);
+
+        List<QueueTaskFuture<FreeStyleBuild>> scheduled = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        for (int i = 0; i < 16; i++) {
+            QueueTaskFuture<FreeStyleBuild> build = project.scheduleBuild2(0);
+            // else the queue merges it with the next one
+            build.waitForStart();
+            scheduled.add(build);
+        }
+        List<Integer> buildNumbers = new ArrayList<Integer>();
+        for (QueueTaskFuture<FreeStyleBuild> build : scheduled) {
+            j.assertBuildStatus(Result.UNSTABLE, build.get());
+            buildNumbers.add(build.get().getNumber());
+        }
+        // one more after all of them, which continues the last one
+        FreeStyleBuild last = project.scheduleBuild2(0).get();
+        buildNumbers.add(last.getNumber());
+
+        ClassResult classResult = getClassResult(testResult(last), "test.foo.bar", "ProjectSettingsTest");
+        CaseResult failing = null;
+        for (CaseResult caseResult : classResult.getChildren()) {
+            if (caseResult.isFailed()) {
+                failing = caseResult;
+            }
+        }
+        assertThat(failing).isNotNull();
+        List<Integer> recorded = new ArrayList<Integer>();
+        for (StabilityTestData.Result result : failing.getTestAction(StabilityTestAction.class).getRingBuffer().getData()) {
+            recorded.add(result.buildNumber);
+        }
+        // every build exactly once and in order, no matter which recorded first
+        assertThat(recorded).isEqualTo(buildNumbers);
+    }
+
+    private void assertSameRecording(FreeStyleBuild build) throws Exception {
+        TestResult result = testResult(build).getResult();
+        assertThat(result.getChildren().size()).isGreaterThan(1);
+
+        StabilityTestDataPublisher sequential = new StabilityTestDataPublisher();
+        StabilityTestDataPublisher parallel = new StabilityTestDataPublisher();
+        parallel.setParallel(true);
+
+        Data expected = sequential.contributeTestData(build, build.getWorkspace(), j.createLocalLauncher(), TaskListener.NULL, result);
+        Data actual = parallel.contributeTestData(build, build.getWorkspace(), j.createLocalLauncher(), TaskListener.NULL, result);
+        // histories are written sorted by test id
+        assertThat(Jenkins.XSTREAM2.toXML(actual)).isEqualTo(Jenkins.XSTREAM2.toXML(expected));
+    }
+
     // Runs a dummy build with the given workspace zip file and returns the FreeStyleBuild (Run)
     private FreeStyleBuild runBuild(FreeStyleProject project, String workspaceZip, Result expectedStatus, boolean addPublisher) throws Exception {
+        return runBuild(project, workspaceZip, expectedStatus, addPublisher ? new StabilityTestDataPublisher() : null);
+    }
+
+    private FreeStyleBuild runBuild(FreeStyleProject project, String workspaceZip, Result expectedStatus,
+            StabilityTestDataPublisher publisher) throws Exception {
         DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers =
                 new DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>>(project);
-        if (addPublisher) {
-            publishers.add(new StabilityTestDataPublisher());
+        if (publisher != null) {
+            publishers.add(publisher);
         }
 
         project.setScm(new ExtractResourceSCM(getClass().getResource(workspaceZip)));
@@ -4,6 +4,7 @@ import hudson.FilePath;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.tasks.junit.ClassResult;
+import hudson.tasks.junit.TestResultAction;
 import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
@@ -61,6 +62,29 @@ public class PipelineTest {
         expectSuccessAfter2MixedResults(testResult(build5));
     }
 
+    @Test
+    public void junitStepsAreMergedIntoOneRecording() throws Exception {
+        WorkflowJob project = j.jenkins.createProject(WorkflowJob.class, "test-job");
+
+        runBuild(project, "workspaceMixedResults.zip", "pipelineWithTwoJunitSteps.groovy", Result.UNSTABLE);
+        WorkflowRun build2 = runBuild(project, "workspaceMixedResults.zip", "pipelineWithTwoJunitSteps.groovy", Result.UNSTABLE);
+
+        // the first step's tests keep their histories after the second step
+        TestResultAction action = testResult(build2);
+        expectConsistentMixedResults(action);
+
+        ClassResult more = getClassResult(action, "test.foo.baz", "MoreTest");
+        StabilityTestAction moreStability = more.getTestAction(StabilityTestAction.class);
+        assertThat(moreStability).isNotNull();
+        assertThat(moreStability.getStability()).isEqualTo(0);
+        StabilityTestAction fails = more.getCaseResult("fails").getTestAction(StabilityTestAction.class);
+        assertThat(fails.getRingBuffer().size()).isEqualTo(2);
+
+        // the second step only recorded its own package
+        StabilityRecordingAction metrics = build2.getAction(StabilityRecordingAction.class);
+        assertThat(metrics.getMergedPackages()).isEqualTo(1);
+    }
+
     // Creates a job from the given workspace zip file, builds it and returns the WorkflowRun
     private WorkflowRun runBuild(WorkflowJob project, String workspaceZip, String pipelineFile, Result expectedStatus) throws Exception {
         FilePath workspace = j.jenkins.getWorkspaceFor(project);
@@ -0,0 +1,81 @@
+package de.esailors.jenkins.teststability;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StabilityExportActionTest {
+
+	@Test
+	public void allTestsMustBeWritten() throws IOException {
+		Assert.assertEquals("{\"build\":3,\"offset\":0,\"limit\":10,\"tests\":["
+				+ "{\"id\":\"junit/foo/BarTest/flaky\",\"stability\":66,\"flakiness\":100,\"failed\":1,\"runs\":3,\"builds\":[1,2,3],\"passed\":\"101\"},"
+				+ "{\"id\":\"junit/foo/BarTest/stable\",\"stability\":100,\"flakiness\":0,\"failed\":0,\"runs\":3,\"builds\":[1,2,3],\"passed\":\"111\"},"
+				+ "{\"id\":\"junit/foo/BazTest/\\\"broken\\\"\",\"stability\":0,\"flakiness\":0,\"failed\":2,\"runs\":2,\"builds\":[2,3],\"passed\":\"00\"}"
+				+ "],\"more\":false}",
+				write(inline(), new StabilityExportAction.Filter(0, 10, 0, 100, null)));
+	}
+
+	@Test
+	public void encodedHistoriesMustBeWrittenLikeInlineOnes() throws IOException {
+		StabilityExportAction.Filter filter = new StabilityExportAction.Filter(0, 10, 0, 100, null);
+		StabilityTestData encoded = new StabilityTestData(new HashMap<String, CircularStabilityHistory>(),
+				new CompactFormat.Reader(CompactFormat.encode(histories())), null, null, null);
+		Assert.assertEquals(write(inline(), filter), write(encoded, filter));
+	}
+
+	@Test
+	public void filtersMustApplyBeforePaging() throws IOException {
+		String json = write(inline(), new StabilityExportAction.Filter(0, 1, 0, 90, null));
+		Assert.assertTrue(json, json.contains("BarTest/flaky"));
+		Assert.assertTrue(json, json.endsWith("],\"more\":true}"));
+
+		json = write(inline(), new StabilityExportAction.Filter(1, 1, 0, 90, null));
+		Assert.assertTrue(json, json.contains("BazTest"));
+		Assert.assertTrue(json, json.endsWith("],\"more\":false}"));
+
+		json = write(inline(), new StabilityExportAction.Filter(0, 10, 50, 100, "junit/foo/Bar"));
+		Assert.assertTrue(json, json.contains("BarTest/flaky"));
+		Assert.assertFalse(json, json.contains("BarTest/stable"));
+	}
+
+	@Test
+	public void cleanTestsMustOnlyBeVisitedIfTheyCanMatch() {
+		Assert.assertTrue(new StabilityExportAction.Filter(0, 10, 0, 100, null).acceptsClean());
+		Assert.assertFalse(new StabilityExportAction.Filter(0, 10, 1, 100, null).acceptsClean());
+		Assert.assertFalse(new StabilityExportAction.Filter(0, 10, 0, 99, null).acceptsClean());
+	}
+
+	private static String write(StabilityTestData data, StabilityExportAction.Filter filter) throws IOException {
+		StringWriter writer = new StringWriter();
+		StabilityExportAction.write(data, 3, filter, writer);
+		return writer.toString();
+	}
+
+	private static StabilityTestData inline() {
+		return new StabilityTestData(histories());
+	}
+
+	private static Map<String, CircularStabilityHistory> histories() {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		CircularStabilityHistory flaky = new CircularStabilityHistory(10);
+		flaky.add(1, true);
+		flaky.add(2, false);
+		flaky.add(3, true);
+		histories.put("junit/foo/BarTest/flaky", flaky);
+		CircularStabilityHistory stable = new CircularStabilityHistory(10);
+		stable.add(1, true);
+		stable.add(2, true);
+		stable.add(3, true);
+		histories.put("junit/foo/BarTest/stable", stable);
+		CircularStabilityHistory broken = new CircularStabilityHistory(10);
+		broken.add(2, false);
+		broken.add(3, false);
+		histories.put("junit/foo/BazTest/\"broken\"", broken);
+		return histories;
+	}
+}
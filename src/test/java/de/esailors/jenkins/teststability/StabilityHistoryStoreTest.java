@@ -0,0 +1,153 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StabilityHistoryStoreTest {
+
+	private static final String ID = "junit/foo/BarTest/testA";
+
+	@Test
+	public void laterBuildMustBeRecordedAgainAfterAnEarlierOne() {
+		StabilityHistoryStore store = new StabilityHistoryStore();
+		AtomicInteger recordedAgain = new AtomicInteger();
+
+		StabilityTestData second = store.record(2, new ChainRecorder(2, null, recordedAgain), null);
+		assertBuilds(second, 2);
+
+		StabilityTestData first = store.record(1, new ChainRecorder(1, null, recordedAgain), null);
+		assertBuilds(first, 1);
+		// completed in place
+		assertBuilds(second, 1, 2);
+		Assert.assertEquals(1, recordedAgain.get());
+
+		assertBuilds(store.record(3, new ChainRecorder(3, null, recordedAgain), null), 1, 2, 3);
+		Assert.assertEquals(1, recordedAgain.get());
+	}
+
+	@Test
+	public void targetMustBeCompletedAndRecordedAgain() {
+		StabilityHistoryStore store = new StabilityHistoryStore();
+		AtomicInteger recordedAgain = new AtomicInteger();
+		StabilityTestData placeholder = new StabilityTestData(
+				Collections.<String,CircularStabilityHistory>emptyMap());
+
+		Assert.assertSame(placeholder, store.record(2, new ChainRecorder(2, null, recordedAgain), placeholder));
+		store.record(1, new ChainRecorder(1, null, recordedAgain), null);
+		assertBuilds(placeholder, 1, 2);
+	}
+
+	@Test
+	public void prunedBuildsMustBeFoundThroughTheRecorder() {
+		StabilityHistoryStore store = new StabilityHistoryStore();
+		AtomicInteger recordedAgain = new AtomicInteger();
+		store.record(1, new ChainRecorder(1, null, recordedAgain), null);
+		store.record(2, new ChainRecorder(2, null, recordedAgain), null);
+
+		store.prune(2);
+		assertBuilds(store.record(3, new ChainRecorder(3, null, recordedAgain), null), 1, 2, 3);
+
+		// the recorder has no previous data
+		store.prune(Integer.MAX_VALUE);
+		assertBuilds(store.record(4, new ChainRecorder(4, null, recordedAgain), null), 4);
+		Assert.assertEquals(0, recordedAgain.get());
+	}
+
+	@Test
+	public void concurrentBuildsMustBeRecordedInBuildOrder() throws Exception {
+		final int builds = 2 * StabilityHistoryStore.MAX_RECORDINGS;
+		final StabilityHistoryStore store = new StabilityHistoryStore();
+		final AtomicInteger recordedAgain = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<StabilityTestData>> recorded = new ArrayList<Future<StabilityTestData>>();
+			for (int i = 1; i <= builds; i++) {
+				final int buildNumber = i;
+				recorded.add(executor.submit(new Callable<StabilityTestData>() {
+					@Override
+					public StabilityTestData call() {
+						return store.record(buildNumber, new ChainRecorder(buildNumber, new Random(buildNumber), recordedAgain), null);
+					}
+				}));
+			}
+
+			for (int i = 1; i <= builds; i++) {
+				int[] expected = new int[i];
+				for (int j = 0; j < i; j++) {
+					expected[j] = j + 1;
+				}
+				assertBuilds(recorded.get(i - 1).get(), expected);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void assertBuilds(StabilityTestData data, int... buildNumbers) {
+		CircularStabilityHistory history = data.getHistory(ID);
+		Assert.assertNotNull(history);
+		StabilityTestData.Result[] results = history.getData();
+		int[] actual = new int[results.length];
+		for (int i = 0; i < results.length; i++) {
+			actual[i] = results[i].buildNumber;
+		}
+		Assert.assertArrayEquals(buildNumbers, actual);
+	}
+
+	/**
+	 * Continues the previous history of one test, taking a random while like a real recording.
+	 */
+	private static final class ChainRecorder implements StabilityHistoryStore.Recorder {
+
+		private final int buildNumber;
+		private final Random random;
+		private final AtomicInteger recordedAgain;
+
+		ChainRecorder(int buildNumber, Random random, AtomicInteger recordedAgain) {
+			this.buildNumber = buildNumber;
+			this.random = random;
+			this.recordedAgain = recordedAgain;
+		}
+
+		@Override
+		public int getPreviousBuildNumber() {
+			return -1;
+		}
+
+		@Override
+		public StabilityTestData getPreviousData() {
+			return null;
+		}
+
+		@Override
+		public StabilityTestData record(StabilityTestData previousData) {
+			CircularStabilityHistory previous = previousData != null ? previousData.getHistory(ID) : null;
+			CircularStabilityHistory history = previous != null
+					? previous.copy(1000) : new CircularStabilityHistory(1000);
+			if (random != null) {
+				try {
+					Thread.sleep(random.nextInt(3));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			history.add(buildNumber, buildNumber % 3 != 0);
+			return new StabilityTestData(Collections.singletonMap(ID, history));
+		}
+
+		@Override
+		public void recordedAgain(StabilityTestData data) {
+			recordedAgain.incrementAndGet();
+		}
+	}
+}
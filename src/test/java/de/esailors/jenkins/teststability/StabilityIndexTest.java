@@ -0,0 +1,213 @@
+package de.esailors.jenkins.teststability;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.esailors.jenkins.teststability.StabilityTestData.Result;
+
+public class StabilityIndexTest {
+
+	private File jobDir;
+
+	@Before
+	public void createJobDir() throws IOException {
+		jobDir = File.createTempFile("stability", "job");
+		Assert.assertTrue(jobDir.delete());
+		Assert.assertTrue(jobDir.mkdir());
+	}
+
+	@After
+	public void deleteJobDir() {
+		new File(jobDir, StabilityIndex.FILE_NAME).delete();
+		jobDir.delete();
+	}
+
+	@Test
+	public void appendedHistoriesMustBeReadable() throws IOException {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		CircularStabilityHistory flaky = history(70, 1, 100);
+		histories.put("junit/foo/FlakyTest/testFlaky", flaky);
+		CircularStabilityHistory failing = history(70, 99, 1);
+		histories.put("junit/foo/FlakyTest", failing);
+
+		StabilityIndex index = StabilityIndex.forJob(jobDir);
+		StabilityIndex.Pointer first = index.append(100, 70, histories, null);
+		Assert.assertTrue(histories.isEmpty());
+
+		histories.put("junit/foo/FlakyTest/testFlaky", history(70, 2, 100));
+		StabilityIndex.Pointer second = index.append(101, 70, histories, null);
+
+		assertSameHistory(flaky, index.read(first, "junit/foo/FlakyTest/testFlaky"));
+		assertSameHistory(failing, index.read(first, "junit/foo/FlakyTest"));
+		assertSameHistory(history(70, 2, 100), index.read(second, "junit/foo/FlakyTest/testFlaky"));
+		Assert.assertNull(index.read(second, "junit/foo/FlakyTest"));
+		Assert.assertNull(index.read(first, "junit/foo/OtherTest"));
+	}
+
+	@Test
+	public void segmentMustBeVisited() throws IOException {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		CircularStabilityHistory flaky = history(70, 1, 100);
+		histories.put("junit/foo/FlakyTest/testFlaky", flaky);
+		histories.put("junit/foo/FlakyTest", history(70, 99, 1));
+		StabilityIndex.Pointer pointer = StabilityIndex.forJob(jobDir).append(100, 70, histories, null);
+
+		final Map<String, CircularStabilityHistory> visited = new HashMap<String, CircularStabilityHistory>();
+		Assert.assertTrue(StabilityIndex.forJob(jobDir).visit(pointer, new StabilityTestData.HistoryVisitor() {
+			@Override
+			public boolean visit(String testId, CircularStabilityHistory history) {
+				visited.put(testId, history);
+				return true;
+			}
+		}));
+		Assert.assertEquals(2, visited.size());
+		assertSameHistory(flaky, visited.get("junit/foo/FlakyTest/testFlaky"));
+	}
+
+	@Test
+	public void historiesNotFittingMustStayInTheMap() throws IOException {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		CircularStabilityHistory otherSize = history(10, 1, 5);
+		histories.put("junit/foo/OtherSizeTest", otherSize);
+		CircularStabilityHistory largeGap = new CircularStabilityHistory(30);
+		largeGap.add(1, true);
+		largeGap.add(1 + Character.MAX_VALUE + 1, false);
+		histories.put("junit/foo/LargeGapTest", largeGap);
+
+		StabilityIndex index = StabilityIndex.forJob(jobDir);
+		StabilityIndex.Pointer pointer = index.append(70000, 30, histories, null);
+
+		Assert.assertEquals(2, histories.size());
+		Assert.assertNull(index.read(pointer, "junit/foo/OtherSizeTest"));
+		Assert.assertNull(index.read(pointer, "junit/foo/LargeGapTest"));
+	}
+
+	@Test
+	public void weightedRatesMustBeKept() throws IOException {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		CircularStabilityHistory weighted = new CircularStabilityHistory(30);
+		weighted.trackEwma(0.1f);
+		for (int i = 1; i <= 40; i++) {
+			weighted.add(i, i % 4 != 0);
+		}
+		histories.put("junit/foo/WeightedTest", weighted);
+
+		StabilityIndex index = StabilityIndex.forJob(jobDir);
+		// only the last result is retained, in a slot of its own
+		Assert.assertEquals(1, weighted.getMaxSize());
+		StabilityIndex.Pointer pointer = index.append(40, 1, histories, null);
+		Assert.assertTrue(histories.isEmpty());
+
+		CircularStabilityHistory read = index.read(pointer, "junit/foo/WeightedTest");
+		assertSameHistory(weighted, read);
+		Assert.assertTrue(read.isEwma());
+		Assert.assertEquals(weighted.getFailureRate(), read.getFailureRate(), 1e-4);
+		Assert.assertEquals(weighted.getChangeRate(), read.getChangeRate(), 1e-4);
+	}
+
+	@Test
+	public void replacedFileMustNotBeRead() throws IOException {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		histories.put("junit/foo/FlakyTest", history(30, 1, 10));
+
+		StabilityIndex index = StabilityIndex.forJob(jobDir);
+		StabilityIndex.Pointer pointer = index.append(10, 30, histories, null);
+		Assert.assertTrue(new File(jobDir, StabilityIndex.FILE_NAME).delete());
+
+		histories.put("junit/foo/FlakyTest", history(30, 1, 10));
+		index.append(10, 30, histories, null);
+
+		Assert.assertNull(index.read(pointer, "junit/foo/FlakyTest"));
+	}
+
+	@Test
+	public void compactionMustKeepTheSegmentsOfRetainedBuilds() throws IOException {
+		File file = new File(jobDir, StabilityIndex.FILE_NAME);
+		StabilityIndex index = new StabilityIndex(file, StabilityIndex.MAX_FILE_SIZE, StabilityIndex.MIN_COMPACTION_SIZE);
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		StabilityIndex.Pointer[] pointers = new StabilityIndex.Pointer[4];
+		for (int build = 1; build <= 3; build++) {
+			histories.put("junit/foo/FlakyTest", history(30, build, 10));
+			pointers[build] = index.append(build, 30, histories, null);
+		}
+		long size = file.length();
+
+		index.compact(Collections.singleton(2));
+
+		Assert.assertTrue(file.length() < size);
+		Assert.assertNull(index.read(pointers[1], "junit/foo/FlakyTest"));
+		assertSameHistory(history(30, 2, 10), index.read(pointers[2], "junit/foo/FlakyTest"));
+		// the last segment is kept, as later offsets continue it
+		assertSameHistory(history(30, 3, 10), index.read(pointers[3], "junit/foo/FlakyTest"));
+
+		histories.put("junit/foo/FlakyTest", history(30, 4, 10));
+		StabilityIndex.Pointer fourth = index.append(4, 30, histories, null);
+		Assert.assertTrue(fourth.offset > pointers[3].offset);
+		assertSameHistory(history(30, 4, 10), index.read(fourth, "junit/foo/FlakyTest"));
+		assertSameHistory(history(30, 2, 10), index.read(pointers[2], "junit/foo/FlakyTest"));
+	}
+
+	@Test
+	public void segmentsMustBeReadableWhileAppending() throws IOException {
+		StabilityIndex index = new StabilityIndex(new File(jobDir, StabilityIndex.FILE_NAME),
+				StabilityIndex.MAX_FILE_SIZE, StabilityIndex.MIN_COMPACTION_SIZE);
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		histories.put("junit/foo/FlakyTest", history(30, 1, 10));
+		StabilityIndex.Pointer first = index.append(1, 30, histories, null);
+		assertSameHistory(history(30, 1, 10), index.read(first, "junit/foo/FlakyTest"));
+
+		// only the appended segment is mapped, the first one stays readable
+		histories.put("junit/foo/FlakyTest", history(30, 2, 10));
+		StabilityIndex.Pointer second = index.append(2, 30, histories, null);
+		assertSameHistory(history(30, 2, 10), index.read(second, "junit/foo/FlakyTest"));
+		assertSameHistory(history(30, 1, 10), index.read(first, "junit/foo/FlakyTest"));
+		Assert.assertNull(index.read(new StabilityIndex.Pointer(first.epoch, first.offset + 1), "junit/foo/FlakyTest"));
+	}
+
+	@Test
+	public void fullIndexMustLeaveTheHistoriesInTheMap() throws IOException {
+		File file = new File(jobDir, StabilityIndex.FILE_NAME);
+		StabilityIndex index = new StabilityIndex(file, 200, StabilityIndex.MIN_COMPACTION_SIZE);
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		histories.put("junit/foo/FlakyTest", history(30, 1, 10));
+		index.append(1, 30, histories, null);
+		Assert.assertTrue(histories.isEmpty());
+
+		histories.put("junit/foo/FlakyTest", history(30, 2, 10));
+		try {
+			index.append(2, 30, histories, null);
+			Assert.fail("appended beyond the maximum size");
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertEquals(1, histories.size());
+	}
+
+	private static CircularStabilityHistory history(int maxSize, int step, int count) {
+		CircularStabilityHistory history = new CircularStabilityHistory(maxSize);
+		for (int i = 1; i <= count; i++) {
+			history.add(i * step, i % 3 != 0);
+		}
+		return history;
+	}
+
+	private static void assertSameHistory(CircularStabilityHistory expected, CircularStabilityHistory actual) {
+		Assert.assertNotNull(actual);
+		Assert.assertEquals(expected.getMaxSize(), actual.getMaxSize());
+		Result[] expectedData = expected.getData();
+		Result[] actualData = actual.getData();
+		Assert.assertEquals(expectedData.length, actualData.length);
+		for (int i = 0; i < expectedData.length; i++) {
+			Assert.assertEquals(expectedData[i].buildNumber, actualData[i].buildNumber);
+			Assert.assertEquals(expectedData[i].passed, actualData[i].passed);
+		}
+	}
+}
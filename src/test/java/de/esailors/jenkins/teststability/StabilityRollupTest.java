@@ -0,0 +1,104 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StabilityRollupTest {
+
+	@Test
+	public void axisMustHoldAllBuilds() {
+		CircularStabilityHistory a = history(30, 1, true, 3, false);
+		CircularStabilityHistory b = history(30, 2, true, 3, true);
+
+		int[] axis = StabilityRollup.axis(Arrays.asList(a, b), new int[] { 3, 4 });
+		Assert.assertArrayEquals(new int[] { 1, 2, 3, 4 }, axis);
+	}
+
+	@Test
+	public void failuresMustBeCombined() {
+		CircularStabilityHistory a = history(30, 1, true, 2, false, 3, true);
+		CircularStabilityHistory b = history(30, 2, true, 3, false);
+		int[] recent = new int[] { 1, 2, 3 };
+		StabilityRollup rollup = new StabilityRollup(StabilityRollup.axis(Arrays.asList(a, b), recent));
+		rollup.add(a);
+		rollup.add(b);
+
+		Assert.assertEquals(3, rollup.getTotal());
+		Assert.assertEquals(2, rollup.getFailed());
+		CircularStabilityHistory history = rollup.toHistory(30);
+		Assert.assertEquals(3, history.size());
+		Assert.assertEquals(2, history.getFailed());
+		Assert.assertEquals(1, history.getStatusChanges());
+	}
+
+	@Test
+	public void cleanTestsMustOnlyAddRuns() {
+		CircularStabilityHistory failed = history(30, 3, false);
+		int[] recent = new int[] { 1, 2, 3 };
+		StabilityRollup rollup = new StabilityRollup(StabilityRollup.axis(Collections.singletonList(failed), recent));
+		rollup.add(failed);
+		rollup.addClean(2, recent);
+
+		Assert.assertEquals(2, rollup.getTotal());
+		Assert.assertEquals(1, rollup.getFailed());
+		Assert.assertEquals(2, rollup.toHistory(30).getData()[0].buildNumber);
+	}
+
+	@Test
+	public void childRollupsMustBeOred() {
+		CircularStabilityHistory a = history(30, 1, false, 2, true);
+		CircularStabilityHistory b = history(30, 2, true, 3, false);
+		int[] axis = StabilityRollup.axis(Arrays.asList(a, b), new int[0]);
+		StabilityRollup first = new StabilityRollup(axis);
+		first.add(a);
+		StabilityRollup second = new StabilityRollup(axis);
+		second.add(b);
+
+		StabilityRollup suite = new StabilityRollup(axis);
+		suite.add(first);
+		suite.add(second);
+		Assert.assertEquals(3, suite.getTotal());
+		Assert.assertEquals(2, suite.getFailed());
+	}
+
+	@Test
+	public void rollupMustBeLimitedToTheNewestBuilds() {
+		CircularStabilityHistory a = history(30, 1, false, 2, true, 3, true);
+		StabilityRollup rollup = new StabilityRollup(StabilityRollup.axis(Collections.singletonList(a), new int[0]));
+		rollup.add(a);
+
+		Assert.assertNotNull(rollup.toHistory(3));
+		Assert.assertNull(rollup.toHistory(2));
+	}
+
+	@Test
+	public void rollupsOverManyBuildsMustUseAllWords() {
+		CircularStabilityHistory a = new CircularStabilityHistory(200);
+		for (int buildNumber = 1; buildNumber <= 200; buildNumber++) {
+			a.add(buildNumber, buildNumber % 64 != 0);
+		}
+		StabilityRollup rollup = new StabilityRollup(StabilityRollup.axis(Collections.singletonList(a), new int[0]));
+		rollup.add(a);
+
+		Assert.assertEquals(200, rollup.getTotal());
+		Assert.assertEquals(3, rollup.getFailed());
+		Assert.assertEquals(3, rollup.toHistory(200).getFailed());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rollupsOverDifferentBuildsMustNotBeCombined() {
+		new StabilityRollup(new int[] { 1 }).add(new StabilityRollup(new int[] { 2 }));
+	}
+
+	// alternating build numbers and results
+	private static CircularStabilityHistory history(int maxSize, Object... results) {
+		CircularStabilityHistory history = new CircularStabilityHistory(maxSize);
+		for (int i = 0; i < results.length; i += 2) {
+			history.add((Integer) results[i], (Boolean) results[i + 1]);
+		}
+		return history;
+	}
+}
@@ -58,4 +58,19 @@ public class StabilityTestActionTest {
 		StabilityTestAction action = new StabilityTestAction(ringBuffer);
 		Assert.assertEquals(50, action.getFlakiness());
 	}
+
+	@Test
+	public void weightedRatesMustBeUsedIfTracked() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(3);
+		ringBuffer.trackEwma(0.5f);
+		ringBuffer.add(1, false);
+		ringBuffer.add(2, true);
+		ringBuffer.add(3, true);
+		ringBuffer.add(4, true);
+
+		StabilityTestAction action = new StabilityTestAction(ringBuffer);
+		// all retained entries passed, but the failure of build 1 is remembered
+		Assert.assertEquals(88, action.getStability());
+		Assert.assertEquals(13, action.getFlakiness());
+	}
 }
@@ -0,0 +1,142 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import hudson.tasks.junit.TestAction;
+import hudson.tasks.junit.TestResult;
+
+import jenkins.model.Jenkins;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.esailors.jenkins.teststability.StabilityTestData.Result;
+
+public class StabilityTestDataTest {
+
+	@Test
+	public void historiesMustSurviveRoundTrip() {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		CircularStabilityHistory flaky = new CircularStabilityHistory(5);
+		for (int i = 1; i <= 8; i++) {
+			flaky.add(i * 3, i % 2 == 0);
+		}
+		histories.put("junit/test.foo.bar/ProjectSettingsTest/testFlaky", flaky);
+		CircularStabilityHistory failing = new CircularStabilityHistory(30);
+		failing.add(7, false);
+		histories.put("junit/test.foo.bar/ProjectSettingsTest", failing);
+
+		String xml = Jenkins.XSTREAM2.toXML(new StabilityTestData(histories));
+		Assert.assertTrue(xml, xml.contains("<histories>"));
+		Assert.assertFalse(xml, xml.contains("CircularStabilityHistory"));
+
+		StabilityTestData read = (StabilityTestData) Jenkins.XSTREAM2.fromXML(xml);
+		assertSameHistory(flaky, read.getHistory("junit/test.foo.bar/ProjectSettingsTest/testFlaky"));
+		assertSameHistory(failing, read.getHistory("junit/test.foo.bar/ProjectSettingsTest"));
+		Assert.assertNull(read.getHistory("junit/test.foo.bar/DefaultIntegrationTest"));
+	}
+
+	@Test
+	public void pendingDataMustWaitForTheComputedHistories() throws Exception {
+		final StabilityTestData placeholder = new StabilityTestData(new HashMap<String, CircularStabilityHistory>());
+		final CircularStabilityHistory history = new CircularStabilityHistory(5);
+		history.add(1, false);
+		FutureTask<Void> computation = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() {
+				placeholder.complete(new StabilityTestData(Collections.singletonMap("test", history)));
+				return null;
+			}
+		});
+		placeholder.setPending(computation);
+		Assert.assertFalse(placeholder.awaitComputed(10, TimeUnit.MILLISECONDS));
+		
+		new Thread(computation).start();
+		Assert.assertEquals(1, placeholder.getHistory("test").getFailed());
+		Assert.assertTrue(placeholder.awaitComputed(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void renderingMustWaitForPendingDataOnlyOnce() {
+		StabilityTestData placeholder = new StabilityTestData(new HashMap<String, CircularStabilityHistory>());
+		placeholder.setPending(new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() {
+				return null;
+			}
+		}));
+		
+		long started = System.nanoTime();
+		placeholder.getTestAction(new TestResult());
+		Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(StabilityTestData.COMPUTING_WAIT_MILLIS));
+		
+		started = System.nanoTime();
+		List<? extends TestAction> actions = placeholder.getTestAction(new TestResult());
+		Assert.assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(StabilityTestData.COMPUTING_WAIT_MILLIS));
+		Assert.assertEquals(StabilityTestAction.computing().getDescription(),
+				((StabilityTestAction) actions.get(actions.size() - 1)).getDescription());
+	}
+
+	@Test
+	public void trackedClassesMustBeTheParentsOfTheHistories() {
+		CircularStabilityHistory failing = new CircularStabilityHistory(5);
+		failing.add(1, false);
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		histories.put("junit/test.foo.bar/ProjectSettingsTest/testFlaky", failing);
+		histories.put("junit/test.foo.bar/ProjectSettingsTest/testFailing", failing);
+		histories.put("junit/test.foo/OtherTest/testFailing", failing);
+
+		Set<String> expected = new HashSet<String>(Arrays.asList(
+				"junit/test.foo.bar/ProjectSettingsTest", "junit/test.foo/OtherTest"));
+		Assert.assertEquals(expected, new StabilityTestData(histories).getTrackedClasses());
+	}
+
+	@Test
+	public void legacyFormatMustStillBeReadable() {
+		String xml = "<de.esailors.jenkins.teststability.StabilityTestData>"
+				+ "<stability>"
+				+ "<entry>"
+				+ "<string>junit/test.foo.bar/ProjectSettingsTest</string>"
+				+ "<de.esailors.jenkins.teststability.CircularStabilityHistory>"
+				+ "<head>1</head><tail>1</tail><size>3</size><data>4;0,2;1,3;0</data>"
+				+ "</de.esailors.jenkins.teststability.CircularStabilityHistory>"
+				+ "</entry>"
+				+ "</stability>"
+				+ "</de.esailors.jenkins.teststability.StabilityTestData>";
+
+		StabilityTestData read = (StabilityTestData) Jenkins.XSTREAM2.fromXML(xml);
+
+		CircularStabilityHistory history = read.getHistory("junit/test.foo.bar/ProjectSettingsTest");
+		Assert.assertNotNull(history);
+		Assert.assertEquals(3, history.getMaxSize());
+		Result[] data = history.getData();
+		Assert.assertEquals(3, data.length);
+		Assert.assertEquals(2, data[0].buildNumber);
+		Assert.assertTrue(data[0].passed);
+		Assert.assertEquals(3, data[1].buildNumber);
+		Assert.assertFalse(data[1].passed);
+		Assert.assertEquals(4, data[2].buildNumber);
+		Assert.assertFalse(data[2].passed);
+	}
+
+	private static void assertSameHistory(CircularStabilityHistory expected, CircularStabilityHistory actual) {
+		Assert.assertNotNull(actual);
+		Assert.assertEquals(expected.getMaxSize(), actual.getMaxSize());
+		Result[] expectedData = expected.getData();
+		Result[] actualData = actual.getData();
+		Assert.assertEquals(expectedData.length, actualData.length);
+		for (int i = 0; i < expectedData.length; i++) {
+			Assert.assertEquals(expectedData[i].buildNumber, actualData[i].buildNumber);
+			Assert.assertEquals(expectedData[i].passed, actualData[i].passed);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package de.esailors.jenkins.teststability;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StabilityTrendGraphTest {
+
+	@Test
+	public void graphMustHaveABarPerBuild() {
+		String svg = StabilityTrendGraph.render(history(7, true, false, true));
+
+		Assert.assertTrue(svg, svg.startsWith("<svg "));
+		Assert.assertEquals(3, svg.split("<rect ").length - 1);
+		Assert.assertTrue(svg, svg.contains("<title>#8 failed</title>"));
+		Assert.assertTrue(svg, svg.contains("<title>#9 passed</title>"));
+	}
+
+	@Test
+	public void equalHistoriesMustShareTheGraph() {
+		String first = StabilityTrendGraph.svg(history(1, true, false));
+		// e.g. the history of the next build, which the test didn't run in
+		String second = StabilityTrendGraph.svg(history(1, true, false).asReadOnly());
+
+		Assert.assertSame(first, second);
+		Assert.assertFalse(first.equals(StabilityTrendGraph.svg(history(1, false, false))));
+		Assert.assertFalse(first.equals(StabilityTrendGraph.svg(history(2, true, false))));
+	}
+
+	@Test
+	public void emptyHistoryMustNotHaveAGraph() {
+		Assert.assertEquals("", StabilityTrendGraph.svg(new CircularStabilityHistory(10)));
+		Assert.assertEquals("", new StabilityTestAction(null).getTrendSvg());
+	}
+
+	// consecutive builds starting with firstBuildNumber
+	private static CircularStabilityHistory history(int firstBuildNumber, boolean... passed) {
+		CircularStabilityHistory history = new CircularStabilityHistory(30);
+		for (int i = 0; i < passed.length; i++) {
+			history.add(firstBuildNumber + i, passed[i]);
+		}
+		return history;
+	}
+}
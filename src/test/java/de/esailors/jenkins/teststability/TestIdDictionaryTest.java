@@ -0,0 +1,125 @@
+package de.esailors.jenkins.teststability;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestIdDictionaryTest {
+
+	private File file;
+
+	@Before
+	public void createJobDir() throws IOException {
+		File jobDir = File.createTempFile("stability", "job");
+		Assert.assertTrue(jobDir.delete());
+		Assert.assertTrue(jobDir.mkdir());
+		file = new File(jobDir, TestIdDictionary.FILE_NAME);
+	}
+
+	@After
+	public void deleteJobDir() {
+		file.delete();
+		file.getParentFile().delete();
+	}
+
+	@Test
+	public void keysMustBeStable() throws IOException {
+		TestIdDictionary dictionary = new TestIdDictionary(file);
+		int[] keys = dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest", "junit/foo/BarTest/testA", "junit/foo/BarTest/testB"));
+		Assert.assertArrayEquals(new int[] { 0, 1, 2 }, keys);
+
+		keys = dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest/testB", "junit/foo/BazTest", "junit/foo/BarTest"));
+		Assert.assertArrayEquals(new int[] { 2, 3, 0 }, keys);
+
+		long epoch = dictionary.getEpoch();
+		TestIdDictionary reloaded = new TestIdDictionary(file);
+		Assert.assertEquals(epoch, reloaded.getEpoch());
+		Assert.assertEquals(1, reloaded.getKey(epoch, "junit/foo/BarTest/testA"));
+		Assert.assertEquals(3, reloaded.getKey(epoch, "junit/foo/BazTest"));
+		Assert.assertEquals(-1, reloaded.getKey(epoch, "junit/foo/OtherTest"));
+		Assert.assertEquals("junit/foo/BarTest/testB", reloaded.getId(epoch, 2));
+		Assert.assertNull(reloaded.getId(epoch, 4));
+	}
+
+	@Test
+	public void newIdsMustBeAddedSorted() throws IOException {
+		TestIdDictionary dictionary = new TestIdDictionary(file);
+		dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest"));
+
+		int[] keys = dictionary.getOrAddKeys(Arrays.asList("junit/foo/BazTest", "junit/foo/BarTest", "junit/foo/BarTest/testA", "junit/foo/BazTest"));
+		Assert.assertArrayEquals(new int[] { 2, 0, 1, 2 }, keys);
+	}
+
+	@Test
+	public void manyIdsMustResolveToTheirKeys() throws IOException {
+		TestIdDictionary dictionary = new TestIdDictionary(file);
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			ids.add(String.format("junit/foo/BarTest/test%04d", i));
+		}
+		dictionary.getOrAddKeys(ids);
+
+		long epoch = dictionary.getEpoch();
+		TestIdDictionary.Ids snapshot = new TestIdDictionary(file).getIds(epoch);
+		Assert.assertNotNull(snapshot);
+		for (int i = 0; i < ids.size(); i++) {
+			Assert.assertEquals(i, snapshot.getKey(ids.get(i)));
+			Assert.assertEquals(ids.get(i), dictionary.getId(epoch, i));
+		}
+		Assert.assertEquals(-1, snapshot.getKey("junit/foo/BarTest/test1000"));
+	}
+
+	@Test
+	public void fullDictionaryMustNotAddIds() throws IOException {
+		TestIdDictionary dictionary = new TestIdDictionary(file, 2);
+		dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest", "junit/foo/BarTest/testA"));
+		try {
+			dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest", "junit/foo/BazTest"));
+			Assert.fail("added a third id");
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertArrayEquals(new int[] { 1, 0 },
+				dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest/testA", "junit/foo/BarTest")));
+	}
+
+	@Test
+	public void keysOfAnotherEpochMustNotResolve() throws IOException {
+		TestIdDictionary dictionary = new TestIdDictionary(file);
+		dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest"));
+		long epoch = dictionary.getEpoch();
+
+		Assert.assertEquals(-1, dictionary.getKey(epoch + 1, "junit/foo/BarTest"));
+		Assert.assertNull(dictionary.getId(epoch + 1, 0));
+	}
+
+	@Test
+	public void truncatedAppendMustBeOverwritten() throws IOException {
+		TestIdDictionary dictionary = new TestIdDictionary(file);
+		dictionary.getOrAddKeys(Arrays.asList("junit/foo/BarTest", "junit/foo/BarTest/testA"));
+		long epoch = dictionary.getEpoch();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 2);
+		} finally {
+			raf.close();
+		}
+
+		TestIdDictionary reloaded = new TestIdDictionary(file);
+		Assert.assertEquals(-1, reloaded.getKey(epoch, "junit/foo/BarTest/testA"));
+		Assert.assertArrayEquals(new int[] { 1 }, reloaded.getOrAddKeys(Arrays.asList("junit/foo/BazTest")));
+
+		TestIdDictionary again = new TestIdDictionary(file);
+		Assert.assertEquals(0, again.getKey(epoch, "junit/foo/BarTest"));
+		Assert.assertEquals(1, again.getKey(epoch, "junit/foo/BazTest"));
+	}
+}
@@ -0,0 +1,59 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestIdFilterTest {
+
+	@Test
+	public void addedIdsMustBeContained() {
+		List<String> ids = ids("junit/test.foo.bar/ProjectSettingsTest/test", 5000);
+		TestIdFilter filter = new TestIdFilter(TestIdFilter.of(ids).getData());
+
+		for (String id : ids) {
+			Assert.assertTrue(id, filter.mightContain(id));
+		}
+	}
+
+	@Test
+	public void falsePositivesMustBeRare() {
+		TestIdFilter filter = TestIdFilter.of(ids("junit/test.foo.bar/ProjectSettingsTest/test", 5000));
+
+		int falsePositives = 0;
+		for (String id : ids("junit/test.foo.bar/OtherTest/test", 10000)) {
+			if (filter.mightContain(id)) {
+				falsePositives++;
+			}
+		}
+		// about 1% expected
+		Assert.assertTrue("false positives: " + falsePositives, falsePositives < 300);
+	}
+
+	@Test
+	public void emptyFilterMustNotContainAnything() {
+		TestIdFilter filter = TestIdFilter.of(Collections.<String>emptyList());
+
+		Assert.assertFalse(filter.mightContain("junit/test.foo.bar/ProjectSettingsTest/testFlaky"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedFilterMustBeRejected() {
+		byte[] data = TestIdFilter.of(ids("test", 10)).getData();
+		byte[] truncated = new byte[data.length - 1];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+		new TestIdFilter(truncated);
+	}
+
+	private static List<String> ids(String prefix, int count) {
+		List<String> ids = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			ids.add(prefix + i);
+		}
+		return ids;
+	}
+}
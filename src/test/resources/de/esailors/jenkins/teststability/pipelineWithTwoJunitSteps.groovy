@@ -0,0 +1,37 @@
+package de.esailors.jenkins.teststability
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+node {
+    step([$class: 'JUnitResultArchiver', testResults: "report.xml", testDataPublishers: [[$class: 'StabilityTestDataPublisher']]])
+    writeFile file: 'more/report.xml', text: '''<?xml version="1.0" encoding="UTF-8" ?>
+<testsuite errors="0" failures="1" skipped="0" name="test.foo.baz.MoreTest" tests="2" time="0.2">
+  <testcase classname="test.foo.baz.MoreTest" name="passes" time="0.1"/>
+  <testcase classname="test.foo.baz.MoreTest" name="fails" time="0.1">
+    <failure message="expected:&lt;1&gt; but was:&lt;2&gt;" type="java.lang.AssertionError">java.lang.AssertionError</failure>
+  </testcase>
+</testsuite>
+'''
+    step([$class: 'JUnitResultArchiver', testResults: "more/*.xml", testDataPublishers: [[$class: 'StabilityTestDataPublisher']]])
+}